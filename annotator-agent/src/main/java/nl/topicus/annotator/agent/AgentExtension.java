@@ -0,0 +1,22 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Map;
+
+/**
+ * Extension of the agent that is started right after the agent itself, before
+ * the main method of the application runs. Extensions are discovered with a
+ * {@link java.util.ServiceLoader}, via
+ * <code>META-INF/services/nl.topicus.annotator.agent.AgentExtension</code>.
+ */
+public interface AgentExtension {
+	/**
+	 * @param arguments
+	 *            The arguments passed to the agent, in the form
+	 *            <code>-javaagent:annotator-agent.jar=key1=value1,key2=value2</code>
+	 *            . Empty when the agent is loaded dynamically.
+	 * @param inst
+	 *            The instrumentation of the JVM.
+	 */
+	public void start(Map<String, String> arguments, Instrumentation inst);
+}
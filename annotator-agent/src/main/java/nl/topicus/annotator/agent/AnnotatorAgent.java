@@ -1,16 +1,61 @@
 package nl.topicus.annotator.agent;
 
+import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.WeakHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class AnnotatorAgent {
-	private static WeakHashMap<Class<?>, List<ClassFileTransformer>> transformers = new WeakHashMap<>();
+	/**
+	 * The transformers per class. The slot lives with the class, so it does
+	 * not keep the class from being unloaded, and readers on the class load
+	 * path never block.
+	 */
+	private static ClassValue<AtomicReference<TransformerChain>> transformers = new ClassValue<AtomicReference<TransformerChain>>() {
+		@Override
+		protected AtomicReference<TransformerChain> computeValue(Class<?> type) {
+			return new AtomicReference<>(TransformerChain.EMPTY);
+		}
+	};
+	/**
+	 * The number of classes with a non-empty transformer chain by internal
+	 * name, as classes of different loaders can have the same name. Only
+	 * changed while holding the map.
+	 */
+	private static ConcurrentMap<String, Integer> transformedClassNames = new ConcurrentHashMap<>();
+	private static ConcurrentMap<String, TransformerChain> namedTransformers = new ConcurrentHashMap<>();
+	private static LoaderMap<ConcurrentMap<String, TransformerChain>> loaderTransformers = new LoaderMap<>();
+	private static Map<Object, ClassRule> rulesByOwner = new LinkedHashMap<>();
+	private static volatile ClassRule[] rules = {};
+	private static Map<Object, SubtypeRule> subtypeRulesByOwner = new LinkedHashMap<>();
+	private static volatile SubtypeRule[] subtypeRules = {};
+	private static SupertypeIndex supertypeIndex = new SupertypeIndex();
+	private static PristineClassFiles pristineClassFiles = new PristineClassFiles();
+	private static volatile ClassPrefilter prefilter = ClassPrefilter.EMPTY;
+	private static AtomicLong prefilterFalsePositives = new AtomicLong();
+	/**
+	 * The map the failures of the transformers are recorded in during a
+	 * retransformation on the current thread.
+	 */
+	static ThreadLocal<Map<Class<?>, Throwable>> transformFailures = new ThreadLocal<>();
+	private static volatile RetransformScheduler scheduler = new RetransformScheduler(
+			64, 100, TimeUnit.MILLISECONDS);
 	private static boolean loadAttempted = false;
 	private static boolean loadSuccessful = false;
 	private static boolean disableDynamicAgent = false;
@@ -68,6 +113,41 @@ public class AnnotatorAgent {
 		InstrumentationFactory.setInstrumentation(inst);
 		InstrumentationFactory.setDynamicallyInstallAgent(false);
 		loadSuccessful = true;
+		startExtensions(parseArguments(args), inst);
+	}
+
+	/**
+	 * Parses the agent arguments, in the form
+	 * <code>key1=value1,key2=value2</code>. A key without a value maps to an
+	 * empty string. Empty arguments and values without a key are ignored, a
+	 * later value for the same key replaces an earlier one.
+	 */
+	static Map<String, String> parseArguments(String args) {
+		Map<String, String> ret = new LinkedHashMap<>();
+		if (args == null)
+			return ret;
+		for (String curArg : args.split(",")) {
+			if (curArg.trim().isEmpty())
+				continue;
+			int index = curArg.indexOf('=');
+			String key = (index < 0 ? curArg : curArg.substring(0, index))
+					.trim();
+			if (key.isEmpty()) {
+				System.out.println("Ignoring agent argument without a key: "
+						+ curArg);
+				continue;
+			}
+			ret.put(key, index < 0 ? "" : curArg.substring(index + 1).trim());
+		}
+		return ret;
+	}
+
+	private static void startExtensions(Map<String, String> arguments,
+			Instrumentation inst) {
+		for (AgentExtension curExtension : ServiceLoader
+				.load(AgentExtension.class)) {
+			curExtension.start(Collections.unmodifiableMap(arguments), inst);
+		}
 	}
 
 	private static void registerClassLoadEnhancer(Instrumentation inst) {
@@ -79,35 +159,711 @@ public class AnnotatorAgent {
 					Class<?> classBeingRedefined,
 					ProtectionDomain protectionDomain, byte[] classfileBuffer)
 					throws IllegalClassFormatException {
-				List<ClassFileTransformer> transformersForClass = transformers
-						.get(classBeingRedefined);
-				if (transformersForClass != null) {
-					for (ClassFileTransformer curTransformer : transformersForClass) {
-						try {
-							classfileBuffer = curTransformer.transform(loader,
-									className, classBeingRedefined,
-									protectionDomain, classfileBuffer);
-						} catch (Exception e) {
-							e.printStackTrace();
-							throw e;
-						}
+				if (className == null) {
+					return classBeingRedefined == null ? null : apply(
+							transformers.get(classBeingRedefined).get(),
+							loader, className, classBeingRedefined,
+							protectionDomain, classfileBuffer,
+							classfileBuffer);
+				}
+				// most classes are not touched by any registration, reject
+				// them before doing any lookups
+				if (!prefilter.mightMatch(className))
+					return null;
+
+				// transformers registered by name apply both when the class
+				// is defined and when it is retransformed, as retransformation
+				// starts from the original class file
+				byte[] ret = apply(namedTransformers.get(className), loader,
+						className, classBeingRedefined, protectionDomain,
+						classfileBuffer, classfileBuffer);
+				ConcurrentMap<String, TransformerChain> scoped = loaderTransformers
+						.get(loader);
+				if (scoped != null) {
+					ret = apply(scoped.get(className), loader, className,
+							classBeingRedefined, protectionDomain, ret,
+							classfileBuffer);
+				}
+				ret = applyRules(loader, className, classBeingRedefined,
+						protectionDomain, ret);
+				ret = applySubtypeRules(loader, className,
+						classBeingRedefined, protectionDomain, ret);
+				if (classBeingRedefined != null) {
+					ret = apply(transformers.get(classBeingRedefined).get(),
+							loader, className, classBeingRedefined,
+							protectionDomain, ret, classfileBuffer);
+				}
+				if (ret != classfileBuffer) {
+					if (classBeingRedefined != null) {
+						pristineClassFiles.capture(classBeingRedefined,
+								classfileBuffer);
 					}
+					return ret;
 				}
-				return classfileBuffer;
+				if (!isRegistered(loader, className, classBeingRedefined)) {
+					prefilterFalsePositives.incrementAndGet();
+				}
+				return null;
 			}
 		}, true);
 	}
 
+	private static boolean isRegistered(ClassLoader loader,
+			String className, Class<?> classBeingRedefined) {
+		ConcurrentMap<String, TransformerChain> scoped = loaderTransformers
+				.get(loader);
+		if (namedTransformers.containsKey(className)
+				|| scoped != null && scoped.containsKey(className)
+				|| subtypeRules.length > 0
+				|| classBeingRedefined != null
+				&& !transformers.get(classBeingRedefined).get().isEmpty())
+			return true;
+		for (ClassRule curRule : rules) {
+			if (className.startsWith(curRule.getPrefix())
+					&& curRule.matches(className))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of classes the prefilter let through while no
+	 *         transformer was registered for them. This should be a small
+	 *         fraction of the loaded classes.
+	 */
+	public static long getPrefilterFalsePositives() {
+		return prefilterFalsePositives.get();
+	}
+
+	/**
+	 * @return True if a loaded class with the internal name has transformers.
+	 */
+	static boolean isTransformedClass(String internalName) {
+		return transformedClassNames.containsKey(internalName);
+	}
+
+	/**
+	 * Rebuilds the prefilter from all registrations. Called after every change
+	 * to the registrations, before the affected classes are retransformed.
+	 */
+	private static synchronized void updatePrefilter() {
+		List<String> names = new ArrayList<>(namedTransformers.keySet());
+		names.addAll(transformedClassNames.keySet());
+		for (ConcurrentMap<String, TransformerChain> curScoped : loaderTransformers
+				.values()) {
+			names.addAll(curScoped.keySet());
+		}
+		List<String> prefixes = new ArrayList<>();
+		for (ClassRule curRule : rules) {
+			prefixes.add(curRule.getPrefix());
+		}
+		prefilter = new ClassPrefilter(names, prefixes,
+				subtypeRules.length > 0);
+	}
+
+	/**
+	 * @param original
+	 *            The class file the JVM passed to the agent, which decides
+	 *            whether a {@link VersionedTransformer} applies.
+	 */
+	private static byte[] apply(TransformerChain chain, ClassLoader loader,
+			String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer,
+			byte[] original) throws IllegalClassFormatException {
+		if (chain == null)
+			return classfileBuffer;
+		for (ClassFileTransformer curTransformer : chain.getPlan()) {
+			if (curTransformer instanceof VersionedTransformer
+					&& !((VersionedTransformer) curTransformer).accepts(
+							className, original))
+				continue;
+			classfileBuffer = apply(curTransformer, loader, className,
+					classBeingRedefined, protectionDomain, classfileBuffer);
+		}
+		return classfileBuffer;
+	}
+
+	private static byte[] applyRules(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) throws IllegalClassFormatException {
+		for (ClassRule curRule : rules) {
+			if (className.startsWith(curRule.getPrefix())
+					&& curRule.matches(className)) {
+				classfileBuffer = apply(curRule, loader, className,
+						classBeingRedefined, protectionDomain, classfileBuffer);
+			}
+		}
+		return classfileBuffer;
+	}
+
+	private static byte[] applySubtypeRules(ClassLoader loader,
+			String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer)
+			throws IllegalClassFormatException {
+		SubtypeRule[] curRules = subtypeRules;
+		if (curRules.length == 0)
+			return classfileBuffer;
+		ClassFileHeader header = null;
+		if (classBeingRedefined == null) {
+			try {
+				header = ClassFileHeader.read(classfileBuffer);
+			} catch (IllegalArgumentException e) {
+				return classfileBuffer;
+			}
+		}
+		for (SubtypeRule curRule : curRules) {
+			boolean subtype = header == null ? curRule
+					.isProperSubtype(classBeingRedefined) : supertypeIndex
+					.isSubtype(loader, header, curRule);
+			if (subtype) {
+				classfileBuffer = apply(curRule.getTransformer(), loader,
+						className, classBeingRedefined, protectionDomain,
+						classfileBuffer);
+			}
+		}
+		return classfileBuffer;
+	}
+
+	private static byte[] apply(ClassFileTransformer transformer,
+			ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer)
+			throws IllegalClassFormatException {
+		try {
+			byte[] transformed = transformer.transform(loader, className,
+					classBeingRedefined, protectionDomain, classfileBuffer);
+			return transformed == null ? classfileBuffer : transformed;
+		} catch (Exception e) {
+			e.printStackTrace();
+			recordFailure(classBeingRedefined, e);
+			throw e;
+		}
+	}
+
+	private static void recordFailure(Class<?> classBeingRedefined,
+			Throwable failure) {
+		Map<Class<?>, Throwable> failures = transformFailures.get();
+		if (failures != null && classBeingRedefined != null
+				&& !failures.containsKey(classBeingRedefined)) {
+			failures.put(classBeingRedefined, failure);
+		}
+	}
+
 	public static void addAnnotations(Class<?> clazz,
 			ClassFileTransformer transformer) {
-		List<ClassFileTransformer> transformersForClass = transformers
-				.get(clazz);
-		if (transformersForClass == null) {
-			transformersForClass = new ArrayList<>();
-			transformers.put(clazz, transformersForClass);
+		addAnnotations(Collections.<Class<?>, ClassFileTransformer> singletonMap(
+				clazz, transformer));
+	}
+
+	/**
+	 * @return The scheduler used to retransform classes after new annotations
+	 *         have been added. Use it to configure the chunk size and pause
+	 *         budget.
+	 */
+	public static RetransformScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Replaces the scheduler used to retransform classes.
+	 */
+	public static void setScheduler(RetransformScheduler scheduler) {
+		if (scheduler == null)
+			throw new IllegalArgumentException("scheduler must not be null");
+		AnnotatorAgent.scheduler = scheduler;
+	}
+
+	/**
+	 * Registers the transformers for all given classes and retransforms these
+	 * classes in chunks via the {@link #getScheduler() scheduler}. Every
+	 * transformer is added next to the ones already registered for its class.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be retransformed
+	 */
+	public static void addAnnotations(
+			Map<Class<?>, ? extends ClassFileTransformer> transformersByClass) {
+		for (Map.Entry<Class<?>, ? extends ClassFileTransformer> curEntry : transformersByClass
+				.entrySet()) {
+			register(curEntry.getKey(), curEntry.getValue(),
+					curEntry.getValue());
+		}
+		updatePrefilter();
+		scheduler.retransform(transformersByClass.keySet()).checkFailures();
+	}
+
+	/**
+	 * Registers the transformers for all given classes on behalf of the given
+	 * owner and retransforms these classes. A transformer registered earlier
+	 * by the same owner for the same class is replaced, so repeated
+	 * registrations do not pile up.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be retransformed
+	 */
+	public static void addAnnotations(Object owner,
+			Map<Class<?>, ? extends ClassFileTransformer> transformersByClass) {
+		addAnnotations(owner, transformersByClass,
+				Collections.<Class<?>> emptySet());
+	}
+
+	/**
+	 * Registers the transformers for all given classes on behalf of the given
+	 * owner, like {@link #addAnnotations(Object, Map)}, but does not
+	 * retransform the unchanged classes. Use this for classes whose current
+	 * class file already is what the new transformer produces. The
+	 * transformer is still registered, so later retransformations keep the
+	 * result.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be retransformed
+	 */
+	public static void addAnnotations(Object owner,
+			Map<Class<?>, ? extends ClassFileTransformer> transformersByClass,
+			Set<Class<?>> unchanged) {
+		List<Class<?>> changed = new ArrayList<>();
+		for (Map.Entry<Class<?>, ? extends ClassFileTransformer> curEntry : transformersByClass
+				.entrySet()) {
+			register(curEntry.getKey(), owner, curEntry.getValue());
+			if (!unchanged.contains(curEntry.getKey())) {
+				changed.add(curEntry.getKey());
+			}
+		}
+		updatePrefilter();
+		scheduler.retransform(changed).checkFailures();
+	}
+
+	/**
+	 * Registers the transformers for the classes with the given names on
+	 * behalf of the given owner. The transformers are applied when a class with
+	 * one of these names is defined. Classes with these names that are already
+	 * loaded are retransformed. A transformer registered earlier by the same
+	 * owner for the same name is replaced.
+	 * 
+	 * @param transformersByName
+	 *            The transformers keyed by the internal name of the class, for
+	 *            example <code>java/lang/String</code>.
+	 * @throws RetransformationException
+	 *             if one or more of the loaded classes could not be
+	 *             retransformed
+	 */
+	public static void addDefineTimeAnnotations(Object owner,
+			Map<String, ? extends ClassFileTransformer> transformersByName) {
+		for (Map.Entry<String, ? extends ClassFileTransformer> curEntry : transformersByName
+				.entrySet()) {
+			register(namedTransformers, curEntry.getKey(), owner,
+					curEntry.getValue());
+		}
+		updatePrefilter();
+		scheduler.retransform(
+				findLoadedClasses(InstrumentationFactory.getInstrumentation()
+						.getAllLoadedClasses(), null,
+						transformersByName.keySet())).checkFailures();
+	}
+
+	/**
+	 * Registers the transformers for the classes with the given names defined
+	 * by the given loader, on behalf of the given owner. Classes with the same
+	 * names defined by other loaders are not affected. Only the classes
+	 * initiated by the loader are searched for the ones that are already
+	 * loaded, and retransformed. A transformer registered earlier by the same
+	 * owner for the same loader and name is replaced.
+	 * 
+	 * @param loader
+	 *            The defining loader of the classes, null for the bootstrap
+	 *            loader.
+	 * @param transformersByName
+	 *            The transformers keyed by the internal name of the class.
+	 * @throws RetransformationException
+	 *             if one or more of the loaded classes could not be
+	 *             retransformed
+	 */
+	public static void addDefineTimeAnnotations(Object owner,
+			ClassLoader loader,
+			Map<String, ? extends ClassFileTransformer> transformersByName) {
+		ConcurrentMap<String, TransformerChain> scoped = loaderTransformers
+				.putIfAbsent(loader,
+						new ConcurrentHashMap<String, TransformerChain>());
+		for (Map.Entry<String, ? extends ClassFileTransformer> curEntry : transformersByName
+				.entrySet()) {
+			register(scoped, curEntry.getKey(), owner, curEntry.getValue());
+		}
+		updatePrefilter();
+		scheduler.retransform(
+				findLoadedClasses(InstrumentationFactory.getInstrumentation()
+						.getInitiatedClasses(loader), loader,
+						transformersByName.keySet())).checkFailures();
+	}
+
+	/**
+	 * Registers a rule on behalf of the given owner. The rule is applied to
+	 * every matching class when it is defined. Matching classes that are
+	 * already loaded are retransformed. A rule registered earlier by the same
+	 * owner is replaced.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the loaded classes could not be
+	 *             retransformed
+	 */
+	public static void addRule(Object owner, ClassRule rule) {
+		synchronized (rulesByOwner) {
+			rulesByOwner.put(owner, rule);
+			rules = rulesByOwner.values().toArray(
+					new ClassRule[rulesByOwner.size()]);
+		}
+		updatePrefilter();
+		List<Class<?>> loaded = new ArrayList<>();
+		for (Class<?> curClass : InstrumentationFactory.getInstrumentation()
+				.getAllLoadedClasses()) {
+			String internalName = curClass.getName().replace('.', '/');
+			if (internalName.startsWith(rule.getPrefix())
+					&& rule.matches(internalName)
+					&& InstrumentationFactory.getInstrumentation()
+							.isModifiableClass(curClass)) {
+				loaded.add(curClass);
+			}
+		}
+		scheduler.retransform(loaded).checkFailures();
+	}
+
+	/**
+	 * Registers a transformer for all subtypes of the given base type on behalf
+	 * of the given owner. The base type itself is not transformed. Subtypes are
+	 * transformed when they are defined, subtypes that are already loaded are
+	 * retransformed in one batch. A rule registered earlier by the same owner
+	 * is replaced.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the loaded subtypes could not be
+	 *             retransformed
+	 */
+	public static void addSubtypeRule(Object owner, Class<?> base,
+			ClassFileTransformer transformer) {
+		SubtypeRule rule = new SubtypeRule(base, transformer);
+		List<Class<?>> loaded = new ArrayList<>();
+		synchronized (subtypeRulesByOwner) {
+			// seed the index before the rule is published, so classes defined
+			// from now on find their loaded supertypes in it
+			for (Class<?> curClass : InstrumentationFactory
+					.getInstrumentation().getAllLoadedClasses()) {
+				if (rule.isProperSubtype(curClass)) {
+					supertypeIndex.addSubtype(curClass.getClassLoader(),
+							curClass.getName().replace('.', '/'),
+							rule.getBaseName());
+					if (InstrumentationFactory.getInstrumentation()
+							.isModifiableClass(curClass)) {
+						loaded.add(curClass);
+					}
+				}
+			}
+			subtypeRulesByOwner.put(owner, rule);
+			subtypeRules = subtypeRulesByOwner.values().toArray(
+					new SubtypeRule[subtypeRulesByOwner.size()]);
+		}
+		updatePrefilter();
+		scheduler.retransform(loaded).checkFailures();
+	}
+
+	/**
+	 * @param loader
+	 *            The defining loader of the classes to find, or null to find
+	 *            classes defined by any loader.
+	 */
+	private static List<Class<?>> findLoadedClasses(Class<?>[] candidates,
+			ClassLoader loader, Collection<String> internalNames) {
+		List<Class<?>> ret = new ArrayList<>();
+		for (Class<?> curClass : candidates) {
+			if ((loader == null || curClass.getClassLoader() == loader)
+					&& internalNames.contains(curClass.getName().replace('.',
+							'/'))) {
+				ret.add(curClass);
+			}
+		}
+		return ret;
+	}
+
+	private static void register(
+			ConcurrentMap<String, TransformerChain> transformersByName,
+			String internalName, Object owner, ClassFileTransformer transformer) {
+		while (true) {
+			TransformerChain chain = transformersByName.get(internalName);
+			if (chain == null) {
+				if (transformersByName.putIfAbsent(internalName,
+						TransformerChain.EMPTY.with(owner, transformer)) == null)
+					return;
+			} else if (transformersByName.replace(internalName, chain,
+					chain.with(owner, transformer))) {
+				return;
+			}
+		}
+	}
+
+	private static void register(Class<?> clazz, Object owner,
+			ClassFileTransformer transformer) {
+		AtomicReference<TransformerChain> slot = transformers.get(clazz);
+		while (true) {
+			TransformerChain chain = slot.get();
+			if (slot.compareAndSet(chain, chain.with(owner, transformer))) {
+				if (chain.isEmpty()) {
+					countTransformedClass(clazz, 1);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Counts a class of which the transformer chain became non-empty or
+	 * empty. A count may be negative for a moment, when the chain of a class
+	 * is emptied by one thread before another has counted its registration.
+	 * 
+	 * @return True if no class with the name has transformers anymore.
+	 */
+	private static boolean countTransformedClass(Class<?> clazz, int delta) {
+		String internalName = clazz.getName().replace('.', '/');
+		synchronized (transformedClassNames) {
+			Integer count = transformedClassNames.get(internalName);
+			int newCount = (count == null ? 0 : count) + delta;
+			if (newCount == 0) {
+				transformedClassNames.remove(internalName);
+				return true;
+			}
+			transformedClassNames.put(internalName, newCount);
+			return false;
+		}
+	}
+
+	/**
+	 * @return The number of bytes used to store the original class files of
+	 *         transformed classes, outside the heap. The class files of
+	 *         classes that were unloaded are included.
+	 */
+	public static long getPristineClassFileSize() {
+		return pristineClassFiles.size();
+	}
+
+	/**
+	 * Removes the transformers the owner registered for the given classes and
+	 * restores these classes. The transformers of other owners still apply. A
+	 * transformer registered without an owner is its own owner. A class of
+	 * which the original class file was stored when it was first
+	 * retransformed, is redefined from that class file. The remaining
+	 * registrations are applied to it in the same step, without
+	 * retransforming the class. Other classes are retransformed.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be restored
+	 */
+	public static void revert(Object owner, Collection<Class<?>> classes) {
+		List<Class<?>> changed = new ArrayList<>();
+		for (Class<?> curClass : classes) {
+			if (unregister(curClass, owner)) {
+				changed.add(curClass);
+			}
+		}
+		if (!changed.isEmpty()) {
+			updatePrefilter();
+		}
+		restore(changed);
+	}
+
+	/**
+	 * Removes all registrations of the given owners: their transformers for
+	 * classes, for class names in any loader, their rules and their subtype
+	 * rules. The loaded classes these applied to are restored, like
+	 * {@link #revert(Object, Collection)} does. Call this when the owners are
+	 * discarded, as their registrations keep them reachable otherwise.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be restored
+	 */
+	public static void removeOwners(Collection<?> owners) {
+		Set<String> names = new HashSet<>();
+		unregister(namedTransformers, owners, names);
+		for (ConcurrentMap<String, TransformerChain> curScoped : loaderTransformers
+				.values()) {
+			unregister(curScoped, owners, names);
+		}
+		List<ClassRule> removedRules = new ArrayList<>();
+		synchronized (rulesByOwner) {
+			for (Object curOwner : owners) {
+				ClassRule rule = rulesByOwner.remove(curOwner);
+				if (rule != null) {
+					removedRules.add(rule);
+				}
+			}
+			rules = rulesByOwner.values().toArray(
+					new ClassRule[rulesByOwner.size()]);
+		}
+		List<SubtypeRule> removedSubtypeRules = new ArrayList<>();
+		synchronized (subtypeRulesByOwner) {
+			for (Object curOwner : owners) {
+				SubtypeRule rule = subtypeRulesByOwner.remove(curOwner);
+				if (rule != null) {
+					removedSubtypeRules.add(rule);
+				}
+			}
+			subtypeRules = subtypeRulesByOwner.values().toArray(
+					new SubtypeRule[subtypeRulesByOwner.size()]);
 		}
-		transformersForClass.add(transformer);
-		retransform(clazz);
+		updatePrefilter();
+
+		List<Class<?>> changed = new ArrayList<>();
+		for (Class<?> curClass : InstrumentationFactory.getInstrumentation()
+				.getAllLoadedClasses()) {
+			String internalName = curClass.getName().replace('.', '/');
+			// only classes with a registration have a slot, do not create one
+			// for every loaded class
+			boolean registered = false;
+			if (transformedClassNames.containsKey(internalName)) {
+				for (Object curOwner : owners) {
+					registered |= unregister(curClass, curOwner);
+				}
+			}
+			if (registered || names.contains(internalName)
+					|| matchesAny(removedRules, internalName)
+					|| isSubtypeOfAny(removedSubtypeRules, curClass)) {
+				changed.add(curClass);
+			}
+		}
+		// the classes whose transformers were all removed are no longer
+		// accepted
+		updatePrefilter();
+		restore(changed);
+	}
+
+	private static boolean matchesAny(List<ClassRule> rules,
+			String internalName) {
+		for (ClassRule curRule : rules) {
+			if (internalName.startsWith(curRule.getPrefix())
+					&& curRule.matches(internalName))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isSubtypeOfAny(List<SubtypeRule> rules,
+			Class<?> clazz) {
+		for (SubtypeRule curRule : rules) {
+			if (curRule.isProperSubtype(clazz))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the transformers of the owner for the class, and the name of
+	 * the class from the transformed classes when none are left.
+	 * 
+	 * @return True if the owner had registered a transformer for the class.
+	 */
+	private static boolean unregister(Class<?> clazz, Object owner) {
+		AtomicReference<TransformerChain> slot = transformers.get(clazz);
+		while (true) {
+			TransformerChain chain = slot.get();
+			TransformerChain reverted = chain.without(owner);
+			if (reverted == chain)
+				return false;
+			if (slot.compareAndSet(chain, reverted)) {
+				if (reverted.isEmpty()) {
+					countTransformedClass(clazz, -1);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the transformers of the owners, adding the names of the classes
+	 * they were registered for to the given set.
+	 */
+	private static void unregister(
+			ConcurrentMap<String, TransformerChain> transformersByName,
+			Collection<?> owners, Set<String> names) {
+		for (String curName : transformersByName.keySet()) {
+			while (true) {
+				TransformerChain chain = transformersByName.get(curName);
+				if (chain == null)
+					break;
+				TransformerChain reverted = chain;
+				for (Object curOwner : owners) {
+					reverted = reverted.without(curOwner);
+				}
+				if (reverted == chain)
+					break;
+				if (reverted.isEmpty() ? transformersByName.remove(curName,
+						chain) : transformersByName.replace(curName, chain,
+						reverted)) {
+					names.add(curName);
+					break;
+				}
+			}
+		}
+	}
+
+	private static void restore(List<Class<?>> classes) {
+		List<ClassDefinition> definitions = new ArrayList<>();
+		List<Class<?>> others = new ArrayList<>();
+		for (Class<?> curClass : classes) {
+			byte[] original = pristineClassFiles.get(curClass);
+			if (original == null) {
+				others.add(curClass);
+			} else {
+				definitions.add(new ClassDefinition(curClass, original));
+			}
+		}
+		Map<Class<?>, Throwable> failures = redefineAll(definitions);
+		for (ClassDefinition curDefinition : definitions) {
+			Class<?> curClass = curDefinition.getDefinitionClass();
+			// the class is defined from its original class file again, which
+			// is also where a next retransformation starts
+			if (!failures.containsKey(curClass)
+					&& transformers.get(curClass).get().isEmpty()) {
+				pristineClassFiles.remove(curClass);
+			}
+		}
+		failures.putAll(scheduler.retransform(others).getFailures());
+		if (!failures.isEmpty()) {
+			throw new RetransformationException(failures);
+		}
+	}
+
+	/**
+	 * Redefines all classes with a single call, retrying every class on its
+	 * own when the batch fails, like {@link #retransformAll(Collection)}.
+	 * 
+	 * @return The classes that could not be redefined with their cause.
+	 */
+	private static Map<Class<?>, Throwable> redefineAll(
+			List<ClassDefinition> definitions) {
+		Map<Class<?>, Throwable> failures = new LinkedHashMap<>();
+		if (definitions.isEmpty())
+			return failures;
+
+		Instrumentation inst = InstrumentationFactory.getInstrumentation();
+		transformFailures.set(failures);
+		try {
+			try {
+				inst.redefineClasses(definitions
+						.toArray(new ClassDefinition[definitions.size()]));
+			} catch (ClassNotFoundException | UnmodifiableClassException
+					| RuntimeException | LinkageError e) {
+				for (ClassDefinition curDefinition : definitions) {
+					Class<?> curClass = curDefinition.getDefinitionClass();
+					if (failures.containsKey(curClass))
+						continue;
+					try {
+						inst.redefineClasses(curDefinition);
+					} catch (ClassNotFoundException
+							| UnmodifiableClassException | RuntimeException
+							| LinkageError ce) {
+						failures.put(curClass, ce);
+					}
+				}
+			}
+		} finally {
+			transformFailures.remove();
+		}
+		return failures;
 	}
 
 	public static void retransform(Class<?>... classes) {
@@ -118,4 +874,21 @@ public class AnnotatorAgent {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Retransforms all given classes with a single call to
+	 * {@link Instrumentation#retransformClasses(Class...)}. The JVM rejects the
+	 * entire batch when a single class fails, in which case every class is
+	 * retried on its own to find the culprits.
+	 * 
+	 * @throws RetransformationException
+	 *             if one or more of the classes could not be retransformed
+	 */
+	public static void retransformAll(Collection<Class<?>> classes) {
+		Map<Class<?>, Throwable> failures = new LinkedHashMap<>();
+		scheduler.retransformBatch(classes, failures);
+		if (!failures.isEmpty()) {
+			throw new RetransformationException(failures);
+		}
+	}
 }
\ No newline at end of file
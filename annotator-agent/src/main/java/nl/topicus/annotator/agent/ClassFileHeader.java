@@ -0,0 +1,140 @@
+package nl.topicus.annotator.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The name, superclass and interfaces of a class, read from its class file
+ * without parsing anything beyond the constant pool.
+ */
+public final class ClassFileHeader {
+	private static final String[] NO_NAMES = {};
+
+	private String name;
+	private String superName;
+	private String[] interfaceNames;
+
+	private ClassFileHeader(String name, String superName,
+			String[] interfaceNames) {
+		this.name = name;
+		this.superName = superName;
+		this.interfaceNames = interfaceNames;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not contain a valid class file header
+	 */
+	public static ClassFileHeader read(byte[] classfileBuffer) {
+		try {
+			if (u4(classfileBuffer, 0) != 0xCAFEBABE)
+				throw new IllegalArgumentException("Not a class file");
+			int count = u2(classfileBuffer, 8);
+			int[] offsets = new int[count];
+			int pos = 10;
+			for (int index = 1; index < count; index++) {
+				offsets[index] = pos;
+				int tag = classfileBuffer[pos] & 0xFF;
+				switch (tag) {
+				case 1:
+					pos += 3 + u2(classfileBuffer, pos + 1);
+					break;
+				case 7:
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					pos += 3;
+					break;
+				case 15:
+					pos += 4;
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					pos += 5;
+					break;
+				case 5:
+				case 6:
+					pos += 9;
+					index++;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown constant tag "
+							+ tag + " at " + pos);
+				}
+			}
+			String name = className(classfileBuffer, offsets,
+					u2(classfileBuffer, pos + 2));
+			String superName = className(classfileBuffer, offsets,
+					u2(classfileBuffer, pos + 4));
+			int interfaceCount = u2(classfileBuffer, pos + 6);
+			String[] interfaceNames = interfaceCount == 0 ? NO_NAMES
+					: new String[interfaceCount];
+			for (int index = 0; index < interfaceCount; index++) {
+				interfaceNames[index] = className(classfileBuffer, offsets,
+						u2(classfileBuffer, pos + 8 + 2 * index));
+			}
+			return new ClassFileHeader(name, superName, interfaceNames);
+		} catch (ArrayIndexOutOfBoundsException | IOException e) {
+			throw new IllegalArgumentException("Invalid class file", e);
+		}
+	}
+
+	private static String className(byte[] buffer, int[] offsets, int index)
+			throws IOException {
+		if (index == 0)
+			return null;
+		return utf8(buffer, offsets[u2(buffer, offsets[index] + 1)]);
+	}
+
+	private static String utf8(byte[] buffer, int offset) throws IOException {
+		int length = u2(buffer, offset + 1);
+		for (int index = offset + 3; index < offset + 3 + length; index++) {
+			if (buffer[index] < 0) {
+				return new DataInputStream(new ByteArrayInputStream(buffer,
+						offset + 1, length + 2)).readUTF();
+			}
+		}
+		return new String(buffer, offset + 3, length,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	private static int u2(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+	}
+
+	private static int u4(byte[] buffer, int offset) {
+		return (u2(buffer, offset) << 16) | u2(buffer, offset + 2);
+	}
+
+	/**
+	 * @return The internal name of the class.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The internal name of the superclass, null for
+	 *         <code>java/lang/Object</code>.
+	 */
+	public String getSuperName() {
+		return superName;
+	}
+
+	/**
+	 * @return The internal names of the interfaces the class directly
+	 *         implements.
+	 */
+	public String[] getInterfaceNames() {
+		return interfaceNames;
+	}
+}
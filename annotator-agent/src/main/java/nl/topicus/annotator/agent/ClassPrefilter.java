@@ -0,0 +1,108 @@
+package nl.topicus.annotator.agent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A compact, immutable summary of all registrations, used to reject classes
+ * that no transformer applies to before any map lookup or rule is evaluated.
+ * Exact names go into a Bloom filter, rule prefixes into a sorted array
+ * without nested prefixes. A class is rejected if its name is in neither.
+ * Subtype rules can only be evaluated on the class file, so they let every
+ * class through.
+ */
+final class ClassPrefilter {
+	static final ClassPrefilter EMPTY = new ClassPrefilter(
+			new ArrayList<String>(), new ArrayList<String>(), false);
+
+	private static final int BITS_PER_NAME = 10;
+
+	private final long[] bits;
+	private final int mask;
+	private final String[] prefixes;
+	private final boolean acceptAll;
+
+	ClassPrefilter(Collection<String> names, Collection<String> prefixes,
+			boolean acceptAll) {
+		int size = 64;
+		while (size < names.size() * BITS_PER_NAME) {
+			size <<= 1;
+		}
+		this.bits = new long[size >>> 6];
+		this.mask = size - 1;
+		for (String curName : names) {
+			int h1 = curName.hashCode();
+			int h2 = secondHash(h1);
+			set(h1);
+			set(h1 + h2);
+			set(h1 + 2 * h2);
+		}
+		this.prefixes = minimize(prefixes);
+		this.acceptAll = acceptAll || this.prefixes.length > 0
+				&& this.prefixes[0].isEmpty();
+	}
+
+	/**
+	 * Removes the prefixes that start with another prefix. The remaining
+	 * prefix that a name starts with is then the greatest prefix not greater
+	 * than the name.
+	 */
+	private static String[] minimize(Collection<String> prefixes) {
+		List<String> ret = new ArrayList<>();
+		for (String curPrefix : new TreeSet<>(prefixes)) {
+			if (ret.isEmpty() || !curPrefix.startsWith(ret.get(ret.size() - 1)))
+				ret.add(curPrefix);
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static int secondHash(int h1) {
+		int h = h1 * 0x9E3779B9;
+		return (h ^ (h >>> 16)) | 1;
+	}
+
+	private void set(int hash) {
+		int index = hash & mask;
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private boolean isSet(int hash) {
+		int index = hash & mask;
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * @param internalName
+	 *            The internal name of the class.
+	 * @return False if no registration applies to the class, true if one
+	 *         might.
+	 */
+	boolean mightMatch(String internalName) {
+		if (acceptAll)
+			return true;
+		int h1 = internalName.hashCode();
+		int h2 = secondHash(h1);
+		if (isSet(h1) && isSet(h1 + h2) && isSet(h1 + 2 * h2))
+			return true;
+		return matchesPrefix(internalName);
+	}
+
+	private boolean matchesPrefix(String internalName) {
+		int low = 0;
+		int high = prefixes.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = prefixes[mid].compareTo(internalName);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return high >= 0 && internalName.startsWith(prefixes[high]);
+	}
+}
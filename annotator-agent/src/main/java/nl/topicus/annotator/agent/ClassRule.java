@@ -0,0 +1,26 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+
+/**
+ * A transformer for all classes whose name matches a rule, rather than for a
+ * single class. Rules are evaluated when a class is defined or retransformed,
+ * so classes do not need to be loaded to be annotated.
+ */
+public interface ClassRule extends ClassFileTransformer {
+	/**
+	 * @return The prefix all internal class names matching this rule start
+	 *         with, for example <code>com/example/</code>. Classes that do not
+	 *         start with this prefix are skipped without calling
+	 *         {@link #matches(String)}.
+	 */
+	public String getPrefix();
+
+	/**
+	 * @param internalName
+	 *            The internal name of the class, for example
+	 *            <code>com/example/Service</code>.
+	 * @return True if this rule applies to the class.
+	 */
+	public boolean matches(String internalName);
+}
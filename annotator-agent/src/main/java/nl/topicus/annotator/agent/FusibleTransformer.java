@@ -0,0 +1,18 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+
+/**
+ * A {@link ClassFileTransformer} that can be fused with the transformer that
+ * follows it for the same class, so both are applied in a single pass over the
+ * class file.
+ */
+public interface FusibleTransformer extends ClassFileTransformer {
+	/**
+	 * @param next
+	 *            The transformer that would run after this one.
+	 * @return A transformer that has the same effect as running this
+	 *         transformer followed by next, or null if the two cannot be fused.
+	 */
+	public FusibleTransformer fuse(ClassFileTransformer next);
+}
@@ -0,0 +1,89 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map keyed by class loader identity that does not keep the
+ * loaders from being unloaded. Lookups do not block and do not allocate
+ * references. The bootstrap loader is represented by null.
+ */
+final class LoaderMap<V> {
+	private static final Object BOOTSTRAP = new Object();
+
+	private static final class WeakKey extends WeakReference<ClassLoader> {
+		private final int hash;
+
+		private WeakKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+			super(loader, queue);
+			hash = System.identityHashCode(loader);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			ClassLoader loader = get();
+			if (loader == null)
+				return false;
+			if (obj instanceof WeakKey)
+				return ((WeakKey) obj).get() == loader;
+			return obj instanceof LookupKey && ((LookupKey) obj).loader == loader;
+		}
+	}
+
+	private static final class LookupKey {
+		private final ClassLoader loader;
+
+		private LookupKey(ClassLoader loader) {
+			this.loader = loader;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(loader);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof WeakKey && ((WeakKey) obj).get() == loader;
+		}
+	}
+
+	private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+	V get(ClassLoader loader) {
+		return map.get(loader == null ? BOOTSTRAP : new LookupKey(loader));
+	}
+
+	/**
+	 * @return The value for the loader, after associating it with the given
+	 *         value if no value was present.
+	 */
+	V putIfAbsent(ClassLoader loader, V value) {
+		expungeStaleEntries();
+		V ret = map.putIfAbsent(loader == null ? BOOTSTRAP : new WeakKey(
+				loader, queue), value);
+		return ret == null ? value : ret;
+	}
+
+	Collection<V> values() {
+		return map.values();
+	}
+
+	private void expungeStaleEntries() {
+		Object key;
+		while ((key = queue.poll()) != null) {
+			map.remove(key);
+		}
+	}
+}
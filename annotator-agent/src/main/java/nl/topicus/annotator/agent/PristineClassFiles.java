@@ -0,0 +1,66 @@
+package nl.topicus.annotator.agent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The class files of transformed classes as they were before the first
+ * transformation. The bytes are kept in direct buffers, outside the heap, and
+ * the buffer of a class lives with the class, so it is released when the
+ * class is unloaded.
+ */
+final class PristineClassFiles {
+	private final ClassValue<AtomicReference<ByteBuffer>> classFiles = new ClassValue<AtomicReference<ByteBuffer>>() {
+		@Override
+		protected AtomicReference<ByteBuffer> computeValue(Class<?> type) {
+			return new AtomicReference<>();
+		}
+	};
+
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Stores the class file, unless one is stored for the class already.
+	 */
+	void capture(Class<?> clazz, byte[] classfileBuffer) {
+		AtomicReference<ByteBuffer> slot = classFiles.get(clazz);
+		if (slot.get() != null)
+			return;
+		ByteBuffer buffer = ByteBuffer
+				.allocateDirect(classfileBuffer.length);
+		buffer.put(classfileBuffer).flip();
+		if (slot.compareAndSet(null, buffer)) {
+			size.addAndGet(classfileBuffer.length);
+		}
+	}
+
+	/**
+	 * @return A copy of the stored class file, or null if none is stored.
+	 */
+	byte[] get(Class<?> clazz) {
+		ByteBuffer buffer = classFiles.get(clazz).get();
+		if (buffer == null)
+			return null;
+		byte[] ret = new byte[buffer.remaining()];
+		buffer.duplicate().get(ret);
+		return ret;
+	}
+
+	/**
+	 * Drops the stored class file, for a class that is no longer transformed.
+	 */
+	void remove(Class<?> clazz) {
+		ByteBuffer buffer = classFiles.get(clazz).getAndSet(null);
+		if (buffer != null) {
+			size.addAndGet(-buffer.capacity());
+		}
+	}
+
+	/**
+	 * @return The number of bytes stored.
+	 */
+	long size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,98 @@
+package nl.topicus.annotator.agent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the progress of a set of classes submitted to the
+ * {@link RetransformScheduler}.
+ */
+public class RetransformProgress {
+	private final int total;
+	private volatile int applied;
+	private volatile int chunks;
+	private final Map<Class<?>, Throwable> failures = new LinkedHashMap<>();
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	RetransformProgress(int total) {
+		this.total = total;
+	}
+
+	synchronized void chunkProcessed(int size, Map<Class<?>, Throwable> failed) {
+		failures.putAll(failed);
+		applied += size - failed.size();
+		chunks++;
+	}
+
+	void complete() {
+		done.countDown();
+	}
+
+	/**
+	 * @return The number of classes submitted.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return The number of classes retransformed successfully so far.
+	 */
+	public int getApplied() {
+		return applied;
+	}
+
+	/**
+	 * @return The number of classes that failed to retransform so far.
+	 */
+	public synchronized int getFailed() {
+		return failures.size();
+	}
+
+	/**
+	 * @return The number of retransform calls made so far.
+	 */
+	public int getChunks() {
+		return chunks;
+	}
+
+	public synchronized Map<Class<?>, Throwable> getFailures() {
+		return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+	}
+
+	/**
+	 * @return True if all submitted classes have been processed.
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	public boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * @throws RetransformationException
+	 *             if one or more of the classes failed to retransform
+	 */
+	public void checkFailures() {
+		Map<Class<?>, Throwable> failed = getFailures();
+		if (!failed.isEmpty()) {
+			throw new RetransformationException(failed);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return applied + "/" + total + " retransformed in " + chunks
+				+ " chunk(s), " + getFailed() + " failed";
+	}
+}
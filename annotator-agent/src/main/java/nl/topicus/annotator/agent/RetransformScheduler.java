@@ -0,0 +1,194 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransforms classes in chunks. Every retransformation pauses the JVM, so
+ * rather than retransforming all classes at once, the scheduler measures how
+ * long every chunk takes and adapts the size of the next chunk to stay within
+ * the pause budget. Only the retransformation of the entire chunk is
+ * measured, not the retries of its classes when it fails.
+ */
+public class RetransformScheduler {
+	/**
+	 * The chunk size is scaled to this fraction of the budget, to leave some
+	 * headroom for classes that are more expensive than average.
+	 */
+	private static final double BUDGET_FILL = 0.8;
+
+	private volatile int chunkSize;
+	private volatile int maxChunkSize = Integer.MAX_VALUE;
+	private volatile long pauseBudgetNanos;
+	private ExecutorService backgroundExecutor;
+
+	public RetransformScheduler(int chunkSize, long pauseBudget, TimeUnit unit) {
+		setChunkSize(chunkSize);
+		setPauseBudget(pauseBudget, unit);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = Math.min(chunkSize, maxChunkSize);
+	}
+
+	public int getMaxChunkSize() {
+		return maxChunkSize;
+	}
+
+	public void setMaxChunkSize(int maxChunkSize) {
+		if (maxChunkSize < 1)
+			throw new IllegalArgumentException(
+					"maxChunkSize must be positive");
+		this.maxChunkSize = maxChunkSize;
+		this.chunkSize = Math.min(chunkSize, maxChunkSize);
+	}
+
+	public long getPauseBudget(TimeUnit unit) {
+		return unit.convert(pauseBudgetNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void setPauseBudget(long pauseBudget, TimeUnit unit) {
+		if (pauseBudget <= 0)
+			throw new IllegalArgumentException("pauseBudget must be positive");
+		this.pauseBudgetNanos = unit.toNanos(pauseBudget);
+	}
+
+	/**
+	 * Retransforms the given classes on the calling thread and returns when
+	 * all chunks have been processed.
+	 */
+	public RetransformProgress retransform(Collection<Class<?>> classes) {
+		RetransformProgress progress = new RetransformProgress(classes.size());
+		run(new ArrayList<>(classes), progress);
+		return progress;
+	}
+
+	/**
+	 * Retransforms the given classes on a background thread. Use the returned
+	 * progress to find out when all classes have been processed.
+	 */
+	public RetransformProgress retransformInBackground(
+			Collection<Class<?>> classes) {
+		final List<Class<?>> pending = new ArrayList<>(classes);
+		final RetransformProgress progress = new RetransformProgress(
+				pending.size());
+		getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				RetransformScheduler.this.run(pending, progress);
+			}
+		});
+		return progress;
+	}
+
+	private synchronized ExecutorService getBackgroundExecutor() {
+		if (backgroundExecutor == null) {
+			backgroundExecutor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread ret = new Thread(r,
+									"annotator-retransform");
+							ret.setDaemon(true);
+							return ret;
+						}
+					});
+		}
+		return backgroundExecutor;
+	}
+
+	private void run(List<Class<?>> pending, RetransformProgress progress) {
+		try {
+			int index = 0;
+			while (index < pending.size()) {
+				int size = Math.min(chunkSize, pending.size() - index);
+				List<Class<?>> chunk = pending.subList(index, index + size);
+				index += size;
+				progress.chunkProcessed(size, retransformChunk(chunk));
+			}
+		} finally {
+			progress.complete();
+		}
+	}
+
+	private synchronized Map<Class<?>, Throwable> retransformChunk(
+			List<Class<?>> chunk) {
+		Map<Class<?>, Throwable> failures = new LinkedHashMap<>();
+		adaptChunkSize(chunk.size(), retransformBatch(chunk, failures));
+		return failures;
+	}
+
+	/**
+	 * Retransforms all given classes with a single call. The JVM rejects the
+	 * entire batch when a single class fails, in which case every class is
+	 * retried on its own to find the culprits.
+	 * 
+	 * @param failures
+	 *            The map the classes that could not be retransformed are put
+	 *            in, with their cause.
+	 * @return The duration of the call for the entire batch in nanoseconds.
+	 */
+	long retransformBatch(Collection<Class<?>> classes,
+			Map<Class<?>, Throwable> failures) {
+		if (classes.isEmpty())
+			return 0;
+
+		AnnotatorAgent.transformFailures.set(failures);
+		try {
+			long start = System.nanoTime();
+			try {
+				retransformClasses(classes.toArray(new Class<?>[classes
+						.size()]));
+				return System.nanoTime() - start;
+			} catch (UnmodifiableClassException | RuntimeException
+					| LinkageError e) {
+				long elapsed = System.nanoTime() - start;
+				for (Class<?> curClass : classes) {
+					if (failures.containsKey(curClass))
+						continue;
+					try {
+						retransformClasses(curClass);
+					} catch (UnmodifiableClassException | RuntimeException
+							| LinkageError ce) {
+						failures.put(curClass, ce);
+					}
+				}
+				return elapsed;
+			}
+		} finally {
+			AnnotatorAgent.transformFailures.remove();
+		}
+	}
+
+	/**
+	 * Retransforms the classes with a single call to the JVM. Tests override
+	 * this to simulate the duration and failures of a retransformation.
+	 */
+	protected void retransformClasses(Class<?>... classes)
+			throws UnmodifiableClassException {
+		InstrumentationFactory.getInstrumentation().retransformClasses(classes);
+	}
+
+	private void adaptChunkSize(int size, long elapsedNanos) {
+		long perClass = Math.max(1, elapsedNanos / size);
+		long fitting = (long) (pauseBudgetNanos * BUDGET_FILL / perClass);
+		// never more than double the size at once, a chunk that was fast by
+		// accident should not result in a huge pause for the next one
+		long next = Math.min(fitting, 2L * chunkSize);
+		chunkSize = (int) Math.max(1, Math.min(next, maxChunkSize));
+	}
+}
@@ -0,0 +1,40 @@
+package nl.topicus.annotator.agent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thrown when one or more classes of a batch could not be retransformed. The
+ * failures are reported per class, the other classes of the batch have been
+ * retransformed successfully.
+ */
+public class RetransformationException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private Map<Class<?>, Throwable> failures;
+
+	public RetransformationException(Map<Class<?>, Throwable> failures) {
+		super(createMessage(failures), failures.isEmpty() ? null : failures
+				.values().iterator().next());
+		this.failures = Collections
+				.unmodifiableMap(new LinkedHashMap<>(failures));
+	}
+
+	private static String createMessage(Map<Class<?>, Throwable> failures) {
+		StringBuilder ret = new StringBuilder("Retransformation of ")
+				.append(failures.size()).append(" class(es) failed:");
+		for (Map.Entry<Class<?>, Throwable> curFailure : failures.entrySet()) {
+			ret.append("\n\t").append(curFailure.getKey().getName())
+					.append(": ").append(curFailure.getValue());
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * @return The classes that failed to retransform with their cause.
+	 */
+	public Map<Class<?>, Throwable> getFailures() {
+		return failures;
+	}
+}
@@ -0,0 +1,34 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+
+/**
+ * A transformer for all subtypes of a base type.
+ */
+final class SubtypeRule {
+	private final Class<?> base;
+	private final String baseName;
+	private final ClassFileTransformer transformer;
+
+	SubtypeRule(Class<?> base, ClassFileTransformer transformer) {
+		this.base = base;
+		this.baseName = base.getName().replace('.', '/');
+		this.transformer = transformer;
+	}
+
+	Class<?> getBase() {
+		return base;
+	}
+
+	String getBaseName() {
+		return baseName;
+	}
+
+	ClassFileTransformer getTransformer() {
+		return transformer;
+	}
+
+	boolean isProperSubtype(Class<?> clazz) {
+		return clazz != base && base.isAssignableFrom(clazz);
+	}
+}
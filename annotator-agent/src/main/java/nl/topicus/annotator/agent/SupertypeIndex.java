@@ -0,0 +1,138 @@
+package nl.topicus.annotator.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records which of the base types of the {@link SubtypeRule}s a type extends.
+ * Subtypes are recorded when a rule is registered and as they are defined.
+ * Supertypes of a class being defined that are not in the index are resolved
+ * by reading their class file headers through the loader, as loading them from
+ * within a transformer would skip their own transformation. Only these
+ * supertypes are recorded as not extending a base type, which keeps the index
+ * small. Names are only unique within a loader, so the types are recorded per
+ * loader that resolved them.
+ */
+final class SupertypeIndex {
+	private static final String[] NO_BASES = {};
+
+	private static final class Index {
+		private final ConcurrentMap<String, String[]> subtypes = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String, String[]> nonSubtypes = new ConcurrentHashMap<>();
+	}
+
+	private final LoaderMap<Index> indexes = new LoaderMap<>();
+
+	private Index getIndex(ClassLoader loader) {
+		Index ret = indexes.get(loader);
+		return ret == null ? indexes.putIfAbsent(loader, new Index()) : ret;
+	}
+
+	void addSubtype(ClassLoader loader, String internalName, String baseName) {
+		add(getIndex(loader).subtypes, internalName, baseName);
+	}
+
+	private static void add(ConcurrentMap<String, String[]> index,
+			String internalName, String baseName) {
+		while (true) {
+			String[] bases = index.get(internalName);
+			if (bases == null) {
+				if (index.putIfAbsent(internalName, new String[] { baseName }) == null)
+					return;
+			} else {
+				if (contains(bases, baseName))
+					return;
+				String[] newBases = Arrays.copyOf(bases, bases.length + 1);
+				newBases[bases.length] = baseName;
+				if (index.replace(internalName, bases, newBases))
+					return;
+			}
+		}
+	}
+
+	private static boolean contains(String[] bases, String baseName) {
+		for (String curBase : bases) {
+			if (curBase.equals(baseName))
+				return true;
+		}
+		return false;
+	}
+
+	private static String[] get(ConcurrentMap<String, String[]> index,
+			String internalName) {
+		String[] ret = index.get(internalName);
+		return ret == null ? NO_BASES : ret;
+	}
+
+	/**
+	 * Determines whether a class that is being defined is a proper subtype of
+	 * the base type of the rule, and records it if it is.
+	 */
+	boolean isSubtype(ClassLoader loader, ClassFileHeader header,
+			SubtypeRule rule) {
+		if (header.getName().equals(rule.getBaseName()))
+			return false;
+		boolean ret = extendsBase(loader, header, rule);
+		if (ret) {
+			addSubtype(loader, header.getName(), rule.getBaseName());
+		}
+		return ret;
+	}
+
+	private boolean extendsBase(ClassLoader loader, ClassFileHeader header,
+			SubtypeRule rule) {
+		if (isSubtype(loader, header.getSuperName(), rule))
+			return true;
+		if (rule.getBase().isInterface()) {
+			for (String curInterface : header.getInterfaceNames()) {
+				if (isSubtype(loader, curInterface, rule))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSubtype(ClassLoader loader, String supertype,
+			SubtypeRule rule) {
+		if (supertype == null || supertype.equals("java/lang/Object"))
+			return false;
+		Index index = getIndex(loader);
+		if (supertype.equals(rule.getBaseName())
+				|| contains(get(index.subtypes, supertype), rule.getBaseName()))
+			return true;
+		if (contains(get(index.nonSubtypes, supertype), rule.getBaseName()))
+			return false;
+
+		ClassFileHeader header = readHeader(loader, supertype);
+		if (header == null)
+			return false;
+		boolean ret = extendsBase(loader, header, rule);
+		add(ret ? index.subtypes : index.nonSubtypes, supertype,
+				rule.getBaseName());
+		return ret;
+	}
+
+	private static ClassFileHeader readHeader(ClassLoader loader,
+			String internalName) {
+		String resource = internalName + ".class";
+		try (InputStream in = loader == null ? ClassLoader
+				.getSystemResourceAsStream(resource) : loader
+				.getResourceAsStream(resource)) {
+			if (in == null)
+				return null;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			return ClassFileHeader.read(out.toByteArray());
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
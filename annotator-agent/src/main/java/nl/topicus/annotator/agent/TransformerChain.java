@@ -0,0 +1,74 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transformers registered for a single class, keyed by their owner. A
+ * chain is immutable, registering a transformer creates a new chain. Adjacent
+ * {@link FusibleTransformer}s are fused when the chain is created, so applying
+ * the chain does not parse and write the class once for every owner.
+ */
+final class TransformerChain {
+	static final TransformerChain EMPTY = new TransformerChain(
+			Collections.<Object, ClassFileTransformer> emptyMap());
+
+	private final Map<Object, ClassFileTransformer> transformers;
+	private final ClassFileTransformer[] plan;
+
+	private TransformerChain(Map<Object, ClassFileTransformer> transformers) {
+		this.transformers = transformers;
+		this.plan = createPlan(transformers.values());
+	}
+
+	private static ClassFileTransformer[] createPlan(
+			Iterable<ClassFileTransformer> transformers) {
+		List<ClassFileTransformer> ret = new ArrayList<>();
+		for (ClassFileTransformer curTransformer : transformers) {
+			int last = ret.size() - 1;
+			if (last >= 0 && ret.get(last) instanceof FusibleTransformer) {
+				FusibleTransformer fused = ((FusibleTransformer) ret.get(last))
+						.fuse(curTransformer);
+				if (fused != null) {
+					ret.set(last, fused);
+					continue;
+				}
+			}
+			ret.add(curTransformer);
+		}
+		return ret.toArray(new ClassFileTransformer[ret.size()]);
+	}
+
+	TransformerChain with(Object owner, ClassFileTransformer transformer) {
+		Map<Object, ClassFileTransformer> newTransformers = new LinkedHashMap<>(
+				transformers);
+		newTransformers.put(owner, transformer);
+		return new TransformerChain(newTransformers);
+	}
+
+	TransformerChain without(Object owner) {
+		if (!transformers.containsKey(owner))
+			return this;
+		Map<Object, ClassFileTransformer> newTransformers = new LinkedHashMap<>(
+				transformers);
+		newTransformers.remove(owner);
+		return newTransformers.isEmpty() ? EMPTY : new TransformerChain(
+				newTransformers);
+	}
+
+	boolean isEmpty() {
+		return plan.length == 0;
+	}
+
+	/**
+	 * @return The transformers to apply, in order, with all fusible
+	 *         transformers fused.
+	 */
+	ClassFileTransformer[] getPlan() {
+		return plan;
+	}
+}
@@ -0,0 +1,18 @@
+package nl.topicus.annotator.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+
+/**
+ * A {@link ClassFileTransformer} that only applies to some versions of a
+ * class. The agent decides on the class file the JVM passed to it, before any
+ * other transformer changed it, and skips the transformer for the versions it
+ * does not accept.
+ */
+public interface VersionedTransformer extends ClassFileTransformer {
+	/**
+	 * @param originalClassFile
+	 *            The class file as the JVM passed it to the agent.
+	 * @return True if the transformer applies to this version of the class.
+	 */
+	public boolean accepts(String className, byte[] originalClassFile);
+}
@@ -0,0 +1,54 @@
+package nl.topicus.annotator.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ParseArguments {
+	private static Map<String, String> map(String... keysAndValues) {
+		Map<String, String> ret = new LinkedHashMap<>();
+		for (int index = 0; index < keysAndValues.length; index += 2) {
+			ret.put(keysAndValues[index], keysAndValues[index + 1]);
+		}
+		return ret;
+	}
+
+	@Test
+	public void noArguments() {
+		for (String curArgs : Arrays.asList(null, "", " ", ",", " , ,")) {
+			assertTrue(String.valueOf(curArgs), AnnotatorAgent
+					.parseArguments(curArgs).isEmpty());
+		}
+	}
+
+	@Test
+	public void keysAndValues() {
+		assertEquals(map("cache", "/tmp/cache", "verbose", ""),
+				AnnotatorAgent.parseArguments("cache=/tmp/cache,verbose"));
+		assertEquals(map("cache", "/tmp/cache", "verbose", ""),
+				AnnotatorAgent
+						.parseArguments(" cache = /tmp/cache , verbose= "));
+	}
+
+	@Test
+	public void valueWithSeparator() {
+		assertEquals(map("spec", "a=b"),
+				AnnotatorAgent.parseArguments("spec=a=b"));
+	}
+
+	@Test
+	public void malformedArguments() {
+		// values without a key and empty arguments are skipped
+		assertEquals(map("first", "1", "second", "2"),
+				AnnotatorAgent
+						.parseArguments("=orphan,first=1,,second=2, =x"));
+		// the last value of a key wins
+		assertEquals(map("key", "2"),
+				AnnotatorAgent.parseArguments("key=1,key=2"));
+	}
+}
@@ -0,0 +1,85 @@
+package nl.topicus.annotator.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PrefilterClasses {
+	private static ClassPrefilter prefilter(List<String> names,
+			List<String> prefixes) {
+		return new ClassPrefilter(names, prefixes, false);
+	}
+
+	@Test
+	public void rejectAllWhenEmpty() {
+		assertFalse(ClassPrefilter.EMPTY.mightMatch("java/lang/String"));
+		assertFalse(ClassPrefilter.EMPTY.mightMatch(""));
+	}
+
+	@Test
+	public void acceptNames() {
+		ClassPrefilter prefilter = prefilter(
+				Arrays.asList("com/example/First", "com/example/Second"),
+				Collections.<String> emptyList());
+		assertTrue(prefilter.mightMatch("com/example/First"));
+		assertTrue(prefilter.mightMatch("com/example/Second"));
+		assertFalse(prefilter.mightMatch("com/example/Third"));
+	}
+
+	@Test
+	public void acceptPrefixes() {
+		ClassPrefilter prefilter = prefilter(Collections.<String> emptyList(),
+				Arrays.asList("com/example/", "com/example/nested/",
+						"org/other/Named"));
+		assertTrue(prefilter.mightMatch("com/example/Any"));
+		// covered by the shorter prefix, which remains after minimizing
+		assertTrue(prefilter.mightMatch("com/example/nested/Any"));
+		assertTrue(prefilter.mightMatch("org/other/Named"));
+		assertTrue(prefilter.mightMatch("org/other/NamedToo"));
+		assertFalse(prefilter.mightMatch("com/examples/Any"));
+		assertFalse(prefilter.mightMatch("org/other/Name"));
+		// sorts between the prefixes
+		assertFalse(prefilter.mightMatch("net/Any"));
+		assertFalse(prefilter.mightMatch("aaa/Any"));
+		assertFalse(prefilter.mightMatch("zzz/Any"));
+	}
+
+	@Test
+	public void acceptAll() {
+		assertTrue(new ClassPrefilter(Collections.<String> emptyList(),
+				Collections.<String> emptyList(), true)
+				.mightMatch("java/lang/String"));
+		// the empty prefix matches every name
+		assertTrue(prefilter(Collections.<String> emptyList(),
+				Arrays.asList("com/example/", "")).mightMatch(
+				"java/lang/String"));
+	}
+
+	@Test
+	public void fewFalsePositives() {
+		List<String> names = new ArrayList<>();
+		for (int index = 0; index < 1000; index++) {
+			names.add("com/example/Registered" + index);
+		}
+		ClassPrefilter prefilter = prefilter(names,
+				Collections.<String> emptyList());
+		for (String curName : names) {
+			assertTrue(prefilter.mightMatch(curName));
+		}
+		int falsePositives = 0;
+		for (int index = 0; index < 10000; index++) {
+			if (prefilter.mightMatch("com/example/Other" + index)) {
+				falsePositives++;
+			}
+		}
+		// three hashes and ten bits per name give about 1%
+		assertTrue("false positives: " + falsePositives,
+				falsePositives < 300);
+	}
+}
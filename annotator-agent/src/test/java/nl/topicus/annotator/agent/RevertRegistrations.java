@@ -0,0 +1,76 @@
+package nl.topicus.annotator.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevertRegistrations {
+	public static class RevertedClass {
+	}
+
+	public static class RemovedClass {
+	}
+
+	private static class NoopTransformer implements ClassFileTransformer {
+		@Override
+		public byte[] transform(ClassLoader loader, String className,
+				Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			return null;
+		}
+	}
+
+	@Before
+	public void loadAgent() {
+		AnnotatorAgent.loadDynamicAgent();
+	}
+
+	private static Map<Class<?>, ClassFileTransformer> transformer(
+			Class<?> clazz) {
+		return Collections.<Class<?>, ClassFileTransformer> singletonMap(
+				clazz, new NoopTransformer());
+	}
+
+	private static String internalName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+
+	@Test
+	public void forgetRevertedClass() {
+		Object first = new Object();
+		Object second = new Object();
+		AnnotatorAgent.addAnnotations(first, transformer(RevertedClass.class));
+		AnnotatorAgent.addAnnotations(second, transformer(RevertedClass.class));
+		String name = internalName(RevertedClass.class);
+		assertTrue(AnnotatorAgent.isTransformedClass(name));
+
+		AnnotatorAgent.revert(first,
+				Collections.<Class<?>> singleton(RevertedClass.class));
+		assertTrue(AnnotatorAgent.isTransformedClass(name));
+		AnnotatorAgent.revert(second,
+				Collections.<Class<?>> singleton(RevertedClass.class));
+		assertFalse(AnnotatorAgent.isTransformedClass(name));
+	}
+
+	@Test
+	public void forgetClassOfRemovedOwners() {
+		Object first = new Object();
+		Object second = new Object();
+		AnnotatorAgent.addAnnotations(first, transformer(RemovedClass.class));
+		AnnotatorAgent.addAnnotations(second, transformer(RemovedClass.class));
+		String name = internalName(RemovedClass.class);
+
+		AnnotatorAgent.removeOwners(Collections.singleton(first));
+		assertTrue(AnnotatorAgent.isTransformedClass(name));
+		AnnotatorAgent.removeOwners(Arrays.asList(second));
+		assertFalse(AnnotatorAgent.isTransformedClass(name));
+	}
+}
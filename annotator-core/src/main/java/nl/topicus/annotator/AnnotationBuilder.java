@@ -22,6 +22,7 @@ import nl.topicus.annotator.impl.StubMethodHandler;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.FluentIterable;
+import com.google.common.primitives.Primitives;
 
 public abstract class AnnotationBuilder<A extends Annotation> {
 	private static final Method ANNOTATION_TYPE_METHOD;
@@ -80,6 +81,26 @@ public abstract class AnnotationBuilder<A extends Annotation> {
 
 	public abstract void setup(A ann);
 
+	/**
+	 * @return A new builder for the same annotation type with the same values.
+	 */
+	public AnnotationBuilder<A> copy() {
+		AnnotationBuilder<A> ret = of(annotationClass);
+		ret.implicitValues.putAll(implicitValues);
+		ret.explicitValues.putAll(explicitValues);
+		return ret;
+	}
+
+	/**
+	 * @return A copy of the base builder with the explicit values of this
+	 *         builder set on it.
+	 */
+	AnnotationBuilder<A> mergeOnto(AnnotationBuilder<A> base) {
+		AnnotationBuilder<A> ret = base.copy();
+		ret.explicitValues.putAll(explicitValues);
+		return ret;
+	}
+
 	public void baseOn(A base) {
 		try {
 			for (Method curProperty : annotationClass.getDeclaredMethods()) {
@@ -110,6 +131,29 @@ public abstract class AnnotationBuilder<A extends Annotation> {
 		return this;
 	}
 
+	/**
+	 * Sets the value of the member with the given name. Use this method when
+	 * the member is not known at compile time.
+	 */
+	public AnnotationBuilder<A> setValue(String memberName, Object value) {
+		if (value == null)
+			throw new NullPointerException("value cannot be null");
+		try {
+			Method member = annotationClass.getDeclaredMethod(memberName);
+			if (!Primitives.wrap(member.getReturnType()).isInstance(value)) {
+				throw new IllegalArgumentException(value + " is not a valid "
+						+ "value for @" + annotationClass.getSimpleName() + "."
+						+ memberName);
+			}
+			explicitValues.put(member, value);
+			return this;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("@"
+					+ annotationClass.getSimpleName()
+					+ " does not define the attribute " + memberName, e);
+		}
+	}
+
 	public Object getValue(Method method) {
 		Object ret = explicitValues.get(method);
 		return ret == null ? implicitValues.get(method) : ret;
@@ -190,6 +234,19 @@ public abstract class AnnotationBuilder<A extends Annotation> {
 		return ret;
 	}
 
+	/**
+	 * @return The values that were set explicitly, without the defaults and
+	 *         the values of the annotation the builder is based on.
+	 */
+	public Map<String, Object> explicitValues() {
+		Map<String, Object> ret = new TreeMap<>();
+		for (Map.Entry<Method, Object> curValue : explicitValues.entrySet()) {
+			ret.put(curValue.getKey().getName(),
+					convertValue(curValue.getValue()));
+		}
+		return ret;
+	}
+
 	private Object convertValue(Object value) {
 		if (value instanceof Class)
 			return ((Class<?>) value).getName();
@@ -1,36 +1,71 @@
 package nl.topicus.annotator;
 
+import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Member;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javassist.util.proxy.RuntimeSupport;
 import nl.topicus.annotator.agent.AnnotatorAgent;
 import nl.topicus.annotator.impl.AnnotationMutator;
 import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ChecksumClassFileTransformer;
+import nl.topicus.annotator.impl.ClassFiles;
+import nl.topicus.annotator.impl.ClassPattern;
 import nl.topicus.annotator.impl.ClassAnnotationCreator;
 import nl.topicus.annotator.impl.MethodAnnotationCreator;
+import nl.topicus.annotator.impl.MethodPattern;
+import nl.topicus.annotator.impl.MethodPatternAnnotationCreator;
+import nl.topicus.annotator.impl.RuleClassFileTransformer;
+import nl.topicus.annotator.spec.OverlaySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 
 public class Annotator {
 	private static class AnnotationContainer<A extends Annotation> {
 		private AnnotatedElement element;
 		private AnnotationBuilder<A> builder;
+		/**
+		 * True if only the explicit values of the builder are merged into the
+		 * annotation the element has.
+		 */
+		private boolean merge;
 
 		private AnnotationContainer(AnnotatedElement element,
-				AnnotationBuilder<A> builder) {
+				AnnotationBuilder<A> builder, boolean merge) {
 			this.element = element;
 			this.builder = builder;
+			this.merge = merge;
 		}
 
 		public Class<?> getDeclaringClass() {
@@ -49,21 +84,200 @@ public class Annotator {
 			return builder;
 		}
 
+		public boolean isMerge() {
+			return merge;
+		}
+
+		/**
+		 * @return The builder of the annotation the element gets. For a merge
+		 *         this is based on the annotation the element has now.
+		 */
+		public AnnotationBuilder<A> getEffectiveBuilder() {
+			if (!merge)
+				return builder;
+			AnnotationBuilder<A> ret = builder.copy();
+			A current = currentElement().getAnnotation(getAnnotationType());
+			if (current != null) {
+				ret.baseOn(current);
+			}
+			return ret;
+		}
+
+		private Map<String, Object> getValues() {
+			return merge ? builder.explicitValues() : builder.values();
+		}
+
 		public AnnotationMutator getMutator() {
-			String name = builder.annotationType().getName();
-			Map<String, Object> values = builder.values();
+			Class<? extends Annotation> type = builder.annotationType();
+			Map<String, Object> values = getValues();
 			if (element instanceof Class) {
-				return new ClassAnnotationCreator(name, values);
+				return new ClassAnnotationCreator(type, values, merge);
 			} else if (element instanceof Method) {
-				return new MethodAnnotationCreator((Method) element, name,
-						values);
+				Method method = (Method) element;
+				return new MethodAnnotationCreator(method.getName(),
+						RuntimeSupport.makeDescriptor(method), type, values,
+						merge);
 			}
 			throw new IllegalStateException(element.getClass().getName());
 		}
+
+		/**
+		 * @return True if the element already has the annotation with the
+		 *         values of the builder, so applying it changes nothing.
+		 */
+		public boolean isEffective() {
+			A current = declaredAnnotation(currentElement(),
+					getAnnotationType());
+			if (current == null)
+				return false;
+			AnnotationBuilder<A> currentValues = AnnotationBuilder
+					.of(getAnnotationType());
+			try {
+				currentValues.baseOn(current);
+			} catch (RuntimeException e) {
+				// a value refers to a type that cannot be loaded
+				return false;
+			}
+			if (merge) {
+				return currentValues.values().entrySet()
+						.containsAll(getValues().entrySet());
+			}
+			return currentValues.values().equals(getValues());
+		}
+
+		/**
+		 * @return The element as it is now. A method caches its annotations,
+		 *         so it is looked up again to see the retransformed class.
+		 */
+		private AnnotatedElement currentElement() {
+			if (element instanceof Method) {
+				Method method = (Method) element;
+				try {
+					return method.getDeclaringClass().getDeclaredMethod(
+							method.getName(), method.getParameterTypes());
+				} catch (NoSuchMethodException e) {
+					return element;
+				}
+			}
+			return element;
+		}
+	}
+
+	private static class NamedAnnotationContainer<A extends Annotation> {
+		private String methodName;
+		private String descriptor;
+		private AnnotationBuilder<A> builder;
+
+		private NamedAnnotationContainer(String methodName,
+				String descriptor, AnnotationBuilder<A> builder) {
+			this.methodName = methodName;
+			this.descriptor = descriptor;
+			this.builder = builder;
+		}
+
+		public boolean isFor(String otherMethodName, String otherDescriptor,
+				Class<? extends Annotation> annotationClass) {
+			return Objects.equal(methodName, otherMethodName)
+					&& Objects.equal(descriptor, otherDescriptor)
+					&& builder.annotationType().equals(annotationClass);
+		}
+
+		public AnnotationMutator getMutator() {
+			Class<? extends Annotation> type = builder.annotationType();
+			Map<String, Object> values = builder.values();
+			if (methodName == null) {
+				return new ClassAnnotationCreator(type, values, false);
+			}
+			return new MethodAnnotationCreator(methodName, descriptor, type,
+					values, false);
+		}
+
+		public OverlaySpec.Entry toEntry(String className) {
+			return new OverlaySpec.Entry(className, methodName, descriptor,
+					builder);
+		}
+	}
+
+	private static class RuleContainer<A extends Annotation> {
+		private MethodPattern methodPattern;
+		private AnnotationBuilder<A> builder;
+
+		private RuleContainer(MethodPattern methodPattern,
+				AnnotationBuilder<A> builder) {
+			this.methodPattern = methodPattern;
+			this.builder = builder;
+		}
+
+		public boolean isFor(MethodPattern otherMethodPattern,
+				Class<? extends Annotation> annotationClass) {
+			return Objects.equal(String.valueOf(methodPattern),
+					String.valueOf(otherMethodPattern))
+					&& builder.annotationType().equals(annotationClass);
+		}
+
+		public AnnotationMutator getMutator() {
+			Class<? extends Annotation> type = builder.annotationType();
+			Map<String, Object> values = builder.values();
+			if (methodPattern == null) {
+				return new ClassAnnotationCreator(type, values, false);
+			}
+			return new MethodPatternAnnotationCreator(methodPattern, type,
+					values);
+		}
 	}
 
 	private static final Logger log = LoggerFactory.getLogger(Annotator.class);
 
+	/**
+	 * Batches with fewer classes are transformed during the retransformation
+	 * itself, precomputing them is not worth the overhead.
+	 */
+	private static final int PRECOMPUTE_THRESHOLD = 4;
+
+	private static final ExecutorService precomputeExecutor = new ForkJoinPool();
+
+	private static volatile boolean recording;
+
+	/**
+	 * The annotators that processed annotations while recording was enabled.
+	 */
+	private static final Set<Annotator> recordedAnnotators = Collections
+			.newSetFromMap(new WeakHashMap<Annotator, Boolean>());
+
+	/**
+	 * Enables or disables the recording of annotators. While recording is
+	 * enabled, every annotator that {@link #process() processes} annotations
+	 * is remembered, so its annotations can be written with
+	 * {@link #getOverlays()} and applied when the classes are defined on the
+	 * next start.
+	 */
+	public static void setRecording(boolean recording) {
+		Annotator.recording = recording;
+	}
+
+	public static boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * @return The annotators that processed annotations while recording was
+	 *         enabled and are still in use.
+	 */
+	public static List<Annotator> getRecordedAnnotators() {
+		synchronized (recordedAnnotators) {
+			return new ArrayList<>(recordedAnnotators);
+		}
+	}
+
+	private static <A extends Annotation> A declaredAnnotation(
+			AnnotatedElement element, Class<A> annotationClass) {
+		for (Annotation curAnnotation : element.getDeclaredAnnotations()) {
+			if (curAnnotation.annotationType().equals(annotationClass))
+				return annotationClass.cast(curAnnotation);
+		}
+		return null;
+	}
+
 	private static Class<?> declaringClass(AnnotatedElement element) {
 		if (element instanceof Member)
 			return ((Member) element).getDeclaringClass();
@@ -73,14 +287,217 @@ public class Annotator {
 	private Multimap<Class<?>, AnnotationContainer<?>> annotations = HashMultimap
 			.create();
 
+	/**
+	 * The declaring classes whose annotations changed since the last call to
+	 * {@link #process()}.
+	 */
+	private Set<Class<?>> dirtyClasses = new LinkedHashSet<>();
+
+	/**
+	 * The classes annotations were removed from since the last call to
+	 * {@link #process()}. These are retransformed even if their remaining
+	 * annotations are unchanged.
+	 */
+	private Set<Class<?>> removedFromClasses = new HashSet<>();
+
+	private Multimap<String, NamedAnnotationContainer<?>> namedAnnotations = HashMultimap
+			.create();
+
+	private Set<String> dirtyClassNames = new LinkedHashSet<>();
+
+	/**
+	 * The checksums the class files of classes annotated by name must have,
+	 * by class name.
+	 */
+	private Map<String, Long> checksums = new HashMap<>();
+
+	private Multimap<ClassPattern, RuleContainer<?>> rules = LinkedHashMultimap
+			.create();
+
+	private Set<ClassPattern> dirtyRules = new LinkedHashSet<>();
+
+	private Multimap<Class<?>, RuleContainer<?>> subtypeRules = LinkedHashMultimap
+			.create();
+
+	private Set<Class<?>> dirtySubtypeBases = new LinkedHashSet<>();
+
+	/**
+	 * The loader the classes annotated by name must be defined by, null for
+	 * any loader. The agent keeps the annotator as long as the loader lives,
+	 * so the loader is referenced weakly to not keep it from being unloaded.
+	 */
+	private WeakReference<ClassLoader> loader;
+
+	private final AtomicInteger skippedRetransformations = new AtomicInteger();
+
 	public Annotator() {
 		AnnotatorAgent.loadDynamicAgent();
 	}
 
+	/**
+	 * Creates an annotator whose annotations by class name only apply to the
+	 * classes defined by the given loader. Use this when several loaders define
+	 * classes with the same name, for example the web applications in an
+	 * application server. Only the classes of this loader are searched and
+	 * retransformed.
+	 */
+	public Annotator(ClassLoader loader) {
+		this();
+		this.loader = new WeakReference<>(Preconditions.checkNotNull(loader));
+	}
+
+	/**
+	 * Removes all annotations of this annotator, including those by name and
+	 * by rule, and restores the classes that are already loaded. Use this
+	 * when the annotator is discarded, for example when the application it
+	 * belongs to is undeployed.
+	 */
+	public void unregister() {
+		List<Object> owners = new ArrayList<>();
+		owners.add(this);
+		for (ClassPattern curPattern : rules.keySet()) {
+			owners.add(Arrays.asList(this, curPattern));
+		}
+		for (Class<?> curBase : subtypeRules.keySet()) {
+			owners.add(Arrays.asList(this, curBase));
+		}
+		AnnotatorAgent.removeOwners(owners);
+	}
+
+	/**
+	 * @return The number of classes {@link #process()} did not retransform,
+	 *         because they already had all annotations registered for them.
+	 */
+	public int getSkippedRetransformations() {
+		return skippedRetransformations.get();
+	}
+
 	public <T> ClassAnnotator<T> annotate(Class<T> clazz) {
 		return new ClassAnnotator<>(clazz, this);
 	}
 
+	/**
+	 * Annotates a class by its binary name. The class does not need to be
+	 * loaded, the annotations are added when it is defined.
+	 */
+	public NamedClassAnnotator annotate(String className) {
+		return new NamedClassAnnotator(className, this);
+	}
+
+	/**
+	 * Annotates all classes matching the pattern, see {@link ClassPattern}. The
+	 * pattern is evaluated when classes are defined, so no classes are loaded
+	 * to find the matching ones.
+	 */
+	public RuleAnnotator annotateMatching(String classPattern) {
+		return new RuleAnnotator(new ClassPattern(classPattern), this);
+	}
+
+	/**
+	 * Annotates all subtypes of the given class or interface, both the ones
+	 * that are already loaded and the ones that are defined later. The base
+	 * type itself is not annotated.
+	 */
+	public SubtypeAnnotator annotateSubtypesOf(Class<?> base) {
+		return new SubtypeAnnotator(base, this);
+	}
+
+	/**
+	 * Registers an annotation for all classes matching the pattern, or for the
+	 * methods of these classes matching the method pattern.
+	 * 
+	 * @param methodPattern
+	 *            The pattern of the methods, or null to annotate the classes.
+	 */
+	public <A extends Annotation> void addRule(ClassPattern classPattern,
+			MethodPattern methodPattern, AnnotationBuilder<A> builder) {
+		builder.assertComplete();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Registering addition of " + builder.build()
+					+ " to classes matching " + classPattern
+					+ (methodPattern == null ? "" : "." + methodPattern));
+		}
+		putRule(rules, classPattern, methodPattern, builder);
+		dirtyRules.add(classPattern);
+	}
+
+	/**
+	 * Registers an annotation for all subtypes of the base type, or for the
+	 * methods of these subtypes matching the method pattern.
+	 * 
+	 * @param methodPattern
+	 *            The pattern of the methods, or null to annotate the classes.
+	 */
+	public <A extends Annotation> void addSubtypeRule(Class<?> base,
+			MethodPattern methodPattern, AnnotationBuilder<A> builder) {
+		builder.assertComplete();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Registering addition of " + builder.build()
+					+ " to subtypes of " + base.getName()
+					+ (methodPattern == null ? "" : "." + methodPattern));
+		}
+		putRule(subtypeRules, base, methodPattern, builder);
+		dirtySubtypeBases.add(base);
+	}
+
+	private static <K, A extends Annotation> void putRule(
+			Multimap<K, RuleContainer<?>> rules, K key,
+			MethodPattern methodPattern, AnnotationBuilder<A> builder) {
+		Iterator<RuleContainer<?>> it = rules.get(key).iterator();
+		while (it.hasNext()) {
+			if (it.next().isFor(methodPattern, builder.annotationType())) {
+				it.remove();
+				break;
+			}
+		}
+		rules.put(key, new RuleContainer<A>(methodPattern, builder));
+	}
+
+	/**
+	 * Registers an annotation for the class with the given binary name, or for
+	 * one of its methods.
+	 * 
+	 * @param methodName
+	 *            The name of the method, or null to annotate the class.
+	 * @param descriptor
+	 *            The descriptor of the method, or null to annotate the class.
+	 */
+	public <A extends Annotation> void add(String className,
+			String methodName, String descriptor, AnnotationBuilder<A> builder) {
+		builder.assertComplete();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Registering addition of " + builder.build() + " to "
+					+ className
+					+ (methodName == null ? "" : "." + methodName + descriptor));
+		}
+		Iterator<NamedAnnotationContainer<?>> it = namedAnnotations.get(
+				className).iterator();
+		while (it.hasNext()) {
+			if (it.next().isFor(methodName, descriptor,
+					builder.annotationType())) {
+				it.remove();
+				break;
+			}
+		}
+		namedAnnotations.put(className, new NamedAnnotationContainer<A>(
+				methodName, descriptor, builder));
+		dirtyClassNames.add(className);
+	}
+
+	/**
+	 * Only applies the annotations registered by name for the class when its
+	 * class file has the given CRC-32 checksum. The annotations of other
+	 * versions of the class are dropped. This is used to apply annotations
+	 * that were recorded for a specific build of the class.
+	 */
+	public void requireChecksum(String className, long checksum) {
+		checksums.put(className, checksum);
+		dirtyClassNames.add(className);
+	}
+
 	public <A extends Annotation> void add(AnnotatedElement e,
 			AnnotationBuilder<A> builder) {
 		builder.assertComplete();
@@ -90,8 +507,137 @@ public class Annotator {
 		}
 		removeContainerIfExists(e, builder.annotationType());
 		AnnotationContainer<A> container = new AnnotationContainer<A>(e,
-				builder);
+				builder, false);
 		annotations.put(container.getDeclaringClass(), container);
+		dirtyClasses.add(container.getDeclaringClass());
+	}
+
+	/**
+	 * Registers annotations of the same type for several elements at once. The
+	 * registrations of each declaring class are updated in a single pass.
+	 */
+	public <A extends Annotation> void addAll(
+			Class<A> annotationType,
+			Map<? extends AnnotatedElement, ? extends AnnotationBuilder<A>> builders) {
+		putAll(annotationType, builders, false);
+	}
+
+	/**
+	 * Registers the explicit values of the builder to be merged into the
+	 * annotation the element already has. The annotation of the element is
+	 * not read, only the members with an explicit value are replaced when the
+	 * class is transformed. When this annotator already registered an
+	 * annotation of the same type for the element, the values are merged into
+	 * that registration.
+	 */
+	public <A extends Annotation> void merge(AnnotatedElement e,
+			AnnotationBuilder<A> builder) {
+		putAll(builder.annotationType(),
+				Collections.singletonMap(e, builder), true);
+	}
+
+	/**
+	 * Registers merges of annotations of the same type for several elements
+	 * at once, see {@link #merge(AnnotatedElement, AnnotationBuilder)}.
+	 */
+	public <A extends Annotation> void mergeAll(
+			Class<A> annotationType,
+			Map<? extends AnnotatedElement, ? extends AnnotationBuilder<A>> builders) {
+		putAll(annotationType, builders, true);
+	}
+
+	private <A extends Annotation> void putAll(
+			Class<A> annotationType,
+			Map<? extends AnnotatedElement, ? extends AnnotationBuilder<A>> builders,
+			boolean merge) {
+		Multimap<Class<?>, AnnotatedElement> elementsByClass = LinkedHashMultimap
+				.create();
+		for (Map.Entry<? extends AnnotatedElement, ? extends AnnotationBuilder<A>> curEntry : builders
+				.entrySet()) {
+			if (!merge) {
+				curEntry.getValue().assertComplete();
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Registering "
+						+ (merge ? "merge of @"
+								+ annotationType.getSimpleName()
+								+ curEntry.getValue().explicitValues()
+								: "addition of " + curEntry.getValue().build())
+						+ " to " + curEntry.getKey());
+			}
+			elementsByClass.put(declaringClass(curEntry.getKey()),
+					curEntry.getKey());
+		}
+		for (Class<?> curClass : elementsByClass.keySet()) {
+			Collection<AnnotatedElement> elements = elementsByClass
+					.get(curClass);
+			Map<AnnotatedElement, AnnotationContainer<A>> existing = new HashMap<>();
+			Iterator<AnnotationContainer<?>> it = annotations.get(curClass)
+					.iterator();
+			while (it.hasNext()) {
+				AnnotationContainer<?> curContainer = it.next();
+				if (curContainer.getAnnotationType().equals(annotationType)
+						&& elements.contains(curContainer.getElement())) {
+					@SuppressWarnings("unchecked")
+					AnnotationContainer<A> typedContainer = (AnnotationContainer<A>) curContainer;
+					existing.put(curContainer.getElement(), typedContainer);
+					it.remove();
+				}
+			}
+			for (AnnotatedElement curElement : elements) {
+				AnnotationBuilder<A> builder = builders.get(curElement);
+				AnnotationContainer<A> previous = existing.get(curElement);
+				if (merge && previous != null) {
+					annotations.put(curClass, new AnnotationContainer<A>(
+							curElement, builder.mergeOnto(previous
+									.getBuilder()), previous.isMerge()));
+				} else {
+					annotations.put(curClass, new AnnotationContainer<A>(
+							curElement, builder, merge));
+				}
+			}
+			dirtyClasses.add(curClass);
+		}
+	}
+
+	/**
+	 * Removes the annotation this annotator registered for the element. The
+	 * element gets the annotation it had before, if any, on the next call to
+	 * {@link #process()}. Annotations registered by name, rule or supertype
+	 * are not affected.
+	 * 
+	 * @return True if an annotation was registered.
+	 */
+	public boolean removeAnnotation(AnnotatedElement element,
+			Class<? extends Annotation> annotationClass) {
+		if (getContainer(element, annotationClass) == null)
+			return false;
+		if (log.isDebugEnabled()) {
+			log.debug("Registering removal of @"
+					+ annotationClass.getSimpleName() + " from " + element);
+		}
+		removeContainerIfExists(element, annotationClass);
+		dirtyClasses.add(declaringClass(element));
+		removedFromClasses.add(declaringClass(element));
+		return true;
+	}
+
+	/**
+	 * Removes all annotations this annotator registered for the classes and
+	 * their methods, and restores the classes right away. A class that was
+	 * retransformed before is redefined from its original class file, with
+	 * the annotations of other annotators still applied.
+	 */
+	public void revert(Class<?>... classes) {
+		for (Class<?> curClass : classes) {
+			if (log.isDebugEnabled()) {
+				log.debug("Reverting " + curClass.getName());
+			}
+			annotations.removeAll(curClass);
+			dirtyClasses.remove(curClass);
+			removedFromClasses.remove(curClass);
+		}
+		AnnotatorAgent.revert(this, Arrays.asList(classes));
 	}
 
 	private void removeContainerIfExists(AnnotatedElement element,
@@ -132,22 +678,236 @@ public class Annotator {
 		AnnotationContainer<A> container = getContainer(element,
 				annotationClass);
 		return container == null ? element.getAnnotation(annotationClass)
-				: container.getBuilder().build();
+				: container.getEffectiveBuilder().build();
 	}
 
+	/**
+	 * Applies the annotations added since the previous call. Only the classes
+	 * that changed are retransformed, their previous transformer is replaced.
+	 * Classes that already have all their annotations with the registered
+	 * values, for example because another annotator added them, are not
+	 * retransformed.
+	 * Classes annotated by name, rule or supertype are annotated when they are
+	 * defined, only the ones that are already loaded are retransformed.
+	 */
 	public void process() {
-		for (Map.Entry<Class<?>, Collection<AnnotationContainer<?>>> curElement : annotations
+		if (recording) {
+			synchronized (recordedAnnotators) {
+				recordedAnnotators.add(this);
+			}
+		}
+		processNamed();
+		processRules();
+		processSubtypes();
+		processClasses();
+	}
+
+	/**
+	 * Lists the annotations this annotator registered for classes and methods,
+	 * both by element and by name, with the values the elements get. The
+	 * classes that were annotated by element are listed with the checksum of
+	 * their original class file. Rules and supertype rules are not included,
+	 * as they are applied when the classes are defined already.
+	 */
+	public OverlaySpec getOverlays() {
+		List<OverlaySpec.Entry> entries = new ArrayList<>();
+		Map<String, Long> classChecksums = new TreeMap<>(checksums);
+		for (Map.Entry<Class<?>, Collection<AnnotationContainer<?>>> curClass : annotations
 				.asMap().entrySet()) {
+			String className = curClass.getKey().getName();
+			for (AnnotationContainer<?> curContainer : curClass.getValue()) {
+				AnnotationBuilder<?> builder = curContainer
+						.getEffectiveBuilder();
+				try {
+					builder.assertComplete();
+				} catch (IllegalStateException e) {
+					// a merge into an annotation the element does not have
+					log.debug("Not recording " + curContainer.getElement(), e);
+					continue;
+				}
+				AnnotatedElement element = curContainer.getElement();
+				if (element instanceof Method) {
+					Method method = (Method) element;
+					entries.add(new OverlaySpec.Entry(className, method
+							.getName(), RuntimeSupport.makeDescriptor(method),
+							builder));
+				} else {
+					entries.add(new OverlaySpec.Entry(className, null, null,
+							builder));
+				}
+			}
+			try {
+				byte[] classFile = ClassFiles.read(curClass.getKey());
+				if (classFile != null) {
+					classChecksums.put(className,
+							ChecksumClassFileTransformer.checksum(classFile));
+				}
+			} catch (IOException e) {
+				log.debug("Cannot read the class file of " + className, e);
+			}
+		}
+		for (Map.Entry<String, NamedAnnotationContainer<?>> curEntry : namedAnnotations
+				.entries()) {
+			entries.add(curEntry.getValue().toEntry(curEntry.getKey()));
+		}
+		return OverlaySpec.of(entries, classChecksums);
+	}
+
+	private void processSubtypes() {
+		for (Class<?> curBase : dirtySubtypeBases) {
+			List<AnnotationMutator> mutators = new ArrayList<>();
+			for (RuleContainer<?> curContainer : subtypeRules.get(curBase)) {
+				mutators.add(curContainer.getMutator());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Adding rule for subtypes of " + curBase.getName());
+			}
+			AnnotatorAgent.addSubtypeRule(Arrays.asList(this, curBase),
+					curBase, new AnnotatorClassFileTransformer(mutators));
+		}
+		dirtySubtypeBases.clear();
+	}
+
+	private void processRules() {
+		for (ClassPattern curPattern : dirtyRules) {
+			List<AnnotationMutator> mutators = new ArrayList<>();
+			for (RuleContainer<?> curContainer : rules.get(curPattern)) {
+				mutators.add(curContainer.getMutator());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Adding rule for classes matching " + curPattern);
+			}
+			AnnotatorAgent.addRule(Arrays.asList(this, curPattern),
+					new RuleClassFileTransformer(curPattern, mutators));
+		}
+		dirtyRules.clear();
+	}
+
+	private void processNamed() {
+		if (dirtyClassNames.isEmpty())
+			return;
+
+		Map<String, ClassFileTransformer> transformers = new LinkedHashMap<>();
+		for (String curClassName : dirtyClassNames) {
+			List<AnnotationMutator> mutators = new ArrayList<>();
+			for (NamedAnnotationContainer<?> curContainer : namedAnnotations
+					.get(curClassName)) {
+				mutators.add(curContainer.getMutator());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Adding define-time transformer for " + curClassName);
+			}
+			AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+					mutators);
+			Long checksum = checksums.get(curClassName);
+			transformers.put(curClassName.replace('.', '/'),
+					checksum == null ? transformer
+							: new ChecksumClassFileTransformer(checksum,
+									transformer));
+		}
+		// the classes stay dirty when the agent fails, so the next call
+		// registers them again
+		ClassLoader scope = loader == null ? null : loader.get();
+		if (loader == null) {
+			AnnotatorAgent.addDefineTimeAnnotations(this, transformers);
+		} else if (scope == null) {
+			log.info("Not annotating " + transformers.size()
+					+ " classes by name, their loader has been unloaded");
+		} else {
+			AnnotatorAgent.addDefineTimeAnnotations(this, scope, transformers);
+		}
+		dirtyClassNames.clear();
+	}
+
+	private void processClasses() {
+		if (dirtyClasses.isEmpty())
+			return;
+
+		Map<Class<?>, AnnotatorClassFileTransformer> transformers = new LinkedHashMap<>();
+		Map<Class<?>, AnnotatorClassFileTransformer> changed = new LinkedHashMap<>();
+		List<Class<?>> reverted = new ArrayList<>();
+		for (Class<?> curClass : dirtyClasses) {
+			if (!annotations.containsKey(curClass)) {
+				reverted.add(curClass);
+				continue;
+			}
 			List<AnnotationMutator> mutators = new ArrayList<>();
-			for (AnnotationContainer<?> curContainer : curElement.getValue()) {
+			boolean effective = !removedFromClasses.contains(curClass);
+			for (AnnotationContainer<?> curContainer : annotations
+					.get(curClass)) {
 				mutators.add(curContainer.getMutator());
+				effective = effective && curContainer.isEffective();
 			}
 			if (log.isDebugEnabled()) {
-				log.debug("Adding transformer for "
-						+ curElement.getKey().getName());
+				log.debug("Adding transformer for " + curClass.getName()
+						+ (effective ? ", annotations are unchanged" : ""));
+			}
+			AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+					mutators);
+			transformers.put(curClass, transformer);
+			if (!effective) {
+				changed.put(curClass, transformer);
+			}
+		}
+		// the classes stay dirty when the agent fails, so the next call
+		// registers and retransforms them again
+		if (!reverted.isEmpty()) {
+			AnnotatorAgent.revert(this, reverted);
+		}
+		if (!transformers.isEmpty()) {
+			Set<Class<?>> unchanged = new HashSet<>(transformers.keySet());
+			unchanged.removeAll(changed.keySet());
+			if (!unchanged.isEmpty()) {
+				log.info("Skipping retransformation of " + unchanged.size()
+						+ " unchanged classes");
+			}
+			precompute(changed);
+			AnnotatorAgent.addAnnotations(this, transformers, unchanged);
+			skippedRetransformations.addAndGet(unchanged.size());
+		}
+		dirtyClasses.clear();
+		removedFromClasses.clear();
+	}
+
+	/**
+	 * Computes the transformed class files in parallel, reading the original
+	 * class files from the class path. This moves the expensive part of the
+	 * transformation out of the retransformation, during which the JVM is
+	 * paused. Classes that fail here are transformed during the
+	 * retransformation, which reports the failure.
+	 */
+	private void precompute(
+			Map<Class<?>, AnnotatorClassFileTransformer> transformers) {
+		if (transformers.size() < PRECOMPUTE_THRESHOLD
+				|| Runtime.getRuntime().availableProcessors() < 2)
+			return;
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (final Map.Entry<Class<?>, AnnotatorClassFileTransformer> curEntry : transformers
+				.entrySet()) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					byte[] original = ClassFiles.read(curEntry.getKey());
+					if (original != null) {
+						curEntry.getValue().precompute(
+								curEntry.getKey().getClassLoader(),
+								curEntry.getKey().getName(), original);
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> curResult : precomputeExecutor.invokeAll(tasks)) {
+				try {
+					curResult.get();
+				} catch (ExecutionException e) {
+					log.debug("Precomputation failed", e.getCause());
+				}
 			}
-			AnnotatorAgent.addAnnotations((Class<?>) curElement.getKey(),
-					new AnnotatorClassFileTransformer(mutators));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 }
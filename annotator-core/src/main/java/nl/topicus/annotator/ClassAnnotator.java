@@ -2,26 +2,27 @@ package nl.topicus.annotator;
 
 import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javassist.util.proxy.MethodFilter;
 import javassist.util.proxy.ProxyFactory;
 import javassist.util.proxy.ProxyObject;
 import nl.topicus.annotator.impl.AnnationUpdateAction;
 import nl.topicus.annotator.impl.AnnotationCollectionHandler;
+import nl.topicus.annotator.impl.AnnotationTypes;
 import nl.topicus.annotator.impl.Types;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
+
 public class ClassAnnotator<T> {
 	private static final Logger log = LoggerFactory
 			.getLogger(ClassAnnotator.class);
@@ -98,13 +99,9 @@ public class ClassAnnotator<T> {
 					+ ", nothing to merge with");
 		}
 
-		A oldAnn = annotator.getAnnotation(classToAnnotate,
-				builder.annotationType());
-		if (log.isDebugEnabled()) {
-			log.debug("Starting with " + oldAnn);
-		}
-		builder.baseOn(oldAnn);
-		return doSetOnClass(builder);
+		checkClassTarget(builder);
+		annotator.merge(classToAnnotate, builder);
+		return this;
 	}
 
 	public <A extends Annotation> ClassAnnotator<T> addToClass(
@@ -140,25 +137,75 @@ public class ClassAnnotator<T> {
 
 	private <A extends Annotation> ClassAnnotator<T> doSetOnClass(
 			AnnotationBuilder<A> builder) {
-		Target target = builder.annotationType().getAnnotation(Target.class);
+		checkClassTarget(builder);
+		annotator.add(classToAnnotate, builder);
+		return this;
+	}
+
+	private void checkClassTarget(AnnotationBuilder<?> builder) {
 		boolean isClass = !classToAnnotate.isAnnotation();
-		if (target != null
-				&& !Arrays.asList(target.value()).contains(
-						isClass ? ElementType.TYPE
-								: ElementType.ANNOTATION_TYPE)) {
-			throw new IllegalArgumentException("@" + builder.annotationType()
-					+ " is not allowed on "
-					+ (isClass ? "types" : "annotations"));
-		}
+		AnnotationTypes.checkTarget(builder.annotationType(),
+				isClass ? "types" : "annotations",
+				isClass ? ElementType.TYPE : ElementType.ANNOTATION_TYPE);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+	}
 
-		Retention retention = builder.annotationType().getAnnotation(
-				Retention.class);
-		if (retention == null || retention.value() != RetentionPolicy.RUNTIME) {
-			throw new IllegalArgumentException("@" + builder.annotationType()
-					+ " is not retained at runtime");
+	/**
+	 * Annotates all methods declared by the class that match the predicate.
+	 * The annotation type is validated once and all methods are registered at
+	 * once, which is much faster than calling the proxy for every method.
+	 * Synthetic methods are skipped. With {@link AnnationUpdateAction#MERGE}
+	 * only the explicit values of the builder are merged into the annotation
+	 * of every method, see {@link Annotator#merge}. Nothing is registered if
+	 * one of the methods violates the update action.
+	 * <p>
+	 * The scope differs from the proxy returned by {@link #setOnMethod}: the
+	 * proxy can only intercept the methods it overrides, but these include
+	 * inherited methods, which it annotates on their declaring class. This
+	 * method also selects the static, private and final methods of the class,
+	 * but never inherited methods. Annotate those through the class that
+	 * declares them.
+	 */
+	public <A extends Annotation> ClassAnnotator<T> onMethods(
+			Predicate<? super Method> predicate, AnnotationBuilder<A> builder,
+			AnnationUpdateAction updateAction) {
+		Class<A> annotationType = builder.annotationType();
+		AnnotationTypes.checkTarget(annotationType, "methods",
+				ElementType.METHOD);
+		AnnotationTypes.checkRuntimeRetained(annotationType);
+
+		Map<Method, AnnotationBuilder<A>> builders = new LinkedHashMap<>();
+		for (Method curMethod : classToAnnotate.getDeclaredMethods()) {
+			if (curMethod.isSynthetic() || !predicate.apply(curMethod))
+				continue;
+
+			if (updateAction != AnnationUpdateAction.SET) {
+				boolean isAnnotated = annotator.isAnnotationPresent(
+						curMethod, annotationType);
+				if (updateAction == AnnationUpdateAction.ADD && isAnnotated) {
+					throw new IllegalArgumentException(curMethod.getName()
+							+ " is already annotated with @"
+							+ annotationType.getName());
+				}
+				if (updateAction == AnnationUpdateAction.MERGE && !isAnnotated) {
+					throw new IllegalArgumentException(curMethod.getName()
+							+ " is not annotated with @"
+							+ annotationType.getName()
+							+ ", nothing to merge with");
+				}
+			}
+			builders.put(curMethod, builder);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating " + builders.size() + " methods of "
+					+ classToAnnotate.getName() + " with @"
+					+ annotationType.getSimpleName());
+		}
+		if (updateAction == AnnationUpdateAction.MERGE) {
+			annotator.mergeAll(annotationType, builders);
+		} else {
+			annotator.addAll(annotationType, builders);
 		}
-
-		annotator.add(classToAnnotate, builder);
 		return this;
 	}
 
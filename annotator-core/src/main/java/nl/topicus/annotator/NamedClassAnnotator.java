@@ -0,0 +1,73 @@
+package nl.topicus.annotator;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+
+import nl.topicus.annotator.impl.AnnotationTypes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Annotates a class that is identified by its name, rather than by the class
+ * itself. The annotations are added when the class is defined, so a class that
+ * is not loaded yet, does not need to be loaded or retransformed. As the class
+ * is not inspected, an annotation of the same type that is already present on
+ * the element is replaced.
+ */
+public class NamedClassAnnotator {
+	private static final Logger log = LoggerFactory
+			.getLogger(NamedClassAnnotator.class);
+
+	private String className;
+	private Annotator annotator;
+
+	/**
+	 * @param className
+	 *            The binary name of the class, for example
+	 *            <code>com.example.Outer$Inner</code>.
+	 */
+	public NamedClassAnnotator(String className, Annotator annotator) {
+		this.className = className;
+		this.annotator = annotator;
+	}
+
+	public <A extends Annotation> NamedClassAnnotator setOnClass(
+			AnnotationBuilder<A> builder) {
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating " + className + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "types",
+				ElementType.TYPE, ElementType.ANNOTATION_TYPE);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.add(className, null, null, builder);
+		return this;
+	}
+
+	/**
+	 * @param methodName
+	 *            The name of the method.
+	 * @param descriptor
+	 *            The JVM descriptor of the method, for example
+	 *            <code>(Ljava/lang/String;)V</code>.
+	 */
+	public <A extends Annotation> NamedClassAnnotator setOnMethod(
+			String methodName, String descriptor, AnnotationBuilder<A> builder) {
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating " + className + "." + methodName
+					+ descriptor + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		if (!descriptor.startsWith("("))
+			throw new IllegalArgumentException(descriptor
+					+ " is not a method descriptor");
+		AnnotationTypes.checkTarget(builder.annotationType(), "methods",
+				ElementType.METHOD);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.add(className, methodName, descriptor, builder);
+		return this;
+	}
+}
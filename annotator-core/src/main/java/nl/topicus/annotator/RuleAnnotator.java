@@ -0,0 +1,70 @@
+package nl.topicus.annotator;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+
+import nl.topicus.annotator.impl.AnnotationTypes;
+import nl.topicus.annotator.impl.ClassPattern;
+import nl.topicus.annotator.impl.MethodPattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Annotates all classes matching a {@link ClassPattern}. The pattern is
+ * evaluated when a class is defined, so no classes are loaded to find the
+ * matching ones. As the classes are not inspected, an annotation of the same
+ * type that is already present on the element is replaced.
+ */
+public class RuleAnnotator {
+	private static final Logger log = LoggerFactory
+			.getLogger(RuleAnnotator.class);
+
+	private ClassPattern pattern;
+	private Annotator annotator;
+
+	public RuleAnnotator(ClassPattern pattern, Annotator annotator) {
+		this.pattern = pattern;
+		this.annotator = annotator;
+	}
+
+	public <A extends Annotation> RuleAnnotator setOnClass(
+			AnnotationBuilder<A> builder) {
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating classes matching " + pattern + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "types",
+				ElementType.TYPE, ElementType.ANNOTATION_TYPE);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.addRule(pattern, null, builder);
+		return this;
+	}
+
+	/**
+	 * Annotates the methods declared by the matching classes whose name and
+	 * descriptor match the given patterns, see {@link MethodPattern}.
+	 * 
+	 * @param descriptorPattern
+	 *            The pattern for the descriptor, or null to match methods with
+	 *            any descriptor.
+	 */
+	public <A extends Annotation> RuleAnnotator setOnMethods(
+			String namePattern, String descriptorPattern,
+			AnnotationBuilder<A> builder) {
+		MethodPattern methodPattern = new MethodPattern(namePattern,
+				descriptorPattern);
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating methods matching " + pattern + "."
+					+ methodPattern + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "methods",
+				ElementType.METHOD);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.addRule(pattern, methodPattern, builder);
+		return this;
+	}
+}
@@ -0,0 +1,70 @@
+package nl.topicus.annotator;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+
+import nl.topicus.annotator.impl.AnnotationTypes;
+import nl.topicus.annotator.impl.MethodPattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Annotates all subtypes of a class or interface. Subtypes that are already
+ * loaded are retransformed in one batch, subtypes that are defined later are
+ * annotated when they are defined. As the classes are not inspected, an
+ * annotation of the same type that is already present on the element is
+ * replaced.
+ */
+public class SubtypeAnnotator {
+	private static final Logger log = LoggerFactory
+			.getLogger(SubtypeAnnotator.class);
+
+	private Class<?> base;
+	private Annotator annotator;
+
+	public SubtypeAnnotator(Class<?> base, Annotator annotator) {
+		this.base = base;
+		this.annotator = annotator;
+	}
+
+	public <A extends Annotation> SubtypeAnnotator setOnClass(
+			AnnotationBuilder<A> builder) {
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating subtypes of " + base.getName() + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "types",
+				ElementType.TYPE, ElementType.ANNOTATION_TYPE);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.addSubtypeRule(base, null, builder);
+		return this;
+	}
+
+	/**
+	 * Annotates the methods declared by the subtypes whose name and descriptor
+	 * match the given patterns, see {@link MethodPattern}.
+	 * 
+	 * @param descriptorPattern
+	 *            The pattern for the descriptor, or null to match methods with
+	 *            any descriptor.
+	 */
+	public <A extends Annotation> SubtypeAnnotator setOnMethods(
+			String namePattern, String descriptorPattern,
+			AnnotationBuilder<A> builder) {
+		MethodPattern methodPattern = new MethodPattern(namePattern,
+				descriptorPattern);
+		if (log.isDebugEnabled()) {
+			log.debug("Annotating methods of subtypes of " + base.getName()
+					+ " matching " + methodPattern + " with @"
+					+ builder.annotationType().getSimpleName());
+		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "methods",
+				ElementType.METHOD);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
+
+		annotator.addSubtypeRule(base, methodPattern, builder);
+		return this;
+	}
+}
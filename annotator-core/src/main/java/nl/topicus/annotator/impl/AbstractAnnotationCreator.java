@@ -1,124 +1,140 @@
 package nl.topicus.annotator.impl;
 
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
-import javassist.ClassClassPath;
-import javassist.ClassPath;
-import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.CtMethod;
 import javassist.NotFoundException;
-import javassist.bytecode.ConstPool;
-import javassist.bytecode.annotation.Annotation;
-import javassist.bytecode.annotation.AnnotationMemberValue;
-import javassist.bytecode.annotation.ArrayMemberValue;
-import javassist.bytecode.annotation.BooleanMemberValue;
-import javassist.bytecode.annotation.ByteMemberValue;
-import javassist.bytecode.annotation.CharMemberValue;
-import javassist.bytecode.annotation.ClassMemberValue;
-import javassist.bytecode.annotation.DoubleMemberValue;
-import javassist.bytecode.annotation.EnumMemberValue;
-import javassist.bytecode.annotation.FloatMemberValue;
-import javassist.bytecode.annotation.IntegerMemberValue;
-import javassist.bytecode.annotation.LongMemberValue;
-import javassist.bytecode.annotation.MemberValue;
-import javassist.bytecode.annotation.ShortMemberValue;
-import javassist.bytecode.annotation.StringMemberValue;
 
-public abstract class AbstractAnnotationCreator implements AnnotationMutator {
+public abstract class AbstractAnnotationCreator implements
+		StreamingAnnotationMutator {
 	private String annotationName;
+	/**
+	 * The annotation type, or null if it is resolved by name when it is first
+	 * needed.
+	 */
+	private Class<? extends Annotation> annotationType;
 	private Map<String, Object> values;
+	private boolean merge;
+	private volatile AnnotationTemplate template;
 
 	public AbstractAnnotationCreator(String annotationName,
 			Map<String, Object> values) {
+		this(annotationName, values, false);
+	}
+
+	/**
+	 * @param merge
+	 *            True if the values only overwrite these members of the
+	 *            annotation the element already has, false to replace the
+	 *            annotation.
+	 */
+	public AbstractAnnotationCreator(String annotationName,
+			Map<String, Object> values, boolean merge) {
 		this.annotationName = annotationName;
 		this.values = values;
+		this.merge = merge;
 	}
 
-	public void mutate(CtClass jClass) throws NotFoundException {
-		addAnnotationToElement(
-				jClass,
-				createAnnotation(jClass.getClassFile().getConstPool(),
-						annotationName, values));
+	/**
+	 * Creates a mutator for an annotation type that is already loaded. Use
+	 * this when the type is not visible to the loader of the annotator, for
+	 * example when it is on the class path of the project that is woven.
+	 */
+	public AbstractAnnotationCreator(Class<? extends Annotation> annotationType,
+			Map<String, Object> values, boolean merge) {
+		this(annotationType.getName(), values, merge);
+		this.annotationType = annotationType;
 	}
 
-	protected abstract void addAnnotationToElement(CtClass jClass,
-			Annotation annotation) throws NotFoundException;
+	/**
+	 * @return The key of the element and annotation, or null for a merge,
+	 *         which builds on the mutators before it.
+	 */
+	@Override
+	public Object getKey() {
+		return merge ? null : Arrays.asList(getElementKey(), annotationName);
+	}
 
-	private Annotation createAnnotation(ConstPool cp, String className,
-			Map<String, Object> members) throws NotFoundException {
-		try {
-			ClassPath annotationClassPath = new ClassClassPath(
-					Class.forName(className));
-			ClassPool classPool = ClassPool.getDefault();
-			classPool.insertClassPath(annotationClassPath);
-			CtClass annotationCtClass = classPool.get(className);
-			Annotation ret = new Annotation(cp, annotationCtClass);
-			for (Map.Entry<String, Object> curMember : members.entrySet()) {
-				setValue(cp,
-						getMemberType(annotationCtClass, curMember.getKey()),
-						ret.getMemberValue(curMember.getKey()),
-						curMember.getValue());
-			}
+	/**
+	 * @return A string identifying the element that is annotated.
+	 */
+	protected abstract String getElementKey();
 
-			return ret;
-		} catch (ClassNotFoundException e) {
-			throw new NotFoundException(e.getMessage());
-		}
+	@Override
+	public String getFingerprint() {
+		StringBuilder ret = new StringBuilder();
+		ret.append(merge ? "merge " : "set ");
+		appendFingerprint(ret, getElementKey());
+		ret.append(' ').append(annotationName);
+		appendFingerprint(ret, values);
+		return ret.toString();
 	}
 
-	private CtClass getMemberType(CtClass annotationCtClass, String memberName)
-			throws NotFoundException {
-		for (CtMethod curMethod : annotationCtClass.getMethods()) {
-			if (curMethod.getName().equals(memberName))
-				return curMethod.getReturnType();
+	/**
+	 * Appends the value, with strings prefixed by their length, so no two
+	 * different values give the same fingerprint.
+	 */
+	private static void appendFingerprint(StringBuilder out, Object value) {
+		if (value instanceof Map) {
+			out.append('{');
+			// member names in a fixed order
+			for (Map.Entry<?, ?> curEntry : new TreeMap<>((Map<?, ?>) value)
+					.entrySet()) {
+				appendFingerprint(out, curEntry.getKey());
+				appendFingerprint(out, curEntry.getValue());
+			}
+			out.append('}');
+		} else if (value instanceof List) {
+			out.append('[');
+			for (Object curElement : (List<?>) value) {
+				appendFingerprint(out, curElement);
+			}
+			out.append(']');
+		} else if (value instanceof String) {
+			out.append('s').append(((String) value).length()).append(':')
+					.append(value);
+		} else {
+			out.append(value.getClass().getSimpleName())
+					.append(value).append(';');
 		}
-		throw new NoSuchElementException(memberName);
 	}
 
-	@SuppressWarnings("unchecked")
-	private void setValue(ConstPool cp, CtClass type, MemberValue memberValue,
-			Object value) throws NotFoundException {
-		if (type == CtClass.booleanType) {
-			((BooleanMemberValue) memberValue).setValue((Boolean) value);
-		} else if (type == CtClass.byteType) {
-			((ByteMemberValue) memberValue).setValue((Byte) value);
-		} else if (type == CtClass.charType) {
-			((CharMemberValue) memberValue).setValue((Character) value);
-		} else if (type == CtClass.shortType) {
-			((ShortMemberValue) memberValue).setValue((Short) value);
-		} else if (type == CtClass.intType) {
-			((IntegerMemberValue) memberValue).setValue((Integer) value);
-		} else if (type == CtClass.longType) {
-			((LongMemberValue) memberValue).setValue((Long) value);
-		} else if (type == CtClass.floatType) {
-			((FloatMemberValue) memberValue).setValue((Float) value);
-		} else if (type == CtClass.doubleType) {
-			((DoubleMemberValue) memberValue).setValue((Double) value);
-		} else if (type.getName().equals("java.lang.Class")) {
-			((ClassMemberValue) memberValue).setValue((String) value);
-		} else if (type.getName().equals("java.lang.String")) {
-			((StringMemberValue) memberValue).setValue((String) value);
-		} else if (type.isArray()) {
-			((ArrayMemberValue) memberValue).setValue(createArrayValue(cp,
-					type.getComponentType(), (List<Object>) value));
-		} else if (type.isInterface()) {
-			((AnnotationMemberValue) memberValue).setValue(createAnnotation(cp,
-					type.getName(), (Map<String, Object>) value));
-		} else {
-			((EnumMemberValue) memberValue).setValue((String) value);
-		}
+	public void mutate(CtClass jClass) throws NotFoundException {
+		addAnnotationToElement(jClass, getTemplate());
+	}
+
+	@Override
+	public void mutate(ClassFileRewriter rewriter) throws NotFoundException {
+		addAnnotationToElement(rewriter, getTemplate());
 	}
 
-	private MemberValue[] createArrayValue(ConstPool cp, CtClass type,
-			List<Object> value) throws NotFoundException {
-		MemberValue[] ret = new MemberValue[value.size()];
-		for (int index = 0; index < value.size(); index++) {
-			ret[index] = Annotation.createMemberValue(cp, type);
-			setValue(cp, type, ret[index], value.get(index));
+	/**
+	 * @return The annotation encoded once, shared by all creators of an equal
+	 *         annotation and relocated into every class it is added to.
+	 */
+	private AnnotationTemplate getTemplate() throws NotFoundException {
+		AnnotationTemplate ret = template;
+		if (ret == null) {
+			try {
+				Class<?> type = annotationType == null ? Class
+						.forName(annotationName) : annotationType;
+				ret = AnnotationTemplate.of(AnnotationEncoder.forType(type),
+						values, merge);
+			} catch (ClassNotFoundException e) {
+				throw new NotFoundException(e.getMessage());
+			}
+			template = ret;
 		}
 		return ret;
 	}
+
+	protected abstract void addAnnotationToElement(CtClass jClass,
+			AnnotationTemplate annotation) throws NotFoundException;
+
+	protected abstract void addAnnotationToElement(ClassFileRewriter rewriter,
+			AnnotationTemplate annotation) throws NotFoundException;
 }
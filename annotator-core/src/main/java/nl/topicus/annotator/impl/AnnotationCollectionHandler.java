@@ -2,11 +2,7 @@ package nl.topicus.annotator.impl;
 
 import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
 import java.lang.reflect.Method;
-import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,13 +46,6 @@ public class AnnotationCollectionHandler<A extends Annotation> extends
 						+ " is not annotated with @"
 						+ builder.annotationType().getName()
 						+ ", nothing to merge with");
-			} else {
-				A oldAnn = annotator.getAnnotation(thisMethod,
-						builder.annotationType());
-				if (log.isDebugEnabled()) {
-					log.debug("Starting with " + oldAnn);
-				}
-				builder.baseOn(oldAnn);
 			}
 		} else {
 			if (log.isDebugEnabled()) {
@@ -68,21 +57,15 @@ public class AnnotationCollectionHandler<A extends Annotation> extends
 			}
 		}
 
-		Target target = builder.annotationType().getAnnotation(Target.class);
-		if (target != null
-				&& !Arrays.asList(target.value()).contains(ElementType.METHOD)) {
-			throw new IllegalArgumentException("@" + builder.annotationType()
-					+ " is not allowed on methods");
-		}
+		AnnotationTypes.checkTarget(builder.annotationType(), "methods",
+				ElementType.METHOD);
+		AnnotationTypes.checkRuntimeRetained(builder.annotationType());
 
-		Retention retention = builder.annotationType().getAnnotation(
-				Retention.class);
-		if (retention == null || retention.value() != RetentionPolicy.RUNTIME) {
-			throw new IllegalArgumentException("@" + builder.annotationType()
-					+ " is not retained at runtime");
+		if (updateAction == AnnationUpdateAction.MERGE) {
+			annotator.merge(thisMethod, builder);
+		} else {
+			annotator.add(thisMethod, builder);
 		}
-
-		annotator.add(thisMethod, builder);
 		return createReturnValue(thisMethod);
 	}
 }
@@ -0,0 +1,234 @@
+package nl.topicus.annotator.impl;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.AnnotationMemberValue;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.BooleanMemberValue;
+import javassist.bytecode.annotation.ByteMemberValue;
+import javassist.bytecode.annotation.CharMemberValue;
+import javassist.bytecode.annotation.ClassMemberValue;
+import javassist.bytecode.annotation.DoubleMemberValue;
+import javassist.bytecode.annotation.EnumMemberValue;
+import javassist.bytecode.annotation.FloatMemberValue;
+import javassist.bytecode.annotation.IntegerMemberValue;
+import javassist.bytecode.annotation.LongMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.ShortMemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+
+/**
+ * Encodes the values of one annotation type as a javassist annotation. The
+ * member types and the way to encode them are resolved once per annotation
+ * type from the loaded annotation class. An encoder is immutable and shared by
+ * all threads, encoding only creates the member values.
+ */
+final class AnnotationEncoder {
+	private static final ClassValue<AnnotationEncoder> encoders = new ClassValue<AnnotationEncoder>() {
+		@Override
+		protected AnnotationEncoder computeValue(Class<?> type) {
+			return new AnnotationEncoder(type);
+		}
+	};
+
+	private enum Kind {
+		BOOLEAN, BYTE, CHAR, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, CLASS, ENUM, ANNOTATION, ARRAY;
+	}
+
+	/**
+	 * Encodes the values of a member, or of the elements of an array member.
+	 */
+	private static final class MemberEncoder {
+		private final Kind kind;
+		private final String typeName;
+		private final AnnotationEncoder nested;
+		private final MemberEncoder component;
+
+		private MemberEncoder(Class<?> type) {
+			typeName = type.getName();
+			if (type.isArray()) {
+				kind = Kind.ARRAY;
+				component = new MemberEncoder(type.getComponentType());
+				nested = null;
+			} else {
+				component = null;
+				if (type.isAnnotation()) {
+					kind = Kind.ANNOTATION;
+					nested = forType(type);
+				} else {
+					nested = null;
+					kind = kindOf(type);
+				}
+			}
+		}
+
+		private static Kind kindOf(Class<?> type) {
+			if (type == boolean.class)
+				return Kind.BOOLEAN;
+			if (type == byte.class)
+				return Kind.BYTE;
+			if (type == char.class)
+				return Kind.CHAR;
+			if (type == short.class)
+				return Kind.SHORT;
+			if (type == int.class)
+				return Kind.INT;
+			if (type == long.class)
+				return Kind.LONG;
+			if (type == float.class)
+				return Kind.FLOAT;
+			if (type == double.class)
+				return Kind.DOUBLE;
+			if (type == String.class)
+				return Kind.STRING;
+			if (type == Class.class)
+				return Kind.CLASS;
+			if (type.isEnum())
+				return Kind.ENUM;
+			throw new IllegalArgumentException(type
+					+ " is not a valid annotation member type");
+		}
+
+		@SuppressWarnings("unchecked")
+		private MemberValue encode(ConstPool cp, Object value) {
+			switch (kind) {
+			case BOOLEAN:
+				return new BooleanMemberValue((Boolean) value, cp);
+			case BYTE:
+				return new ByteMemberValue(((Byte) value).byteValue(), cp);
+			case CHAR:
+				return new CharMemberValue(((Character) value).charValue(), cp);
+			case SHORT:
+				return new ShortMemberValue(((Short) value).shortValue(), cp);
+			case INT:
+				return new IntegerMemberValue(cp, (Integer) value);
+			case LONG:
+				return new LongMemberValue(((Long) value).longValue(), cp);
+			case FLOAT:
+				return new FloatMemberValue(((Float) value).floatValue(), cp);
+			case DOUBLE:
+				return new DoubleMemberValue(((Double) value).doubleValue(), cp);
+			case STRING:
+				return new StringMemberValue((String) value, cp);
+			case CLASS:
+				return new ClassMemberValue((String) value, cp);
+			case ENUM:
+				EnumMemberValue ret = new EnumMemberValue(cp);
+				ret.setType(typeName);
+				ret.setValue((String) value);
+				return ret;
+			case ANNOTATION:
+				return new AnnotationMemberValue(nested.encode(cp,
+						(Map<String, Object>) value), cp);
+			default:
+				List<Object> elements = (List<Object>) value;
+				MemberValue[] encoded = new MemberValue[elements.size()];
+				for (int index = 0; index < encoded.length; index++) {
+					encoded[index] = component.encode(cp, elements.get(index));
+				}
+				ArrayMemberValue array = new ArrayMemberValue(
+						component.createEmpty(cp), cp);
+				array.setValue(encoded);
+				return array;
+			}
+		}
+
+		/**
+		 * @return A member value without a value, describing the type of the
+		 *         elements of an array.
+		 */
+		private MemberValue createEmpty(ConstPool cp) {
+			switch (kind) {
+			case BOOLEAN:
+				return new BooleanMemberValue(cp);
+			case BYTE:
+				return new ByteMemberValue(cp);
+			case CHAR:
+				return new CharMemberValue(cp);
+			case SHORT:
+				return new ShortMemberValue(cp);
+			case INT:
+				return new IntegerMemberValue(cp);
+			case LONG:
+				return new LongMemberValue(cp);
+			case FLOAT:
+				return new FloatMemberValue(cp);
+			case DOUBLE:
+				return new DoubleMemberValue(cp);
+			case STRING:
+				return new StringMemberValue(cp);
+			case CLASS:
+				return new ClassMemberValue(cp);
+			case ENUM:
+				EnumMemberValue ret = new EnumMemberValue(cp);
+				ret.setType(typeName);
+				return ret;
+			default:
+				return new AnnotationMemberValue(cp);
+			}
+		}
+	}
+
+	private final String typeName;
+	private final Map<String, MemberEncoder> members;
+	/**
+	 * The names of the members without a default value.
+	 */
+	private final Set<String> required;
+
+	private AnnotationEncoder(Class<?> annotationType) {
+		typeName = annotationType.getName();
+		Map<String, MemberEncoder> curMembers = new HashMap<>();
+		Set<String> curRequired = new TreeSet<>();
+		for (Method curMethod : annotationType.getDeclaredMethods()) {
+			curMembers.put(curMethod.getName(),
+					new MemberEncoder(curMethod.getReturnType()));
+			if (curMethod.getDefaultValue() == null) {
+				curRequired.add(curMethod.getName());
+			}
+		}
+		members = Collections.unmodifiableMap(curMembers);
+		required = Collections.unmodifiableSet(curRequired);
+	}
+
+	String getTypeName() {
+		return typeName;
+	}
+
+	/**
+	 * @return The names of the members without a default value, in order.
+	 */
+	Set<String> getRequiredMembers() {
+		return required;
+	}
+
+	static AnnotationEncoder forType(Class<?> annotationType) {
+		return encoders.get(annotationType);
+	}
+
+	/**
+	 * @param values
+	 *            The values of the members, as returned by
+	 *            {@link nl.topicus.annotator.AnnotationBuilder#values()}.
+	 */
+	Annotation encode(ConstPool cp, Map<String, Object> values) {
+		Annotation ret = new Annotation(typeName, cp);
+		for (Map.Entry<String, Object> curValue : values.entrySet()) {
+			MemberEncoder member = members.get(curValue.getKey());
+			if (member == null)
+				throw new NoSuchElementException(curValue.getKey());
+			ret.addMemberValue(curValue.getKey(),
+					member.encode(cp, curValue.getValue()));
+		}
+		return ret;
+	}
+}
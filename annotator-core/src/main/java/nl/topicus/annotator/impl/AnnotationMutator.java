@@ -5,4 +5,19 @@ import javassist.NotFoundException;
 
 public interface AnnotationMutator {
 	public void mutate(CtClass jClass) throws NotFoundException;
+
+	/**
+	 * @return A key identifying what this mutator writes. A mutator supersedes
+	 *         all mutators that ran before it with an equal key, or null if it
+	 *         never supersedes another mutator.
+	 */
+	public Object getKey();
+
+	/**
+	 * @return A canonical description of the change, equal for all mutators
+	 *         making the same change, or null if the change cannot be
+	 *         described. The result of a mutator without a fingerprint is not
+	 *         cached.
+	 */
+	public String getFingerprint();
 }
@@ -0,0 +1,421 @@
+package nl.topicus.annotator.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * An annotation encoded once, independent of any constant pool. The template
+ * holds the bytes of the annotation structure as defined by the class file
+ * format, together with the constants it refers to and the offsets of these
+ * references. Adding it to an element only adds the constants to the pool of
+ * the class, which reuses identical entries, and copies the bytes with the
+ * references relocated. Templates are immutable and shared by all threads.
+ */
+public final class AnnotationTemplate {
+	private static final LoadingCache<List<Object>, AnnotationTemplate> templates = CacheBuilder
+			.newBuilder().maximumSize(1024)
+			.build(new CacheLoader<List<Object>, AnnotationTemplate>() {
+				@Override
+				@SuppressWarnings("unchecked")
+				public AnnotationTemplate load(List<Object> key) {
+					return new AnnotationTemplate((AnnotationEncoder) key.get(0),
+							(Map<String, Object>) key.get(1), (Boolean) key
+									.get(2));
+				}
+			});
+
+	private static final char UTF8 = 'U';
+
+	private static final class JavassistConstants implements
+			ConstantPoolAccess {
+		private final ConstPool cp;
+
+		private JavassistConstants(ConstPool cp) {
+			this.cp = cp;
+		}
+
+		@Override
+		public String getUtf8(int index) {
+			return cp.getUtf8Info(index);
+		}
+
+		@Override
+		public int addUtf8(String value) {
+			return cp.addUtf8Info(value);
+		}
+
+		@Override
+		public int addInteger(int value) {
+			return cp.addIntegerInfo(value);
+		}
+
+		@Override
+		public int addLong(long value) {
+			return cp.addLongInfo(value);
+		}
+
+		@Override
+		public int addFloat(float value) {
+			return cp.addFloatInfo(value);
+		}
+
+		@Override
+		public int addDouble(double value) {
+			return cp.addDoubleInfo(value);
+		}
+
+		@Override
+		public Object getPool() {
+			return cp;
+		}
+	}
+
+	/**
+	 * The indices of the constants in a pool the template was relocated to.
+	 * The pool is referenced weakly, the template outlives the classes it is
+	 * added to.
+	 */
+	private static final class Relocation extends WeakReference<Object> {
+		private final int[] indices;
+
+		private Relocation(Object pool, int[] indices) {
+			super(pool);
+			this.indices = indices;
+		}
+	}
+
+	private final String typeName;
+	private final String typeDescriptor;
+	private final Map<String, Object> values;
+	/**
+	 * True if the values are merged into the annotation the element already
+	 * has, rather than replacing it.
+	 */
+	private final boolean merge;
+	/**
+	 * The members without a default value the values do not have. A template
+	 * with missing members can only be merged into an existing annotation.
+	 */
+	private final Set<String> missing;
+	private final byte[] bytes;
+	/**
+	 * The offsets of the constant pool references in the bytes.
+	 */
+	private final int[] offsets;
+	/**
+	 * The index in {@link #constants} of every reference.
+	 */
+	private final int[] references;
+	private final char[] kinds;
+	private final Object[] constants;
+
+	/**
+	 * The constant pool the template was last relocated to.
+	 */
+	private volatile Relocation lastRelocation;
+
+	private AnnotationTemplate(AnnotationEncoder encoder,
+			Map<String, Object> values, boolean merge) {
+		this.typeName = encoder.getTypeName();
+		this.typeDescriptor = Descriptor.of(typeName);
+		this.values = values;
+		this.merge = merge;
+		this.missing = new TreeSet<>(encoder.getRequiredMembers());
+		missing.removeAll(values.keySet());
+
+		ConstPool scratch = new ConstPool("AnnotationTemplate");
+		AnnotationsAttribute attr = new AnnotationsAttribute(scratch,
+				AnnotationsAttribute.visibleTag);
+		attr.addAnnotation(encoder.encode(scratch, values));
+		byte[] info = attr.get();
+		bytes = Arrays.copyOfRange(info, 2, info.length);
+
+		List<int[]> refs = new ArrayList<>();
+		walkAnnotation(bytes, 0, refs);
+		offsets = new int[refs.size()];
+		references = new int[refs.size()];
+		List<Object> curConstants = new ArrayList<>();
+		List<Character> curKinds = new ArrayList<>();
+		for (int index = 0; index < refs.size(); index++) {
+			int offset = refs.get(index)[0];
+			char kind = (char) refs.get(index)[1];
+			Object constant = constant(scratch, kind, u2(bytes, offset));
+			int constantIndex = indexOf(curConstants, curKinds, kind, constant);
+			if (constantIndex < 0) {
+				constantIndex = curConstants.size();
+				curConstants.add(constant);
+				curKinds.add(kind);
+			}
+			offsets[index] = offset;
+			references[index] = constantIndex;
+		}
+		constants = curConstants.toArray();
+		kinds = new char[curKinds.size()];
+		for (int index = 0; index < kinds.length; index++) {
+			kinds[index] = curKinds.get(index);
+		}
+	}
+
+	/**
+	 * @param merge
+	 *            True if the values only overwrite the members of the
+	 *            annotation the element already has.
+	 * @return The template for the values, shared with all creators of the
+	 *         same annotation. The template keeps a copy of the values.
+	 */
+	static AnnotationTemplate of(AnnotationEncoder encoder,
+			Map<String, Object> values, boolean merge) {
+		try {
+			return templates.get(Arrays.<Object> asList(encoder,
+					Collections.unmodifiableMap(new LinkedHashMap<>(values)),
+					merge));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static int indexOf(List<Object> constants, List<Character> kinds,
+			char kind, Object constant) {
+		for (int index = 0; index < constants.size(); index++) {
+			if (kinds.get(index) == kind
+					&& constants.get(index).equals(constant))
+				return index;
+		}
+		return -1;
+	}
+
+	private static Object constant(ConstPool cp, char kind, int index) {
+		switch (kind) {
+		case UTF8:
+			return cp.getUtf8Info(index);
+		case 'I':
+			return cp.getIntegerInfo(index);
+		case 'J':
+			return cp.getLongInfo(index);
+		case 'F':
+			return cp.getFloatInfo(index);
+		default:
+			return cp.getDoubleInfo(index);
+		}
+	}
+
+	private static int addConstant(ConstantPoolAccess cp, char kind,
+			Object constant) {
+		switch (kind) {
+		case UTF8:
+			return cp.addUtf8((String) constant);
+		case 'I':
+			return cp.addInteger((Integer) constant);
+		case 'J':
+			return cp.addLong((Long) constant);
+		case 'F':
+			return cp.addFloat((Float) constant);
+		default:
+			return cp.addDouble((Double) constant);
+		}
+	}
+
+	/**
+	 * Walks an annotation structure, recording the offset and kind of every
+	 * constant pool reference when refs is not null.
+	 * 
+	 * @return The offset after the annotation.
+	 */
+	static int walkAnnotation(byte[] b, int pos, List<int[]> refs) {
+		ref(refs, pos, UTF8);
+		int pairs = u2(b, pos + 2);
+		pos += 4;
+		for (int index = 0; index < pairs; index++) {
+			ref(refs, pos, UTF8);
+			pos = walkElementValue(b, pos + 2, refs);
+		}
+		return pos;
+	}
+
+	private static int walkElementValue(byte[] b, int pos, List<int[]> refs) {
+		char tag = (char) b[pos];
+		switch (tag) {
+		case 'B':
+		case 'C':
+		case 'I':
+		case 'S':
+		case 'Z':
+			ref(refs, pos + 1, 'I');
+			return pos + 3;
+		case 'J':
+		case 'F':
+		case 'D':
+			ref(refs, pos + 1, tag);
+			return pos + 3;
+		case 's':
+		case 'c':
+			ref(refs, pos + 1, UTF8);
+			return pos + 3;
+		case 'e':
+			ref(refs, pos + 1, UTF8);
+			ref(refs, pos + 3, UTF8);
+			return pos + 5;
+		case '@':
+			return walkAnnotation(b, pos + 1, refs);
+		case '[':
+			int count = u2(b, pos + 1);
+			pos += 3;
+			for (int index = 0; index < count; index++) {
+				pos = walkElementValue(b, pos, refs);
+			}
+			return pos;
+		default:
+			throw new IllegalArgumentException("Invalid element value tag "
+					+ tag);
+		}
+	}
+
+	private static void ref(List<int[]> refs, int offset, char kind) {
+		if (refs != null) {
+			refs.add(new int[] { offset, kind });
+		}
+	}
+
+	static int u2(byte[] b, int pos) {
+		return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+	}
+
+	private static void putU2(byte[] b, int pos, int value) {
+		b[pos] = (byte) (value >>> 8);
+		b[pos + 1] = (byte) value;
+	}
+
+	/**
+	 * Adds the constants to the pool, reusing the indices of the previous
+	 * relocation when it was to the same pool.
+	 */
+	private int[] relocate(ConstantPoolAccess cp) {
+		Relocation last = lastRelocation;
+		if (last != null && last.get() == cp.getPool())
+			return last.indices;
+		int[] ret = new int[constants.length];
+		for (int index = 0; index < constants.length; index++) {
+			ret[index] = addConstant(cp, kinds[index], constants[index]);
+		}
+		lastRelocation = new Relocation(cp.getPool(), ret);
+		return ret;
+	}
+
+	/**
+	 * @return The bytes of the annotation, referring to the constants in the
+	 *         given pool.
+	 */
+	private byte[] toBytes(ConstantPoolAccess cp) {
+		int[] indices = relocate(cp);
+		byte[] ret = bytes.clone();
+		for (int index = 0; index < offsets.length; index++) {
+			putU2(ret, offsets[index], indices[references[index]]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the annotation to the attribute, replacing an annotation of the
+	 * same type, or merging into it for a merge template.
+	 */
+	void addTo(AnnotationsAttribute attr) {
+		attr.set(addTo(attr.get(), new JavassistConstants(attr.getConstPool())));
+	}
+
+	/**
+	 * Adds the annotation to the contents of an annotations attribute,
+	 * replacing an annotation of the same type. A merge template only
+	 * replaces the members it has values for, the other members of the
+	 * existing annotation are kept. Without an existing annotation, a merge
+	 * template is added as it is, provided it has values for all members
+	 * without a default. The other annotations are copied as they are,
+	 * without parsing their values.
+	 * 
+	 * @return The new contents of the attribute.
+	 * @throws IllegalStateException
+	 *             if there is nothing to merge with and the template is not a
+	 *             complete annotation
+	 */
+	byte[] addTo(byte[] info, ConstantPoolAccess cp) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(info.length
+				+ bytes.length + 2);
+		int count = info.length < 2 ? 0 : u2(info, 0);
+		int kept = 0;
+		int existing = -1;
+		out.write(0);
+		out.write(0);
+		int pos = 2;
+		for (int index = 0; index < count; index++) {
+			int end = walkAnnotation(info, pos, null);
+			if (!typeDescriptor.equals(cp.getUtf8(u2(info, pos)))) {
+				out.write(info, pos, end - pos);
+				kept++;
+			} else {
+				existing = pos;
+			}
+			pos = end;
+		}
+		if (merge && existing < 0 && !missing.isEmpty())
+			throw new IllegalStateException("Cannot merge " + this
+					+ ", the element has no annotation to merge with "
+					+ "and there are no values for " + missing);
+		byte[] annotation = toBytes(cp);
+		if (merge && existing >= 0) {
+			writeMerged(out, annotation, info, existing, cp);
+		} else {
+			out.write(annotation, 0, annotation.length);
+		}
+		byte[] ret = out.toByteArray();
+		putU2(ret, 0, kept + 1);
+		return ret;
+	}
+
+	/**
+	 * Writes the existing annotation with the members of this template
+	 * replaced.
+	 */
+	private void writeMerged(ByteArrayOutputStream out, byte[] annotation,
+			byte[] info, int existing, ConstantPoolAccess cp) {
+		ByteArrayOutputStream keptPairs = new ByteArrayOutputStream();
+		int kept = 0;
+		int pairs = u2(info, existing + 2);
+		int pos = existing + 4;
+		for (int index = 0; index < pairs; index++) {
+			int end = walkElementValue(info, pos + 2, null);
+			if (!values.containsKey(cp.getUtf8(u2(info, pos)))) {
+				keptPairs.write(info, pos, end - pos);
+				kept++;
+			}
+			pos = end;
+		}
+		out.write(annotation, 0, 2);
+		int total = kept + u2(annotation, 2);
+		out.write(total >>> 8);
+		out.write(total);
+		byte[] keptBytes = keptPairs.toByteArray();
+		out.write(keptBytes, 0, keptBytes.length);
+		out.write(annotation, 4, annotation.length - 4);
+	}
+
+	@Override
+	public String toString() {
+		return "@" + typeName + values + (merge ? " (merge)" : "");
+	}
+}
@@ -0,0 +1,41 @@
+package nl.topicus.annotator.impl;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Arrays;
+import java.util.Collections;
+
+public final class AnnotationTypes {
+	private AnnotationTypes() {
+	}
+
+	/**
+	 * Checks that the annotation type may be placed on at least one of the
+	 * given element types.
+	 * 
+	 * @param description
+	 *            The description of the element, used in the exception.
+	 */
+	public static void checkTarget(Class<? extends Annotation> annotationType,
+			String description, ElementType... elementTypes) {
+		Target target = annotationType.getAnnotation(Target.class);
+		if (target != null
+				&& Collections.disjoint(Arrays.asList(target.value()),
+						Arrays.asList(elementTypes))) {
+			throw new IllegalArgumentException("@" + annotationType
+					+ " is not allowed on " + description);
+		}
+	}
+
+	public static void checkRuntimeRetained(
+			Class<? extends Annotation> annotationType) {
+		Retention retention = annotationType.getAnnotation(Retention.class);
+		if (retention == null || retention.value() != RetentionPolicy.RUNTIME) {
+			throw new IllegalArgumentException("@" + annotationType
+					+ " is not retained at runtime");
+		}
+	}
+}
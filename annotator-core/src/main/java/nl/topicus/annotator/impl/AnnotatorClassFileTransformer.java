@@ -4,42 +4,232 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtClass;
+import javassist.LoaderClassPath;
 import javassist.NotFoundException;
+import nl.topicus.annotator.agent.FusibleTransformer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class AnnotatorClassFileTransformer implements ClassFileTransformer {
+public class AnnotatorClassFileTransformer implements FusibleTransformer {
 	private static final Logger log = LoggerFactory
 			.getLogger(AnnotatorClassFileTransformer.class);
 
 	private List<? extends AnnotationMutator> mutators;
 
+	/**
+	 * True if all mutators can rewrite the class file directly, without
+	 * parsing it with javassist.
+	 */
+	private boolean streaming;
+
+	/**
+	 * The fingerprint of the mutators, computed when first needed. Empty if
+	 * one of the mutators has none.
+	 */
+	private volatile String fingerprint;
+
+	/**
+	 * The class file {@link #precompute(String, byte[]) precomputed} for, and
+	 * the result of the transformation.
+	 */
+	private volatile byte[][] precomputed;
+
 	public AnnotatorClassFileTransformer(
 			List<? extends AnnotationMutator> mutators) {
 		this.mutators = mutators;
+		streaming = true;
+		for (AnnotationMutator curMutator : mutators) {
+			streaming &= curMutator instanceof StreamingAnnotationMutator;
+		}
+	}
+
+	/**
+	 * Fuses this transformer with the next one if that is also an
+	 * {@link AnnotatorClassFileTransformer}. The fused transformer parses and
+	 * writes the class once, without the mutators that are superseded by a
+	 * later one. A precomputed transformation is kept when the fused
+	 * transformer has the same mutators as the one that precomputed it.
+	 */
+	@Override
+	public FusibleTransformer fuse(ClassFileTransformer next) {
+		if (!(next instanceof AnnotatorClassFileTransformer))
+			return null;
+		AnnotatorClassFileTransformer nextTransformer = (AnnotatorClassFileTransformer) next;
+		List<AnnotationMutator> fused = new ArrayList<>(mutators);
+		fused.addAll(nextTransformer.mutators);
+		AnnotatorClassFileTransformer ret = new AnnotatorClassFileTransformer(
+				dropSuperseded(fused));
+		if (ret.mutators.equals(nextTransformer.mutators)) {
+			ret.precomputed = nextTransformer.precomputed;
+		} else if (ret.mutators.equals(mutators)) {
+			ret.precomputed = precomputed;
+		}
+		return ret;
+	}
+
+	private static List<AnnotationMutator> dropSuperseded(
+			List<AnnotationMutator> mutators) {
+		Map<Object, AnnotationMutator> ret = new LinkedHashMap<>();
+		for (AnnotationMutator curMutator : mutators) {
+			Object key = curMutator.getKey();
+			if (key == null) {
+				key = new Object();
+			}
+			ret.remove(key);
+			ret.put(key, curMutator);
+		}
+		return new ArrayList<>(ret.values());
+	}
+
+	/**
+	 * Transforms the given class file ahead of time, outside the
+	 * retransformation of the class. When the JVM later passes the same class
+	 * file to {@link #transform}, the precomputed bytes are returned without
+	 * parsing the class again. This method can be called from any thread.
+	 * 
+	 * @param loader
+	 *            The defining loader of the class.
+	 */
+	public void precompute(ClassLoader loader, String className,
+			byte[] classfileBuffer) {
+		if (log.isDebugEnabled()) {
+			log.debug("Precomputing transformation of " + className);
+		}
+		byte[] transformed = transform(loader, classfileBuffer);
+		precomputed = new byte[][] { classfileBuffer, transformed };
+	}
+
+	/**
+	 * Transforms the class file outside of the JVM's class loading, for example
+	 * when classes are woven at build time. This method can be called from any
+	 * thread.
+	 * 
+	 * @param loader
+	 *            The loader used to resolve the types the mutators need.
+	 */
+	public byte[] transformClassFile(ClassLoader loader, byte[] classfileBuffer) {
+		return transform(loader, classfileBuffer);
 	}
 
 	@Override
 	public byte[] transform(ClassLoader loader, String className,
 			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
 			byte[] classfileBuffer) {
+		byte[][] curPrecomputed = precomputed;
+		if (curPrecomputed != null) {
+			precomputed = null;
+			if (Arrays.equals(curPrecomputed[0], classfileBuffer)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Using precomputed transformation of "
+							+ className);
+				}
+				return curPrecomputed[1];
+			}
+		}
 		log.info("Transforming " + className);
-		ClassPool pool = ClassPool.getDefault();
+		return transform(loader, classfileBuffer);
+	}
+
+	/**
+	 * Transforms the class file, or reads the result from the
+	 * {@link TransformationCache} when it is enabled. A transformation that
+	 * does not change the class is not cached, and returns the given class
+	 * file, as callers check that by identity.
+	 */
+	private byte[] transform(ClassLoader loader, byte[] classfileBuffer) {
+		TransformationCache cache = TransformationCache.get();
+		String key = null;
+		if (cache != null && !getFingerprint().isEmpty()) {
+			key = cache.key(classfileBuffer, getFingerprint());
+			byte[] cached = cache.read(key);
+			if (cached != null)
+				return Arrays.equals(cached, classfileBuffer) ? classfileBuffer
+						: cached;
+		}
+		byte[] ret;
+		if (streaming) {
+			ret = stream(classfileBuffer);
+		} else {
+			ret = transform(newPool(loader), classfileBuffer);
+		}
+		if (key != null && ret != classfileBuffer) {
+			cache.write(key, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return A canonical description of the mutators, which is the same for
+	 *         transformers with the same effect, or an empty string if one of
+	 *         the mutators cannot describe itself.
+	 */
+	public String getFingerprint() {
+		String ret = fingerprint;
+		if (ret == null) {
+			StringBuilder builder = new StringBuilder();
+			for (AnnotationMutator curMutator : mutators) {
+				String curFingerprint = curMutator.getFingerprint();
+				if (curFingerprint == null) {
+					builder.setLength(0);
+					break;
+				}
+				builder.append(curFingerprint).append('\n');
+			}
+			ret = builder.toString();
+			fingerprint = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Applies the mutators to the class file without parsing it into a
+	 * {@link CtClass}, which needs no class pool.
+	 */
+	private byte[] stream(byte[] classfileBuffer) {
+		try {
+			ClassFileRewriter rewriter = new ClassFileRewriter(classfileBuffer);
+			for (AnnotationMutator curMutator : mutators) {
+				((StreamingAnnotationMutator) curMutator).mutate(rewriter);
+			}
+			return rewriter.toBytes();
+		} catch (NotFoundException e) {
+			log.error(e.getMessage(), e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return A pool resolving the classes the mutators need the way the
+	 *         loader resolves them. Only mutators that cannot rewrite the class
+	 *         file directly need one, which none of the built-in ones do, so a
+	 *         pool is not worth keeping between transformations.
+	 */
+	private static ClassPool newPool(ClassLoader loader) {
+		ClassPool ret = new ClassPool(true);
+		if (loader != null) {
+			ret.insertClassPath(new LoaderClassPath(loader));
+		}
+		return ret;
+	}
+
+	private byte[] transform(ClassPool pool, byte[] classfileBuffer) {
 		try {
 			CtClass jClass = pool.makeClass(new ByteArrayInputStream(
 					classfileBuffer));
 			for (AnnotationMutator curCreator : mutators) {
 				curCreator.mutate(jClass);
 			}
-			byte[] ret = jClass.toBytecode();
-			jClass.defrost();
-			return ret;
+			return jClass.toBytecode();
 		} catch (IOException | CannotCompileException | NotFoundException e) {
 			log.error(e.getMessage(), e);
 			throw new RuntimeException(e);
@@ -0,0 +1,56 @@
+package nl.topicus.annotator.impl;
+
+import java.security.ProtectionDomain;
+import java.util.zip.CRC32;
+
+import nl.topicus.annotator.agent.VersionedTransformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the mutators only to the class file with the expected checksum. The
+ * annotations were recorded for that version of the class, another version
+ * might not declare the same methods, so its annotations are dropped. The
+ * checksum is checked by the agent on the original class file, as other
+ * transformers may have changed the class file this transformer gets.
+ */
+public class ChecksumClassFileTransformer implements VersionedTransformer {
+	private static final Logger log = LoggerFactory
+			.getLogger(ChecksumClassFileTransformer.class);
+
+	private long checksum;
+	private AnnotatorClassFileTransformer transformer;
+
+	public ChecksumClassFileTransformer(long checksum,
+			AnnotatorClassFileTransformer transformer) {
+		this.checksum = checksum;
+		this.transformer = transformer;
+	}
+
+	/**
+	 * @return The CRC-32 checksum of the class file.
+	 */
+	public static long checksum(byte[] classfileBuffer) {
+		CRC32 crc = new CRC32();
+		crc.update(classfileBuffer, 0, classfileBuffer.length);
+		return crc.getValue();
+	}
+
+	@Override
+	public boolean accepts(String className, byte[] originalClassFile) {
+		if (checksum(originalClassFile) == checksum)
+			return true;
+		log.info("Dropping the annotations recorded for "
+				+ className.replace('/', '.') + ", its class file has changed");
+		return false;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) {
+		return transformer.transform(loader, className, classBeingRedefined,
+				protectionDomain, classfileBuffer);
+	}
+}
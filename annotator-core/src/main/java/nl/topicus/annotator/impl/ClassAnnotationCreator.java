@@ -1,5 +1,6 @@
 package nl.topicus.annotator.impl;
 
+import java.lang.annotation.Annotation;
 import java.util.Map;
 
 import org.slf4j.LoggerFactory;
@@ -10,7 +11,6 @@ import javassist.CtClass;
 import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.ClassFile;
-import javassist.bytecode.annotation.Annotation;
 
 public class ClassAnnotationCreator extends AbstractAnnotationCreator {
 	private static final Logger log = LoggerFactory
@@ -21,14 +21,39 @@ public class ClassAnnotationCreator extends AbstractAnnotationCreator {
 		super(annotationName, values);
 	}
 
+	public ClassAnnotationCreator(String annotationName,
+			Map<String, Object> values, boolean merge) {
+		super(annotationName, values, merge);
+	}
+
+	public ClassAnnotationCreator(Class<? extends Annotation> annotationType,
+			Map<String, Object> values, boolean merge) {
+		super(annotationType, values, merge);
+	}
+
 	@Override
-	protected void addAnnotationToElement(CtClass jClass, Annotation annotation)
-			throws NotFoundException {
+	protected String getElementKey() {
+		return "";
+	}
+
+	@Override
+	protected void addAnnotationToElement(CtClass jClass,
+			AnnotationTemplate annotation) throws NotFoundException {
 		if (log.isInfoEnabled()) {
 			log.info("Adding " + annotation + " to " + jClass);
 		}
 		AnnotationsAttribute attr = findOrCreateAttribute(jClass);
-		attr.addAnnotation(annotation);
+		annotation.addTo(attr);
+	}
+
+	@Override
+	protected void addAnnotationToElement(ClassFileRewriter rewriter,
+			AnnotationTemplate annotation) {
+		if (log.isInfoEnabled()) {
+			log.info("Adding " + annotation + " to "
+					+ rewriter.getClassName().replace('/', '.'));
+		}
+		rewriter.addAnnotation(ClassFileRewriter.CLASS, annotation);
 	}
 
 	private AnnotationsAttribute findOrCreateAttribute(CtClass jClass) {
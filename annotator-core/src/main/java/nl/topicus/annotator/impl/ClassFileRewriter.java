@@ -0,0 +1,441 @@
+package nl.topicus.annotator.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adds annotations to a class file without parsing it into a
+ * {@link javassist.CtClass}. Only the constant pool, the method headers and
+ * the attribute tables are indexed. Writing the class copies all unchanged
+ * byte ranges, appends the new constants to the pool and rewrites only the
+ * annotation attributes that were changed. Instances are used by a single
+ * thread for a single class file.
+ */
+public final class ClassFileRewriter implements ConstantPoolAccess {
+	/**
+	 * The element index of the class itself.
+	 */
+	static final int CLASS = -1;
+
+	private static final String ANNOTATIONS_NAME = "RuntimeVisibleAnnotations";
+
+	private static final int UTF8 = 1;
+	private static final int INTEGER = 3;
+	private static final int FLOAT = 4;
+	private static final int LONG = 5;
+	private static final int DOUBLE = 6;
+
+	private final byte[] b;
+	private final int[] cpOffsets;
+	private final int cpEnd;
+	private final int thisClass;
+	/**
+	 * The offsets of every method and of the end of the methods.
+	 */
+	private final int[] methodOffsets;
+	private final int classAttributes;
+
+	/**
+	 * The strings of the original pool decoded so far, by index.
+	 */
+	private final String[] utf8;
+	/**
+	 * The index of every method by its name and descriptor, built on the
+	 * first lookup.
+	 */
+	private Map<String, Integer> methods;
+	/**
+	 * The index of the first constant of the original pool with the same tag
+	 * and contents, for the tags constants are added with, built on the first
+	 * lookup.
+	 */
+	private Map<ByteBuffer, Integer> constants;
+
+	private final ByteArrayOutputStream newConstants = new ByteArrayOutputStream();
+	private final Map<List<Object>, Integer> newConstantIndices = new HashMap<>();
+	private final Map<Integer, String> newUtf8 = new HashMap<>();
+	private int constantCount;
+	private int annotationsName = -2;
+
+	/**
+	 * The new contents of the annotations attribute of every changed element,
+	 * by the offset of its attribute table.
+	 */
+	private final Map<Integer, byte[]> edits = new TreeMap<>();
+
+	public ClassFileRewriter(byte[] classfileBuffer) {
+		this.b = classfileBuffer;
+		if (u4(0) != 0xCAFEBABE)
+			throw new IllegalArgumentException("Not a class file");
+		constantCount = u2(8);
+		cpOffsets = new int[constantCount];
+		int pos = 10;
+		for (int index = 1; index < constantCount; index++) {
+			cpOffsets[index] = pos;
+			int tag = b[pos];
+			switch (tag) {
+			case UTF8:
+				pos += 3 + u2(pos + 1);
+				break;
+			case 7:
+			case 8:
+			case 16:
+			case 19:
+			case 20:
+				pos += 3;
+				break;
+			case 15:
+				pos += 4;
+				break;
+			case INTEGER:
+			case FLOAT:
+			case 9:
+			case 10:
+			case 11:
+			case 12:
+			case 17:
+			case 18:
+				pos += 5;
+				break;
+			case LONG:
+			case DOUBLE:
+				pos += 9;
+				index++;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid constant pool tag "
+						+ tag + " at " + pos);
+			}
+		}
+		cpEnd = pos;
+		utf8 = new String[constantCount];
+		thisClass = u2(pos + 2);
+		pos += 8 + 2 * u2(pos + 6);
+		int fields = u2(pos);
+		pos += 2;
+		for (int index = 0; index < fields; index++) {
+			pos = skipAttributes(pos + 6);
+		}
+		methodOffsets = new int[u2(pos) + 1];
+		pos += 2;
+		for (int index = 0; index < methodOffsets.length - 1; index++) {
+			methodOffsets[index] = pos;
+			pos = skipAttributes(pos + 6);
+		}
+		methodOffsets[methodOffsets.length - 1] = pos;
+		classAttributes = pos;
+	}
+
+	private int skipAttributes(int pos) {
+		int count = u2(pos);
+		pos += 2;
+		for (int index = 0; index < count; index++) {
+			pos += 6 + u4(pos + 2);
+		}
+		return pos;
+	}
+
+	/**
+	 * @return The internal name of the class.
+	 */
+	public String getClassName() {
+		return getUtf8(u2(cpOffsets[thisClass] + 1));
+	}
+
+	public int getMethodCount() {
+		return methodOffsets.length - 1;
+	}
+
+	public String getMethodName(int method) {
+		return getUtf8(u2(methodOffsets[method] + 2));
+	}
+
+	public String getMethodDescriptor(int method) {
+		return getUtf8(u2(methodOffsets[method] + 4));
+	}
+
+	/**
+	 * @return The index of the method declared by the class, or -1 if the
+	 *         class does not declare it.
+	 */
+	public int findMethod(String name, String descriptor) {
+		if (methods == null) {
+			methods = new HashMap<>();
+			for (int index = getMethodCount() - 1; index >= 0; index--) {
+				methods.put(getMethodName(index) + getMethodDescriptor(index),
+						index);
+			}
+		}
+		Integer ret = methods.get(name + descriptor);
+		return ret == null ? -1 : ret;
+	}
+
+	/**
+	 * Adds the annotation to the class or one of its methods, replacing an
+	 * annotation of the same type.
+	 *
+	 * @param element
+	 *            The index of the method, or {@link #CLASS}.
+	 */
+	void addAnnotation(int element, AnnotationTemplate annotation) {
+		int attributes = attributesOf(element);
+		byte[] info = edits.get(attributes);
+		if (info == null) {
+			int attr = findAnnotations(attributes);
+			info = attr < 0 ? new byte[] { 0, 0 } : Arrays.copyOfRange(b,
+					attr + 6, attr + 6 + u4(attr + 2));
+		}
+		if (annotationsName < 0) {
+			annotationsName = addUtf8(ANNOTATIONS_NAME);
+		}
+		edits.put(attributes, annotation.addTo(info, this));
+	}
+
+	private int attributesOf(int element) {
+		return element == CLASS ? classAttributes
+				: methodOffsets[element] + 6;
+	}
+
+	/**
+	 * @return The offset of the annotations attribute in the attribute table,
+	 *         or -1 if there is none.
+	 */
+	private int findAnnotations(int pos) {
+		if (annotationsName == -2) {
+			annotationsName = findUtf8(utf(ANNOTATIONS_NAME));
+		}
+		if (annotationsName < 0)
+			return -1;
+		int count = u2(pos);
+		pos += 2;
+		for (int index = 0; index < count; index++) {
+			if (u2(pos) == annotationsName)
+				return pos;
+			pos += 6 + u4(pos + 2);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The class file with all annotations added, or the original bytes
+	 *         when nothing was added.
+	 */
+	public byte[] toBytes() {
+		if (edits.isEmpty())
+			return b;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(b.length
+				+ newConstants.size() + 256);
+		out.write(b, 0, 8);
+		writeU2(out, constantCount);
+		out.write(b, 10, cpEnd - 10);
+		byte[] constants = newConstants.toByteArray();
+		out.write(constants, 0, constants.length);
+		int pos = cpEnd;
+		for (Map.Entry<Integer, byte[]> curEdit : edits.entrySet()) {
+			int attributes = curEdit.getKey();
+			out.write(b, pos, attributes - pos);
+			pos = writeAttributes(out, attributes, curEdit.getValue());
+		}
+		out.write(b, pos, b.length - pos);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the attribute table with the annotations attribute replaced or
+	 * added.
+	 *
+	 * @return The offset after the original attribute table.
+	 */
+	private int writeAttributes(ByteArrayOutputStream out, int pos,
+			byte[] annotations) {
+		int attr = findAnnotations(pos);
+		int count = u2(pos);
+		int end = skipAttributes(pos);
+		writeU2(out, attr < 0 ? count + 1 : count);
+		if (attr < 0) {
+			out.write(b, pos + 2, end - pos - 2);
+			writeAnnotations(out, annotations);
+		} else {
+			out.write(b, pos + 2, attr - pos - 2);
+			writeAnnotations(out, annotations);
+			int next = attr + 6 + u4(attr + 2);
+			out.write(b, next, end - next);
+		}
+		return end;
+	}
+
+	private void writeAnnotations(ByteArrayOutputStream out, byte[] info) {
+		writeU2(out, annotationsName);
+		writeU2(out, info.length >>> 16);
+		writeU2(out, info.length);
+		out.write(info, 0, info.length);
+	}
+
+	@Override
+	public Object getPool() {
+		return this;
+	}
+
+	@Override
+	public String getUtf8(int index) {
+		if (index >= cpOffsets.length)
+			return newUtf8.get(index);
+		String ret = utf8[index];
+		if (ret == null) {
+			try {
+				ret = new DataInputStream(new ByteArrayInputStream(b,
+						cpOffsets[index] + 1, b.length)).readUTF();
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+			utf8[index] = ret;
+		}
+		return ret;
+	}
+
+	@Override
+	public int addUtf8(String value) {
+		byte[] utf = utf(value);
+		int ret = findUtf8(utf);
+		if (ret < 0) {
+			ret = addConstant(UTF8, value, utf, 1);
+			newUtf8.put(ret, value);
+		}
+		return ret;
+	}
+
+	@Override
+	public int addInteger(int value) {
+		return addConstant(INTEGER, value, value);
+	}
+
+	@Override
+	public int addFloat(float value) {
+		return addConstant(FLOAT, value, Float.floatToIntBits(value));
+	}
+
+	@Override
+	public int addLong(long value) {
+		return addConstant(LONG, value, value);
+	}
+
+	@Override
+	public int addDouble(double value) {
+		return addConstant(DOUBLE, value, Double.doubleToLongBits(value));
+	}
+
+	private int addConstant(int tag, Object value, int bits) {
+		byte[] data = new byte[] { (byte) (bits >>> 24), (byte) (bits >>> 16),
+				(byte) (bits >>> 8), (byte) bits };
+		int ret = findConstant(tag, data);
+		return ret < 0 ? addConstant(tag, value, data, 1) : ret;
+	}
+
+	private int addConstant(int tag, Object value, long bits) {
+		byte[] data = new byte[8];
+		for (int index = 0; index < 8; index++) {
+			data[index] = (byte) (bits >>> (56 - 8 * index));
+		}
+		int ret = findConstant(tag, data);
+		return ret < 0 ? addConstant(tag, value, data, 2) : ret;
+	}
+
+	/**
+	 * Appends the constant to the pool, unless it was appended before.
+	 */
+	private int addConstant(int tag, Object value, byte[] data, int slots) {
+		List<Object> key = Arrays.<Object> asList(tag, value);
+		Integer ret = newConstantIndices.get(key);
+		if (ret == null) {
+			ret = constantCount;
+			constantCount += slots;
+			if (constantCount > 0xFFFF)
+				throw new IllegalStateException("Constant pool overflow");
+			newConstants.write(tag);
+			newConstants.write(data, 0, data.length);
+			newConstantIndices.put(key, ret);
+		}
+		return ret;
+	}
+
+	private int findUtf8(byte[] utf) {
+		return findConstant(UTF8, utf);
+	}
+
+	/**
+	 * @return The index of the constant in the original pool with the given
+	 *         tag and contents, or -1.
+	 */
+	private int findConstant(int tag, byte[] data) {
+		if (constants == null) {
+			constants = new HashMap<>();
+			for (int index = 1; index < cpOffsets.length; index++) {
+				int offset = cpOffsets[index];
+				if (offset == 0)
+					continue;
+				int length;
+				switch (b[offset]) {
+				case UTF8:
+					length = 3 + u2(offset + 1);
+					break;
+				case INTEGER:
+				case FLOAT:
+					length = 5;
+					break;
+				case LONG:
+				case DOUBLE:
+					length = 9;
+					break;
+				default:
+					continue;
+				}
+				ByteBuffer key = ByteBuffer.wrap(b, offset, length).slice();
+				if (!constants.containsKey(key)) {
+					constants.put(key, index);
+				}
+			}
+		}
+		byte[] key = new byte[data.length + 1];
+		key[0] = (byte) tag;
+		System.arraycopy(data, 0, key, 1, data.length);
+		Integer ret = constants.get(ByteBuffer.wrap(key));
+		return ret == null ? -1 : ret;
+	}
+
+	/**
+	 * @return The string in modified UTF-8, prefixed by its length, as it is
+	 *         stored in the constant pool.
+	 */
+	private static byte[] utf(String value) {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream(
+				value.length() + 2);
+		try {
+			new DataOutputStream(ret).writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return ret.toByteArray();
+	}
+
+	private static void writeU2(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private int u2(int pos) {
+		return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+	}
+
+	private int u4(int pos) {
+		return (u2(pos) << 16) | u2(pos + 2);
+	}
+}
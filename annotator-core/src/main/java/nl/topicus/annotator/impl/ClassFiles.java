@@ -0,0 +1,32 @@
+package nl.topicus.annotator.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteStreams;
+
+public final class ClassFiles {
+	private ClassFiles() {
+	}
+
+	/**
+	 * @return The name of the class file resource of the given class, relative
+	 *         to the root of its class path entry.
+	 */
+	public static String resourceName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/') + ".class";
+	}
+
+	/**
+	 * Reads the class file of the given class from its class loader.
+	 * 
+	 * @return The bytes of the class file, or null if the class file cannot be
+	 *         found.
+	 */
+	public static byte[] read(Class<?> clazz) throws IOException {
+		try (InputStream in = clazz.getResourceAsStream("/"
+				+ resourceName(clazz))) {
+			return in == null ? null : ByteStreams.toByteArray(in);
+		}
+	}
+}
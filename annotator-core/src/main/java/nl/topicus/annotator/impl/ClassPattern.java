@@ -0,0 +1,87 @@
+package nl.topicus.annotator.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * A pattern for binary class names. A <code>*</code> matches any part of a
+ * package or class name, <code>..</code> matches any number of packages. For
+ * example <code>com.shop.data..*Repository</code> matches all classes ending
+ * with Repository in the package com.shop.data and all its subpackages.
+ */
+public class ClassPattern {
+	private String pattern;
+	private Pattern regex;
+	private String prefix;
+
+	public ClassPattern(String pattern) {
+		this.pattern = pattern;
+		StringBuilder ret = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		int index = 0;
+		while (index < pattern.length()) {
+			if (pattern.startsWith("..", index)) {
+				if (prefix == null)
+					prefix = literal.toString() + ".";
+				flush(ret, literal);
+				ret.append("\\.(?:[^.]+\\.)*");
+				index += 2;
+				if (index == pattern.length()) {
+					ret.append("[^.]+");
+				}
+			} else if (pattern.charAt(index) == '*') {
+				if (prefix == null)
+					prefix = literal.toString();
+				flush(ret, literal);
+				ret.append("[^.]*");
+				index++;
+			} else {
+				literal.append(pattern.charAt(index));
+				index++;
+			}
+		}
+		if (prefix == null)
+			prefix = literal.toString();
+		flush(ret, literal);
+		regex = Pattern.compile(ret.toString());
+		prefix = prefix.replace('.', '/');
+	}
+
+	private static void flush(StringBuilder regex, StringBuilder literal) {
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+			literal.setLength(0);
+		}
+	}
+
+	/**
+	 * @return The literal start of the pattern as an internal name, all
+	 *         matching classes start with this prefix.
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @param className
+	 *            The binary name of the class.
+	 */
+	public boolean matches(String className) {
+		return regex.matcher(className).matches();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof ClassPattern
+				&& ((ClassPattern) obj).pattern.equals(pattern);
+	}
+
+	@Override
+	public int hashCode() {
+		return pattern.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
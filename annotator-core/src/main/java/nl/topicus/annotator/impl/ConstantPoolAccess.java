@@ -0,0 +1,24 @@
+package nl.topicus.annotator.impl;
+
+/**
+ * Read and append access to the constant pool of the class being transformed.
+ * The add methods reuse an identical entry if the pool already has one.
+ */
+interface ConstantPoolAccess {
+	/**
+	 * @return The object holding the pool, the same for every access to it.
+	 */
+	Object getPool();
+
+	String getUtf8(int index);
+
+	int addUtf8(String value);
+
+	int addInteger(int value);
+
+	int addLong(long value);
+
+	int addFloat(float value);
+
+	int addDouble(double value);
+}
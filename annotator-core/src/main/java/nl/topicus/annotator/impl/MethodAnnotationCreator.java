@@ -1,5 +1,6 @@
 package nl.topicus.annotator.impl;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.Map;
 
@@ -11,7 +12,6 @@ import javassist.CtMethod;
 import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.MethodInfo;
-import javassist.bytecode.annotation.Annotation;
 import javassist.util.proxy.RuntimeSupport;
 
 public class MethodAnnotationCreator extends AbstractAnnotationCreator {
@@ -23,20 +23,66 @@ public class MethodAnnotationCreator extends AbstractAnnotationCreator {
 
 	public MethodAnnotationCreator(Method method, String annotationName,
 			Map<String, Object> values) {
-		super(annotationName, values);
-		name = method.getName();
-		descriptor = RuntimeSupport.makeDescriptor(method);
+		this(method.getName(), RuntimeSupport.makeDescriptor(method),
+				annotationName, values, false);
+	}
+
+	public MethodAnnotationCreator(Method method, String annotationName,
+			Map<String, Object> values, boolean merge) {
+		this(method.getName(), RuntimeSupport.makeDescriptor(method),
+				annotationName, values, merge);
+	}
+
+	public MethodAnnotationCreator(String name, String descriptor,
+			String annotationName, Map<String, Object> values) {
+		this(name, descriptor, annotationName, values, false);
+	}
+
+	public MethodAnnotationCreator(String name, String descriptor,
+			String annotationName, Map<String, Object> values, boolean merge) {
+		super(annotationName, values, merge);
+		this.name = name;
+		this.descriptor = descriptor;
+	}
+
+	public MethodAnnotationCreator(String name, String descriptor,
+			Class<? extends Annotation> annotationType,
+			Map<String, Object> values, boolean merge) {
+		super(annotationType, values, merge);
+		this.name = name;
+		this.descriptor = descriptor;
 	}
 
 	@Override
-	protected void addAnnotationToElement(CtClass jClass, Annotation annotation)
-			throws NotFoundException {
+	protected String getElementKey() {
+		return name + descriptor;
+	}
+
+	@Override
+	protected void addAnnotationToElement(CtClass jClass,
+			AnnotationTemplate annotation) throws NotFoundException {
 		CtMethod jMethod = jClass.getMethod(name, descriptor);
 		if (log.isInfoEnabled()) {
 			log.info("Adding " + annotation + " to " + jMethod.getLongName());
 		}
 		AnnotationsAttribute attr = findOrCreateAttribute(jMethod);
-		attr.addAnnotation(annotation);
+		annotation.addTo(attr);
+	}
+
+	@Override
+	protected void addAnnotationToElement(ClassFileRewriter rewriter,
+			AnnotationTemplate annotation) throws NotFoundException {
+		String className = rewriter.getClassName().replace('/', '.');
+		int method = rewriter.findMethod(name, descriptor);
+		if (method < 0) {
+			throw new NotFoundException(name + descriptor + " in "
+					+ className);
+		}
+		if (log.isInfoEnabled()) {
+			log.info("Adding " + annotation + " to " + className + "." + name
+					+ descriptor);
+		}
+		rewriter.addAnnotation(method, annotation);
 	}
 
 	private AnnotationsAttribute findOrCreateAttribute(CtMethod jMethod) {
@@ -0,0 +1,48 @@
+package nl.topicus.annotator.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * A pattern for the name and descriptor of methods. A <code>*</code> matches
+ * any sequence of characters, for example <code>find*</code> and
+ * <code>(Ljava/lang/String;)*</code>.
+ */
+public class MethodPattern {
+	private String namePattern;
+	private String descriptorPattern;
+	private Pattern name;
+	private Pattern descriptor;
+
+	/**
+	 * @param descriptorPattern
+	 *            The pattern for the descriptor, or null to match all
+	 *            descriptors.
+	 */
+	public MethodPattern(String namePattern, String descriptorPattern) {
+		this.namePattern = namePattern;
+		this.descriptorPattern = descriptorPattern == null ? "*"
+				: descriptorPattern;
+		this.name = compile(this.namePattern);
+		this.descriptor = compile(this.descriptorPattern);
+	}
+
+	private static Pattern compile(String glob) {
+		StringBuilder ret = new StringBuilder();
+		for (String curPart : glob.split("\\*", -1)) {
+			if (ret.length() > 0)
+				ret.append(".*");
+			ret.append(Pattern.quote(curPart));
+		}
+		return Pattern.compile(ret.toString());
+	}
+
+	public boolean matches(String methodName, String methodDescriptor) {
+		return name.matcher(methodName).matches()
+				&& descriptor.matcher(methodDescriptor).matches();
+	}
+
+	@Override
+	public String toString() {
+		return namePattern + descriptorPattern;
+	}
+}
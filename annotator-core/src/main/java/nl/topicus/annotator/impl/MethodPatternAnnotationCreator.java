@@ -0,0 +1,83 @@
+package nl.topicus.annotator.impl;
+
+import java.lang.annotation.Annotation;
+import java.util.Map;
+
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.MethodInfo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds an annotation to all methods declared by the class that match a
+ * {@link MethodPattern}.
+ */
+public class MethodPatternAnnotationCreator extends AbstractAnnotationCreator {
+	private static final Logger log = LoggerFactory
+			.getLogger(MethodPatternAnnotationCreator.class);
+
+	private MethodPattern pattern;
+
+	public MethodPatternAnnotationCreator(MethodPattern pattern,
+			String annotationName, Map<String, Object> values) {
+		super(annotationName, values);
+		this.pattern = pattern;
+	}
+
+	public MethodPatternAnnotationCreator(MethodPattern pattern,
+			Class<? extends Annotation> annotationType,
+			Map<String, Object> values) {
+		super(annotationType, values, false);
+		this.pattern = pattern;
+	}
+
+	@Override
+	protected String getElementKey() {
+		return "pattern:" + pattern;
+	}
+
+	@Override
+	protected void addAnnotationToElement(CtClass jClass,
+			AnnotationTemplate annotation) throws NotFoundException {
+		for (CtMethod curMethod : jClass.getDeclaredMethods()) {
+			MethodInfo methodInfo = curMethod.getMethodInfo();
+			if (!pattern.matches(methodInfo.getName(),
+					methodInfo.getDescriptor()))
+				continue;
+			if (log.isInfoEnabled()) {
+				log.info("Adding " + annotation + " to "
+						+ curMethod.getLongName());
+			}
+			AnnotationsAttribute attr = (AnnotationsAttribute) methodInfo
+					.getAttribute(AnnotationsAttribute.visibleTag);
+			if (attr == null) {
+				attr = new AnnotationsAttribute(methodInfo.getConstPool(),
+						AnnotationsAttribute.visibleTag);
+				methodInfo.addAttribute(attr);
+			}
+			annotation.addTo(attr);
+		}
+	}
+
+	@Override
+	protected void addAnnotationToElement(ClassFileRewriter rewriter,
+			AnnotationTemplate annotation) {
+		for (int index = 0; index < rewriter.getMethodCount(); index++) {
+			String name = rewriter.getMethodName(index);
+			String descriptor = rewriter.getMethodDescriptor(index);
+			// constructors and initializers are not methods
+			if (name.startsWith("<") || !pattern.matches(name, descriptor))
+				continue;
+			if (log.isInfoEnabled()) {
+				log.info("Adding " + annotation + " to "
+						+ rewriter.getClassName().replace('/', '.') + "."
+						+ name + descriptor);
+			}
+			rewriter.addAnnotation(index, annotation);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package nl.topicus.annotator.impl;
+
+import java.security.ProtectionDomain;
+import java.util.List;
+
+import nl.topicus.annotator.agent.ClassRule;
+
+/**
+ * Applies the mutators to every class matching a {@link ClassPattern}.
+ */
+public class RuleClassFileTransformer implements ClassRule {
+	private ClassPattern pattern;
+	private AnnotatorClassFileTransformer transformer;
+
+	public RuleClassFileTransformer(ClassPattern pattern,
+			List<? extends AnnotationMutator> mutators) {
+		this.pattern = pattern;
+		this.transformer = new AnnotatorClassFileTransformer(mutators);
+	}
+
+	@Override
+	public String getPrefix() {
+		return pattern.getPrefix();
+	}
+
+	@Override
+	public boolean matches(String internalName) {
+		return pattern.matches(internalName.replace('/', '.'));
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) {
+		if (!matches(className))
+			return null;
+		return transformer.transform(loader, className, classBeingRedefined,
+				protectionDomain, classfileBuffer);
+	}
+}
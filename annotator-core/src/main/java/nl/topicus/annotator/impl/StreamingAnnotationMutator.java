@@ -0,0 +1,12 @@
+package nl.topicus.annotator.impl;
+
+import javassist.NotFoundException;
+
+/**
+ * A mutator that can also apply its change to a class file directly, through
+ * a {@link ClassFileRewriter}. A class is only parsed with javassist when one
+ * of its mutators does not support this.
+ */
+public interface StreamingAnnotationMutator extends AnnotationMutator {
+	public void mutate(ClassFileRewriter rewriter) throws NotFoundException;
+}
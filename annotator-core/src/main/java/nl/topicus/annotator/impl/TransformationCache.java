@@ -0,0 +1,175 @@
+package nl.topicus.annotator.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A cache of transformed class files on disk, shared by all JVMs using the
+ * same directory. An entry is keyed by the SHA-1 of the original class file
+ * and of the fingerprint of the mutators, and by the
+ * {@linkplain #FORMAT_VERSION format version}, so a class file is only reused
+ * for the same class with the same annotations. Entries are written to a
+ * temporary file that is renamed when complete, so other JVMs never see a
+ * partial entry. The cache is disabled until a directory is set.
+ * <p>
+ * The cache is not bounded, entries are never removed. It holds at most one
+ * entry per class and set of annotations, but old entries stay when classes or
+ * annotations change. The directory may be deleted at any time, a missing
+ * entry is transformed again.
+ */
+public final class TransformationCache {
+	private static final Logger log = LoggerFactory
+			.getLogger(TransformationCache.class);
+
+	/**
+	 * The version of the transformation, part of every key. It changes when
+	 * the class files written for the same class and annotations change, so
+	 * entries written by other versions are not used.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private static volatile TransformationCache instance;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private final File directory;
+
+	private TransformationCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the directory of the cache, which is created when needed.
+	 * 
+	 * @param directory
+	 *            The directory, or null to disable the cache.
+	 */
+	public static void setDirectory(File directory) {
+		instance = directory == null ? null : new TransformationCache(
+				directory);
+	}
+
+	/**
+	 * @return The directory of the cache, or null if it is disabled.
+	 */
+	public static File getDirectory() {
+		TransformationCache cache = instance;
+		return cache == null ? null : cache.directory;
+	}
+
+	/**
+	 * @return The number of transformations read from the cache.
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of transformations not found in the cache.
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The cache, or null if it is disabled.
+	 */
+	static TransformationCache get() {
+		return instance;
+	}
+
+	/**
+	 * @return The key of the transformation of the class file by the mutators
+	 *         with the given fingerprint.
+	 */
+	String key(byte[] classfileBuffer, String fingerprint) {
+		return sha1(classfileBuffer) + "-"
+				+ sha1(fingerprint.getBytes(StandardCharsets.UTF_8)) + "-v"
+				+ FORMAT_VERSION;
+	}
+
+	/**
+	 * @return The cached class file, or null if the cache has no valid entry
+	 *         for the key.
+	 */
+	byte[] read(String key) {
+		File file = file(key);
+		if (!file.isFile()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			byte[] ret = Files.readAllBytes(file.toPath());
+			if (ret.length < 4 || ByteBuffer.wrap(ret).getInt() != 0xCAFEBABE) {
+				log.warn("Ignoring invalid cache entry " + file);
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return ret;
+		} catch (IOException e) {
+			log.warn("Cannot read cache entry " + file, e);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the class file, replacing an entry another JVM may have written
+	 * in the meantime, which is equal. Failures are logged, the cache is
+	 * optional.
+	 */
+	void write(String key, byte[] classfileBuffer) {
+		File file = file(key);
+		File dir = file.getParentFile();
+		File temp = null;
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Cannot create " + dir);
+			temp = File.createTempFile(key, ".tmp", dir);
+			try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+				out.write(classfileBuffer);
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (IOException e) {
+			log.warn("Cannot write cache entry " + file, e);
+		} finally {
+			if (temp != null && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * @return The file of the entry, in a subdirectory per first byte of the
+	 *         key, so no directory gets too many entries.
+	 */
+	private File file(String key) {
+		return new File(new File(directory, key.substring(0, 2)), key
+				+ ".class");
+	}
+
+	private static String sha1(byte[] bytes) {
+		return Hashing.sha1().hashBytes(bytes).toString();
+	}
+}
@@ -0,0 +1,107 @@
+package nl.topicus.annotator.spec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.topicus.annotator.Annotator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Records the annotations of all annotators in an {@link OverlaySpec}. When
+ * the spec is applied on the next start, before the application registers
+ * its annotations, the classes are annotated when they are defined and the
+ * annotators of the application find them annotated already, so they are not
+ * retransformed. The spec lists the checksums of the annotated classes, the
+ * annotations recorded for a class that changed since are dropped.
+ */
+public final class OverlayRecorder {
+	private static final Logger log = LoggerFactory
+			.getLogger(OverlayRecorder.class);
+
+	private OverlayRecorder() {
+	}
+
+	/**
+	 * Enables recording and writes the spec to the file when the JVM shuts
+	 * down.
+	 */
+	public static void recordOnShutdown(final File file) {
+		Annotator.setRecording(true);
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("annotator-overlay-recorder") {
+					@Override
+					public void run() {
+						try {
+							write(file);
+						} catch (IOException e) {
+							log.warn("Cannot record the annotations in "
+									+ file, e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * @return The annotations of all annotators that processed annotations
+	 *         while recording was enabled.
+	 * @see Annotator#setRecording(boolean)
+	 */
+	public static OverlaySpec record() {
+		List<OverlaySpec.Entry> entries = new ArrayList<>();
+		Map<String, Long> checksums = new TreeMap<>();
+		for (Annotator curAnnotator : Annotator.getRecordedAnnotators()) {
+			OverlaySpec spec = curAnnotator.getOverlays();
+			entries.addAll(spec.getEntries());
+			checksums.putAll(spec.getChecksums());
+		}
+		return OverlaySpec.of(entries, checksums);
+	}
+
+	/**
+	 * Records the annotations and replaces the file with the spec. The file is
+	 * replaced atomically, so it can be read while it is written.
+	 */
+	public static void write(File file) throws IOException {
+		OverlaySpec spec = record();
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Cannot create " + dir);
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			try (Writer out = new OutputStreamWriter(new FileOutputStream(
+					temp), Charsets.UTF_8)) {
+				spec.write(out);
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} finally {
+			if (temp != null && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+		}
+		if (log.isInfoEnabled()) {
+			log.info("Recorded " + spec.getEntries().size()
+					+ " annotation(s) in " + file);
+		}
+	}
+}
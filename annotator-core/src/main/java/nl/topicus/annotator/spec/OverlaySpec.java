@@ -0,0 +1,379 @@
+package nl.topicus.annotator.spec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import nl.topicus.annotator.AnnotationBuilder;
+import nl.topicus.annotator.Annotator;
+import nl.topicus.annotator.impl.AnnotationMutator;
+import nl.topicus.annotator.impl.AnnotationTypes;
+import nl.topicus.annotator.impl.ClassAnnotationCreator;
+import nl.topicus.annotator.impl.MethodAnnotationCreator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A declarative set of annotations, read from a properties file. Every entry
+ * sets an annotation on a class or on a method, identified by its name and
+ * descriptor. The value of the entry lists the attributes of the annotation:
+ * 
+ * <pre>
+ * com.example.Service@javax.inject.Singleton=
+ * com.example.Service#find(Ljava/lang/String;)Ljava/util/List;@com.example.Cached=\
+ *     timeout=5, regions={"a", "b"}, unit=SECONDS
+ * com.example.Entity@com.example.Complex=nested=@com.example.Nested(value=x)
+ * </pre>
+ * 
+ * Strings can be quoted to include separators, classes are given by their
+ * binary name and enum constants by their name. Attributes with a default
+ * value can be omitted. The spec is validated completely when it is parsed.
+ * <p>
+ * A spec can also list the CRC-32 checksum of the class file of a class, as
+ * <code>com.example.Service!checksum=1a2b3c4d</code>. The entries for that
+ * class are then only applied to that version of the class. Specs
+ * {@link #write(Writer) written} from the annotations of an {@link Annotator}
+ * list the checksums of all annotated classes.
+ */
+public class OverlaySpec {
+	public static class Entry {
+		private String className;
+		private String methodName;
+		private String descriptor;
+		private AnnotationBuilder<?> builder;
+
+		/**
+		 * @param methodName
+		 *            The name of the method, or null to annotate the class.
+		 * @param descriptor
+		 *            The descriptor of the method, or null to annotate the
+		 *            class.
+		 */
+		public Entry(String className, String methodName, String descriptor,
+				AnnotationBuilder<?> builder) {
+			this.className = className;
+			this.methodName = methodName;
+			this.descriptor = descriptor;
+			this.builder = builder;
+		}
+
+		/**
+		 * @return The binary name of the class.
+		 */
+		public String getClassName() {
+			return className;
+		}
+
+		/**
+		 * @return The name of the method, or null if the class is annotated.
+		 */
+		public String getMethodName() {
+			return methodName;
+		}
+
+		/**
+		 * @return The descriptor of the method, or null if the class is
+		 *         annotated.
+		 */
+		public String getDescriptor() {
+			return descriptor;
+		}
+
+		public AnnotationBuilder<?> getBuilder() {
+			return builder;
+		}
+
+		/**
+		 * @return A mutator that sets the annotation on the class or method.
+		 */
+		public AnnotationMutator createMutator() {
+			// the type comes from the loader the spec was parsed with
+			Class<? extends Annotation> type = builder.annotationType();
+			Map<String, Object> values = builder.values();
+			if (methodName == null) {
+				return new ClassAnnotationCreator(type, values, false);
+			}
+			return new MethodAnnotationCreator(methodName, descriptor, type,
+					values, false);
+		}
+
+		private String getKey() {
+			return className
+					+ (methodName == null ? "" : "#" + methodName + descriptor)
+					+ "@" + builder.annotationType().getName();
+		}
+	}
+
+	public static final String CHECKSUM_SUFFIX = "!checksum";
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OverlaySpec.class);
+
+	private List<Entry> entries;
+
+	private Map<String, Long> checksums;
+
+	private OverlaySpec(List<Entry> entries, Map<String, Long> checksums) {
+		this.entries = Collections.unmodifiableList(entries);
+		this.checksums = Collections.unmodifiableMap(checksums);
+	}
+
+	/**
+	 * @param checksums
+	 *            The CRC-32 checksums of the class files, by the binary name
+	 *            of the class.
+	 */
+	public static OverlaySpec of(List<Entry> entries,
+			Map<String, Long> checksums) {
+		return new OverlaySpec(new ArrayList<>(entries), new TreeMap<>(
+				checksums));
+	}
+
+	public static OverlaySpec load(File file) throws IOException {
+		return load(file, false);
+	}
+
+	/**
+	 * @param dropInvalid
+	 *            True to log and drop invalid entries, for example entries for
+	 *            annotations that no longer exist, instead of rejecting the
+	 *            spec.
+	 */
+	public static OverlaySpec load(File file, boolean dropInvalid)
+			throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return parse(new InputStreamReader(in, Charsets.UTF_8),
+					file.getPath(), Thread.currentThread()
+							.getContextClassLoader(), dropInvalid);
+		}
+	}
+
+	/**
+	 * Loads several specs into one, in order. When several specs set the same
+	 * annotation on the same element, the last one wins.
+	 * 
+	 * @param loader
+	 *            The class loader used to resolve annotation types and class
+	 *            values.
+	 */
+	public static OverlaySpec load(ClassLoader loader, File... files)
+			throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		Map<String, Long> checksums = new TreeMap<>();
+		for (File curFile : files) {
+			try (InputStream in = new FileInputStream(curFile)) {
+				OverlaySpec spec = parse(new InputStreamReader(in,
+						Charsets.UTF_8), curFile.getPath(), loader);
+				entries.addAll(spec.entries);
+				checksums.putAll(spec.checksums);
+			}
+		}
+		return new OverlaySpec(entries, checksums);
+	}
+
+	/**
+	 * @param source
+	 *            A description of the source, used in error messages.
+	 * @param loader
+	 *            The class loader used to resolve annotation types and class
+	 *            values.
+	 * @throws IllegalArgumentException
+	 *             if the spec is invalid
+	 */
+	public static OverlaySpec parse(Reader reader, String source,
+			ClassLoader loader) throws IOException {
+		return parse(reader, source, loader, false);
+	}
+
+	/**
+	 * @param dropInvalid
+	 *            True to log and drop invalid entries instead of rejecting the
+	 *            spec.
+	 * @see #parse(Reader, String, ClassLoader)
+	 */
+	public static OverlaySpec parse(Reader reader, String source,
+			ClassLoader loader, boolean dropInvalid) throws IOException {
+		Properties properties = new Properties();
+		properties.load(reader);
+		// sort the keys, so the order of the entries is stable
+		Map<String, String> sorted = new TreeMap<>();
+		for (String curKey : properties.stringPropertyNames()) {
+			sorted.put(curKey, properties.getProperty(curKey));
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		Map<String, Long> checksums = new TreeMap<>();
+		for (Map.Entry<String, String> curProperty : sorted.entrySet()) {
+			String key = curProperty.getKey();
+			try {
+				if (key.endsWith(CHECKSUM_SUFFIX)) {
+					checksums.put(
+							key.substring(0,
+									key.length() - CHECKSUM_SUFFIX.length()),
+							Long.parseLong(curProperty.getValue().trim(), 16));
+				} else {
+					entries.add(parseEntry(key, curProperty.getValue(), loader));
+				}
+			} catch (RuntimeException e) {
+				String message = source + ": " + key + ": " + e.getMessage();
+				if (!dropInvalid)
+					throw new IllegalArgumentException(message, e);
+				log.warn("Dropping invalid entry " + message);
+			}
+		}
+		return new OverlaySpec(entries, checksums);
+	}
+
+	private static Entry parseEntry(String key, String value,
+			ClassLoader loader) {
+		int annotationIndex = key.lastIndexOf('@');
+		if (annotationIndex < 0)
+			throw new IllegalArgumentException(
+					"Expected <class>[#<method><descriptor>]@<annotation>");
+		String element = key.substring(0, annotationIndex);
+		Class<? extends Annotation> annotationType = loadAnnotationType(
+				key.substring(annotationIndex + 1), loader);
+		AnnotationTypes.checkRuntimeRetained(annotationType);
+		AnnotationBuilder<?> builder = new ValueParser(value, loader)
+				.parseBuilder(annotationType);
+
+		int methodIndex = element.indexOf('#');
+		if (methodIndex < 0) {
+			AnnotationTypes.checkTarget(annotationType, "types",
+					ElementType.TYPE, ElementType.ANNOTATION_TYPE);
+			return new Entry(element, null, null, builder);
+		}
+		int descriptorIndex = element.indexOf('(', methodIndex);
+		if (descriptorIndex < 0)
+			throw new IllegalArgumentException(
+					"Expected a method descriptor after the method name");
+		AnnotationTypes.checkTarget(annotationType, "methods",
+				ElementType.METHOD);
+		return new Entry(element.substring(0, methodIndex),
+				element.substring(methodIndex + 1, descriptorIndex),
+				element.substring(descriptorIndex), builder);
+	}
+
+	private static Class<? extends Annotation> loadAnnotationType(
+			String name, ClassLoader loader) {
+		try {
+			Class<?> ret = Class.forName(name, false, loader);
+			if (!ret.isAnnotation())
+				throw new IllegalArgumentException(name
+						+ " is not an annotation");
+			return ret.asSubclass(Annotation.class);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Annotation " + name
+					+ " not found", e);
+		}
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The CRC-32 checksums of the class files, by the binary name of
+	 *         the class.
+	 */
+	public Map<String, Long> getChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Writes the spec in the format read by
+	 * {@link #parse(Reader, String, ClassLoader)}, with the entries sorted.
+	 * Attributes with their default value are left out. When several entries
+	 * set the same annotation on the same element, the last one is written.
+	 */
+	public void write(Writer writer) throws IOException {
+		Map<String, String> properties = new TreeMap<>();
+		for (Map.Entry<String, Long> curChecksum : checksums.entrySet()) {
+			properties.put(curChecksum.getKey() + CHECKSUM_SUFFIX,
+					Long.toHexString(curChecksum.getValue()));
+		}
+		for (Entry curEntry : entries) {
+			properties.put(curEntry.getKey(),
+					ValueFormatter.format(curEntry.getBuilder().build()));
+		}
+		for (Map.Entry<String, String> curProperty : properties.entrySet()) {
+			writer.write(escape(curProperty.getKey(), true));
+			writer.write('=');
+			writer.write(escape(curProperty.getValue(), false));
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	private static String escape(String text, boolean key) {
+		StringBuilder ret = new StringBuilder(text.length());
+		for (int index = 0; index < text.length(); index++) {
+			char c = text.charAt(index);
+			switch (c) {
+			case '\\':
+				ret.append("\\\\");
+				break;
+			case '\n':
+				ret.append("\\n");
+				break;
+			case '\r':
+				ret.append("\\r");
+				break;
+			case '\t':
+				ret.append("\\t");
+				break;
+			case '\f':
+				ret.append("\\f");
+				break;
+			case ' ':
+			case '=':
+			case ':':
+				if (key || (c == ' ' && index == 0)) {
+					ret.append('\\');
+				}
+				ret.append(c);
+				break;
+			default:
+				ret.append(c);
+			}
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Registers all entries with the annotator. The annotations are applied on
+	 * the next call to {@link Annotator#process()}. The entries for a class
+	 * with a checksum are only applied to the class file with that checksum.
+	 */
+	public void applyTo(Annotator annotator) {
+		for (Map.Entry<String, Long> curChecksum : checksums.entrySet()) {
+			annotator.requireChecksum(curChecksum.getKey(),
+					curChecksum.getValue());
+		}
+		for (Entry curEntry : entries) {
+			if (curEntry.getMethodName() == null) {
+				annotator.annotate(curEntry.getClassName()).setOnClass(
+						curEntry.getBuilder());
+			} else {
+				annotator.annotate(curEntry.getClassName()).setOnMethod(
+						curEntry.getMethodName(), curEntry.getDescriptor(),
+						curEntry.getBuilder());
+			}
+		}
+	}
+}
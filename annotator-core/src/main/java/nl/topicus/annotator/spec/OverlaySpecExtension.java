@@ -0,0 +1,108 @@
+package nl.topicus.annotator.spec;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.Map;
+
+import nl.topicus.annotator.Annotator;
+import nl.topicus.annotator.agent.AgentExtension;
+import nl.topicus.annotator.impl.TransformationCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the {@link OverlaySpec}s passed to the agent, for example with
+ * <code>-javaagent:annotator-agent.jar=spec=/path/overlays.properties</code>.
+ * Multiple specs are separated by the path separator. The specs are parsed and
+ * validated before the application starts, the annotations are added when the
+ * classes are defined.
+ * <p>
+ * With <code>record=/path/overlays.properties</code> the annotations the
+ * application registers are {@link OverlayRecorder recorded} in the file when
+ * the JVM shuts down. With <code>replay=/path/overlays.properties</code> a
+ * recorded file is applied when the classes are defined, so the annotations
+ * do not need to be applied by retransformation when the application
+ * registers them. Both usually point to the same file, so it follows the
+ * changes in the application. Recorded entries that are no longer valid are
+ * dropped.
+ * <p>
+ * With <code>cache=/path/dir</code> the transformed classes are stored in the
+ * directory by the {@link TransformationCache}, so later runs with the same
+ * classes and annotations do not transform them again.
+ */
+public class OverlaySpecExtension implements AgentExtension {
+	public static final String SPEC_ARGUMENT = "spec";
+
+	public static final String RECORD_ARGUMENT = "record";
+
+	public static final String REPLAY_ARGUMENT = "replay";
+
+	public static final String CACHE_ARGUMENT = "cache";
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OverlaySpecExtension.class);
+
+	@Override
+	public void start(Map<String, String> arguments, Instrumentation inst) {
+		// the cache is enabled first, so it is used for the classes the specs
+		// annotate
+		String cache = arguments.get(CACHE_ARGUMENT);
+		if (cache != null && !cache.isEmpty()) {
+			TransformationCache.setDirectory(new File(cache));
+			log.info("Caching transformed classes in " + cache);
+		}
+		applySpecs(arguments.get(SPEC_ARGUMENT));
+		// the replayed annotations are applied before recording starts, so
+		// annotations the application no longer registers are not recorded
+		// again
+		replay(arguments.get(REPLAY_ARGUMENT));
+		String record = arguments.get(RECORD_ARGUMENT);
+		if (record != null && !record.isEmpty()) {
+			OverlayRecorder.recordOnShutdown(new File(record));
+		}
+	}
+
+	private void replay(String recording) {
+		if (recording == null || recording.isEmpty())
+			return;
+		File file = new File(recording);
+		if (!file.isFile()) {
+			log.info("Nothing to replay, " + recording + " does not exist");
+			return;
+		}
+		try {
+			OverlaySpec spec = OverlaySpec.load(file, true);
+			if (log.isInfoEnabled()) {
+				log.info("Replaying " + spec.getEntries().size()
+						+ " recorded annotation(s) from " + recording);
+			}
+			Annotator annotator = new Annotator();
+			spec.applyTo(annotator);
+			annotator.process();
+		} catch (IOException e) {
+			log.warn("Cannot read " + recording, e);
+		}
+	}
+
+	private void applySpecs(String specs) {
+		if (specs == null || specs.isEmpty())
+			return;
+
+		Annotator annotator = new Annotator();
+		for (String curSpec : specs.split(File.pathSeparator)) {
+			try {
+				OverlaySpec spec = OverlaySpec.load(new File(curSpec));
+				if (log.isInfoEnabled()) {
+					log.info("Loaded " + spec.getEntries().size()
+							+ " annotation(s) from " + curSpec);
+				}
+				spec.applyTo(annotator);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Cannot read " + curSpec, e);
+			}
+		}
+		annotator.process();
+	}
+}
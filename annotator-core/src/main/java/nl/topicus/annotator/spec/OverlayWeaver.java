@@ -0,0 +1,109 @@
+package nl.topicus.annotator.spec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.topicus.annotator.impl.AnnotationMutator;
+import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ChecksumClassFileTransformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies an {@link OverlaySpec} to class files outside of the JVM that loads
+ * them, for example when the classes are woven at build time. The classes do
+ * not need to be loadable, only the annotation types of the spec. A weaver can
+ * be used by several threads at once.
+ */
+public class OverlayWeaver {
+	private static final Logger log = LoggerFactory
+			.getLogger(OverlayWeaver.class);
+
+	private ClassLoader loader;
+
+	/**
+	 * The transformers by the internal name of the class.
+	 */
+	private Map<String, AnnotatorClassFileTransformer> transformers = new HashMap<>();
+
+	private Map<String, Long> checksums = new HashMap<>();
+
+	/**
+	 * @param loader
+	 *            The loader the annotation types of the spec were loaded with.
+	 */
+	public OverlayWeaver(OverlaySpec spec, ClassLoader loader) {
+		this.loader = loader;
+		Map<String, List<AnnotationMutator>> mutators = new HashMap<>();
+		for (OverlaySpec.Entry curEntry : spec.getEntries()) {
+			String name = curEntry.getClassName().replace('.', '/');
+			List<AnnotationMutator> classMutators = mutators.get(name);
+			if (classMutators == null) {
+				classMutators = new ArrayList<>();
+				mutators.put(name, classMutators);
+			}
+			classMutators.add(curEntry.createMutator());
+		}
+		for (Map.Entry<String, List<AnnotationMutator>> curClass : mutators
+				.entrySet()) {
+			transformers.put(curClass.getKey(),
+					new AnnotatorClassFileTransformer(curClass.getValue()));
+		}
+		for (Map.Entry<String, Long> curChecksum : spec.getChecksums()
+				.entrySet()) {
+			checksums.put(curChecksum.getKey().replace('.', '/'),
+					curChecksum.getValue());
+		}
+	}
+
+	/**
+	 * @return The internal names of the classes the spec annotates.
+	 */
+	public Set<String> getClassNames() {
+		return Collections.unmodifiableSet(transformers.keySet());
+	}
+
+	/**
+	 * @return A description of the annotations of the class, which changes
+	 *         when the annotations change, or null if the spec does not
+	 *         annotate the class.
+	 */
+	public String getFingerprint(String internalName) {
+		AnnotatorClassFileTransformer transformer = transformers
+				.get(internalName);
+		if (transformer == null)
+			return null;
+		Long checksum = checksums.get(internalName);
+		return transformer.getFingerprint()
+				+ (checksum == null ? "" : "checksum "
+						+ Long.toHexString(checksum));
+	}
+
+	/**
+	 * @param internalName
+	 *            The internal name of the class, for example
+	 *            <code>com/example/Service</code>.
+	 * @return The class file with the annotations of the spec, or the given
+	 *         class file if the spec does not annotate the class or requires
+	 *         another version of it.
+	 */
+	public byte[] weave(String internalName, byte[] classFile) {
+		AnnotatorClassFileTransformer transformer = transformers
+				.get(internalName);
+		if (transformer == null)
+			return classFile;
+		Long checksum = checksums.get(internalName);
+		if (checksum != null
+				&& ChecksumClassFileTransformer.checksum(classFile) != checksum) {
+			log.warn("Not weaving " + internalName.replace('/', '.')
+					+ ", its class file has changed");
+			return classFile;
+		}
+		return transformer.transformClassFile(loader, classFile);
+	}
+}
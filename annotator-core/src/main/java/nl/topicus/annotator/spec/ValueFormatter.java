@@ -0,0 +1,88 @@
+package nl.topicus.annotator.spec;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * Formats the members of an annotation in the syntax read by
+ * {@link ValueParser}. Members with their default value are left out.
+ */
+class ValueFormatter {
+	private ValueFormatter() {
+	}
+
+	static String format(Annotation annotation) {
+		StringBuilder ret = new StringBuilder();
+		appendMembers(ret, annotation);
+		return ret.toString();
+	}
+
+	private static void appendMembers(StringBuilder out, Annotation annotation) {
+		Method[] members = annotation.annotationType().getDeclaredMethods();
+		// sort the members, so the output is stable
+		Arrays.sort(members, new Comparator<Method>() {
+			@Override
+			public int compare(Method o1, Method o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		boolean first = true;
+		for (Method curMember : members) {
+			Object value;
+			try {
+				value = curMember.invoke(annotation);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+			if (Objects.deepEquals(value, curMember.getDefaultValue()))
+				continue;
+			if (!first) {
+				out.append(", ");
+			}
+			first = false;
+			out.append(curMember.getName()).append('=');
+			appendValue(out, value);
+		}
+	}
+
+	private static void appendValue(StringBuilder out, Object value) {
+		if (value.getClass().isArray()) {
+			out.append('{');
+			for (int index = 0; index < Array.getLength(value); index++) {
+				if (index > 0) {
+					out.append(", ");
+				}
+				appendValue(out, Array.get(value, index));
+			}
+			out.append('}');
+		} else if (value instanceof Annotation) {
+			out.append('@')
+					.append(((Annotation) value).annotationType().getName())
+					.append('(');
+			appendMembers(out, (Annotation) value);
+			out.append(')');
+		} else if (value instanceof String || value instanceof Character) {
+			out.append('"');
+			String text = value.toString();
+			for (int index = 0; index < text.length(); index++) {
+				char c = text.charAt(index);
+				if (c == '"' || c == '\\') {
+					out.append('\\');
+				}
+				out.append(c);
+			}
+			out.append('"');
+		} else if (value instanceof Class) {
+			out.append(((Class<?>) value).getName());
+		} else if (value instanceof Enum) {
+			out.append(((Enum<?>) value).name());
+		} else {
+			out.append(value);
+		}
+	}
+}
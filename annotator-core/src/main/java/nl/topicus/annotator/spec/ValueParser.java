@@ -0,0 +1,261 @@
+package nl.topicus.annotator.spec;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.topicus.annotator.AnnotationBuilder;
+
+/**
+ * Parses the members of an annotation in an {@link OverlaySpec}, for example
+ * <code>name="x", values={1, 2}, nested=@com.example.Nested(value=y)</code>,
+ * and converts them to the types of the annotation members.
+ */
+class ValueParser {
+	/**
+	 * A nested annotation, before it is converted.
+	 */
+	private static class NestedValue {
+		private String typeName;
+		private Map<String, Object> members;
+
+		private NestedValue(String typeName, Map<String, Object> members) {
+			this.typeName = typeName;
+			this.members = members;
+		}
+	}
+
+	/**
+	 * The classes {@link Class#forName(String)} does not find, by their name
+	 * as {@link ValueFormatter} writes it.
+	 */
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<>();
+
+	static {
+		for (Class<?> curType : new Class<?>[] { Boolean.TYPE, Byte.TYPE,
+				Character.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE,
+				Float.TYPE, Double.TYPE, Void.TYPE }) {
+			PRIMITIVES.put(curType.getName(), curType);
+		}
+	}
+
+	private String text;
+	private int pos;
+	private ClassLoader loader;
+
+	ValueParser(String text, ClassLoader loader) {
+		this.text = text;
+		this.loader = loader;
+	}
+
+	/**
+	 * Parses all members and sets them on a new builder for the given type.
+	 */
+	<A extends Annotation> AnnotationBuilder<A> parseBuilder(
+			Class<A> annotationType) {
+		Map<String, Object> members = parseMembers();
+		skipWhitespace();
+		if (pos < text.length())
+			throw error("Unexpected '" + text.charAt(pos) + "'");
+		return createBuilder(annotationType, members);
+	}
+
+	private <A extends Annotation> AnnotationBuilder<A> createBuilder(
+			Class<A> annotationType, Map<String, Object> members) {
+		AnnotationBuilder<A> ret = AnnotationBuilder.of(annotationType);
+		for (Map.Entry<String, Object> curMember : members.entrySet()) {
+			Class<?> memberType;
+			try {
+				memberType = annotationType.getDeclaredMethod(
+						curMember.getKey()).getReturnType();
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException("@"
+						+ annotationType.getSimpleName()
+						+ " does not define the attribute "
+						+ curMember.getKey());
+			}
+			ret.setValue(curMember.getKey(),
+					convert(curMember.getValue(), memberType));
+		}
+		ret.assertComplete();
+		return ret;
+	}
+
+	private Object convert(Object value, Class<?> type) {
+		if (type.isArray()) {
+			List<?> elements = value instanceof List ? (List<?>) value
+					: Collections.singletonList(value);
+			Object ret = Array.newInstance(type.getComponentType(),
+					elements.size());
+			for (int index = 0; index < elements.size(); index++) {
+				Array.set(ret, index,
+						convert(elements.get(index), type.getComponentType()));
+			}
+			return ret;
+		} else if (type.isAnnotation()) {
+			if (!(value instanceof NestedValue))
+				throw new IllegalArgumentException("Expected @"
+						+ type.getSimpleName() + "(...), not " + value);
+			NestedValue nested = (NestedValue) value;
+			if (nested.typeName != null
+					&& !nested.typeName.equals(type.getName()))
+				throw new IllegalArgumentException("Expected @"
+						+ type.getName() + ", not @" + nested.typeName);
+			return createBuilder(type.asSubclass(Annotation.class),
+					nested.members).build();
+		}
+		if (!(value instanceof String))
+			throw new IllegalArgumentException("Expected a single value for "
+					+ type.getSimpleName() + ", not " + value);
+		return convertString((String) value, type);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object convertString(String value, Class<?> type) {
+		try {
+			if (type == String.class)
+				return value;
+			else if (type == Boolean.TYPE) {
+				if (!value.equals("true") && !value.equals("false"))
+					throw new IllegalArgumentException(value
+							+ " is not a boolean");
+				return Boolean.valueOf(value);
+			} else if (type == Byte.TYPE)
+				return Byte.decode(value);
+			else if (type == Short.TYPE)
+				return Short.decode(value);
+			else if (type == Integer.TYPE)
+				return Integer.decode(value);
+			else if (type == Long.TYPE)
+				return Long.decode(value);
+			else if (type == Float.TYPE)
+				return Float.valueOf(value);
+			else if (type == Double.TYPE)
+				return Double.valueOf(value);
+			else if (type == Character.TYPE) {
+				if (value.length() != 1)
+					throw new IllegalArgumentException(value
+							+ " is not a single character");
+				return value.charAt(0);
+			} else if (type == Class.class) {
+				Class<?> primitive = PRIMITIVES.get(value);
+				return primitive != null ? primitive : Class.forName(value,
+						false, loader);
+			}
+			else if (type.isEnum())
+				return Enum.valueOf((Class<? extends Enum>) type, value);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Class " + value
+					+ " not found", e);
+		}
+		throw new IllegalArgumentException("Unsupported type "
+				+ type.getName());
+	}
+
+	private Map<String, Object> parseMembers() {
+		Map<String, Object> ret = new LinkedHashMap<>();
+		skipWhitespace();
+		if (pos >= text.length() || text.charAt(pos) == ')')
+			return ret;
+		while (true) {
+			String name = parseBareToken("=");
+			if (name.isEmpty())
+				throw error("Expected the name of an attribute");
+			expect('=');
+			if (ret.put(name, parseValue()) != null)
+				throw error("Duplicate attribute " + name);
+			skipWhitespace();
+			if (pos >= text.length() || text.charAt(pos) != ',')
+				return ret;
+			pos++;
+		}
+	}
+
+	private Object parseValue() {
+		skipWhitespace();
+		if (pos >= text.length())
+			throw error("Expected a value");
+		char c = text.charAt(pos);
+		if (c == '{') {
+			pos++;
+			List<Object> ret = new ArrayList<>();
+			skipWhitespace();
+			if (pos < text.length() && text.charAt(pos) == '}') {
+				pos++;
+				return ret;
+			}
+			while (true) {
+				ret.add(parseValue());
+				skipWhitespace();
+				if (pos < text.length() && text.charAt(pos) == ',') {
+					pos++;
+				} else {
+					expect('}');
+					return ret;
+				}
+			}
+		} else if (c == '@' || c == '(') {
+			String typeName = null;
+			if (c == '@') {
+				pos++;
+				typeName = parseBareToken("(");
+			}
+			expect('(');
+			Map<String, Object> members = parseMembers();
+			expect(')');
+			return new NestedValue(typeName, members);
+		} else if (c == '"') {
+			return parseQuoted();
+		}
+		String ret = parseBareToken(",})");
+		if (ret.isEmpty())
+			throw error("Expected a value");
+		return ret;
+	}
+
+	private String parseQuoted() {
+		StringBuilder ret = new StringBuilder();
+		pos++;
+		while (pos < text.length()) {
+			char c = text.charAt(pos++);
+			if (c == '"')
+				return ret.toString();
+			if (c == '\\' && pos < text.length())
+				c = text.charAt(pos++);
+			ret.append(c);
+		}
+		throw error("Unterminated string");
+	}
+
+	private String parseBareToken(String terminators) {
+		int start = pos;
+		while (pos < text.length()
+				&& terminators.indexOf(text.charAt(pos)) < 0) {
+			pos++;
+		}
+		return text.substring(start, pos).trim();
+	}
+
+	private void expect(char expected) {
+		skipWhitespace();
+		if (pos >= text.length() || text.charAt(pos) != expected)
+			throw error("Expected '" + expected + "'");
+		pos++;
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos
+				+ " in '" + text + "'");
+	}
+}
@@ -0,0 +1,141 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import nl.topicus.annotator.agent.AnnotatorAgent;
+import nl.topicus.annotator.annotations.Marker1;
+
+import org.junit.Test;
+
+public class AnnotateByLoader {
+	/**
+	 * Defines the classes in the loaders package itself, like the loader of a
+	 * web application, and delegates everything else to its parent.
+	 */
+	private static class DeploymentLoader extends URLClassLoader {
+		private DeploymentLoader() {
+			super(new URL[] { AnnotateByLoader.class.getProtectionDomain()
+					.getCodeSource().getLocation() }, AnnotateByLoader.class
+					.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			if (!name.startsWith("nl.topicus.annotator.loaders."))
+				return super.loadClass(name, resolve);
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> ret = findLoadedClass(name);
+				return ret == null ? findClass(name) : ret;
+			}
+		}
+	}
+
+	private static final String WIDGET = "nl.topicus.annotator.loaders.Widget";
+
+	@Test
+	public void annotateForLoader() throws Exception {
+		ClassLoader first = new DeploymentLoader();
+		ClassLoader second = new DeploymentLoader();
+		// loaded before the annotation is added, so it is retransformed
+		Class<?> firstLoaded = first.loadClass(WIDGET);
+
+		Annotator annotator = new Annotator(first);
+		annotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+
+		Class<?> secondLoaded = second.loadClass(WIDGET);
+		assertNotSame(firstLoaded, secondLoaded);
+		assertTrue(firstLoaded.isAnnotationPresent(Marker1.class));
+		assertFalse(secondLoaded.isAnnotationPresent(Marker1.class));
+
+		Annotator secondAnnotator = new Annotator(second);
+		secondAnnotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		secondAnnotator.process();
+		assertTrue(secondLoaded.isAnnotationPresent(Marker1.class));
+		assertFalse(new DeploymentLoader().loadClass(WIDGET)
+				.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void annotateForLoaderAtDefineTime() throws Exception {
+		ClassLoader loader = new DeploymentLoader();
+		Annotator annotator = new Annotator(loader);
+		annotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+
+		assertTrue(loader.loadClass(WIDGET).isAnnotationPresent(Marker1.class));
+		assertFalse(new DeploymentLoader().loadClass(WIDGET)
+				.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void annotateClassOfLoader() throws Exception {
+		Class<?> first = new DeploymentLoader().loadClass(WIDGET);
+		Class<?> second = new DeploymentLoader().loadClass(WIDGET);
+		Annotator annotator = new Annotator();
+		annotator.annotate(first).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+		assertTrue(first.isAnnotationPresent(Marker1.class));
+
+		// the transformers of a class are looked up by the class, not by its
+		// name
+		AnnotatorAgent.retransform(second);
+		assertFalse(second.isAnnotationPresent(Marker1.class));
+		annotator.unregister();
+		assertFalse(first.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void collectDiscardedLoader() throws Exception {
+		ClassLoader loader = new DeploymentLoader();
+		Annotator annotator = new Annotator(loader);
+		annotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+		assertTrue(loader.loadClass(WIDGET).isAnnotationPresent(Marker1.class));
+
+		// the annotator is still in use, but does not keep the loader alive
+		WeakReference<ClassLoader> ref = new WeakReference<>(loader);
+		loader = null;
+		for (int count = 0; count < 50 && ref.get() != null; count++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+		annotator.process();
+	}
+
+	@Test
+	public void unregister() throws Exception {
+		ClassLoader loader = new DeploymentLoader();
+		Class<?> loaded = loader.loadClass(WIDGET);
+		Annotator annotator = new Annotator(loader);
+		annotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+		assertTrue(loaded.isAnnotationPresent(Marker1.class));
+		annotator.unregister();
+		assertFalse(loaded.isAnnotationPresent(Marker1.class));
+
+		// the annotations by name no longer apply to classes defined later
+		ClassLoader later = new DeploymentLoader();
+		Annotator laterAnnotator = new Annotator(later);
+		laterAnnotator.annotate(WIDGET).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		laterAnnotator.process();
+		laterAnnotator.unregister();
+		assertFalse(later.loadClass(WIDGET).isAnnotationPresent(Marker1.class));
+	}
+}
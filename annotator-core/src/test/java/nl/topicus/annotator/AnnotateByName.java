@@ -0,0 +1,152 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import javax.xml.bind.annotation.XmlType;
+
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.Marker2;
+import nl.topicus.annotator.annotations.Marker3;
+import nl.topicus.annotator.annotations.SourceRetained;
+import nl.topicus.annotator.impl.ChecksumClassFileTransformer;
+
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+public class AnnotateByName {
+	public static class NotLoaded1 {
+	}
+
+	public static class NotLoaded2 {
+		public void method(String arg) {
+		}
+
+		public void method(Integer arg) {
+		}
+	}
+
+	public static class NotLoaded3 {
+	}
+
+	public static class NotLoaded4 {
+	}
+
+	public static class Loaded {
+	}
+
+	private static final String PREFIX = AnnotateByName.class.getName() + "$";
+
+	@Test
+	public void classAnnotation() throws ClassNotFoundException {
+		Annotator annotator = new Annotator();
+		annotator.annotate(PREFIX + "NotLoaded1").setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+
+		assertTrue(Class.forName(PREFIX + "NotLoaded1").isAnnotationPresent(
+				Marker1.class));
+	}
+
+	@Test
+	public void methodAnnotation() throws Exception {
+		Annotator annotator = new Annotator();
+		annotator.annotate(PREFIX + "NotLoaded2").setOnMethod("method",
+				"(Ljava/lang/String;)V", AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+
+		Class<?> clazz = Class.forName(PREFIX + "NotLoaded2");
+		Method stringMethod = clazz.getMethod("method", String.class);
+		Method integerMethod = clazz.getMethod("method", Integer.class);
+		assertTrue(stringMethod.isAnnotationPresent(Marker1.class));
+		assertFalse(integerMethod.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void replaceBeforeDefinition() throws ClassNotFoundException {
+		Annotator annotator = new Annotator();
+		annotator.annotate(PREFIX + "NotLoaded3").setOnClass(
+				new AnnotationBuilder<XmlType>() {
+					@Override
+					public void setup(XmlType ann) {
+						set(ann.name(), "first");
+					}
+				});
+		annotator.process();
+		annotator.annotate(PREFIX + "NotLoaded3").setOnClass(
+				new AnnotationBuilder<XmlType>() {
+					@Override
+					public void setup(XmlType ann) {
+						set(ann.name(), "second");
+					}
+				});
+		annotator.process();
+
+		assertEquals("second", Class.forName(PREFIX + "NotLoaded3")
+				.getAnnotation(XmlType.class).name());
+	}
+
+	@Test
+	public void checksumOfOriginalClassFile() throws Exception {
+		String name = PREFIX + "NotLoaded4";
+		// like a static spec, which changes the class file before the
+		// recorded annotations are applied
+		Annotator spec = new Annotator();
+		spec.annotate(name).setOnClass(AnnotationBuilder.of(Marker1.class));
+		spec.process();
+
+		Annotator replay = new Annotator();
+		replay.annotate(name).setOnClass(AnnotationBuilder.of(Marker2.class));
+		// the class is not loaded, its class file is read as a resource
+		replay.requireChecksum(name, ChecksumClassFileTransformer
+				.checksum(Resources.toByteArray(Resources.getResource(name
+						.replace('.', '/') + ".class"))));
+		replay.process();
+
+		Class<?> clazz = Class.forName(name);
+		assertTrue(clazz.isAnnotationPresent(Marker1.class));
+		assertTrue(clazz.isAnnotationPresent(Marker2.class));
+	}
+
+	@Test
+	public void alreadyLoaded() {
+		assertFalse(Loaded.class.isAnnotationPresent(Marker2.class));
+
+		Annotator annotator = new Annotator();
+		annotator.annotate(Loaded.class.getName()).setOnClass(
+				AnnotationBuilder.of(Marker2.class));
+		annotator.process();
+
+		assertTrue(Loaded.class.isAnnotationPresent(Marker2.class));
+	}
+
+	@Test
+	public void preservedOnRetransform() {
+		Annotator annotator = new Annotator();
+		annotator.annotate(Loaded.class.getName()).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+		annotator.annotate(Loaded.class).addToClass(
+				AnnotationBuilder.of(Marker3.class));
+		annotator.process();
+
+		assertTrue(Loaded.class.isAnnotationPresent(Marker1.class));
+		assertTrue(Loaded.class.isAnnotationPresent(Marker3.class));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void addSourceAnnotation() {
+		new Annotator().annotate(PREFIX + "NotLoaded1").setOnClass(
+				AnnotationBuilder.of(SourceRetained.class));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidDescriptor() {
+		new Annotator().annotate(PREFIX + "NotLoaded2").setOnMethod("method",
+				"Ljava/lang/String;", AnnotationBuilder.of(Marker1.class));
+	}
+}
@@ -0,0 +1,47 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.Marker2;
+import nl.topicus.annotator.impl.ClassPattern;
+import nl.topicus.annotator.rules.CustomerRepository;
+import nl.topicus.annotator.rules.CustomerService;
+import nl.topicus.annotator.rules.sub.OrderRepository;
+
+import org.junit.Test;
+
+public class AnnotateByRule {
+	@Test
+	public void classPattern() {
+		ClassPattern pattern = new ClassPattern("com.shop.data..*Repository");
+		assertTrue(pattern.matches("com.shop.data.UserRepository"));
+		assertTrue(pattern.matches("com.shop.data.sub.UserRepository"));
+		assertFalse(pattern.matches("com.shop.data.UserService"));
+		assertFalse(pattern.matches("com.shop.dataUserRepository"));
+		assertFalse(pattern.matches("com.shop.UserRepository"));
+		assertTrue(new ClassPattern("com.shop..").matches("com.shop.a.B"));
+		assertTrue(new ClassPattern("com.shop.*").matches("com.shop.B"));
+		assertFalse(new ClassPattern("com.shop.*").matches("com.shop.a.B"));
+	}
+
+	@Test
+	public void annotateMatching() throws Exception {
+		Annotator annotator = new Annotator();
+		annotator.annotateMatching("nl.topicus.annotator.rules..*Repository")
+				.setOnClass(AnnotationBuilder.of(Marker1.class))
+				.setOnMethods("find*", null, AnnotationBuilder.of(Marker2.class));
+		annotator.process();
+
+		assertTrue(CustomerRepository.class.isAnnotationPresent(Marker1.class));
+		assertTrue(OrderRepository.class.isAnnotationPresent(Marker1.class));
+		assertFalse(CustomerService.class.isAnnotationPresent(Marker1.class));
+		assertTrue(CustomerRepository.class.getMethod("findAll")
+				.isAnnotationPresent(Marker2.class));
+		assertTrue(CustomerRepository.class.getMethod("findById", Long.class)
+				.isAnnotationPresent(Marker2.class));
+		assertFalse(CustomerRepository.class.getMethod("save", Object.class)
+				.isAnnotationPresent(Marker2.class));
+	}
+}
@@ -102,6 +102,58 @@ public class AnnotateClasses {
 				TestClass.class.isAnnotationPresent(Marker3.class));
 	}
 
+	@Test
+	public void twoAnnotators() {
+		class TwoAnnotatorsClass {
+		}
+
+		Annotator annotator1 = new Annotator();
+		annotator1.annotate(TwoAnnotatorsClass.class).addToClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator1.process();
+		Annotator annotator2 = new Annotator();
+		annotator2.annotate(TwoAnnotatorsClass.class).addToClass(
+				AnnotationBuilder.of(Marker2.class));
+		annotator2.process();
+
+		assertTrue("@Marker1 not preserved",
+				TwoAnnotatorsClass.class.isAnnotationPresent(Marker1.class));
+		assertTrue("@Marker2 not added",
+				TwoAnnotatorsClass.class.isAnnotationPresent(Marker2.class));
+	}
+
+	public static class Batch1 {
+	}
+
+	public static class Batch2 {
+	}
+
+	public static class Batch3 {
+	}
+
+	public static class Batch4 {
+	}
+
+	public static class Batch5 {
+	}
+
+	@Test
+	public void batch() {
+		Class<?>[] classes = { Batch1.class, Batch2.class, Batch3.class,
+				Batch4.class, Batch5.class };
+		Annotator annotator = new Annotator();
+		for (Class<?> curClass : classes) {
+			annotator.annotate(curClass).addToClass(
+					AnnotationBuilder.of(Marker1.class));
+		}
+		annotator.process();
+
+		for (Class<?> curClass : classes) {
+			assertTrue("@Marker1 not added to " + curClass.getSimpleName(),
+					curClass.isAnnotationPresent(Marker1.class));
+		}
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void addExisting() {
 		new Annotator().annotate(TestClass.class).addToClass(
@@ -3,13 +3,16 @@ package nl.topicus.annotator;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.lang.annotation.ElementType;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlSchema;
 
+import nl.topicus.annotator.agent.AnnotatorAgent;
 import nl.topicus.annotator.annotations.ClassRetained;
 import nl.topicus.annotator.annotations.ComplexAnnotation;
 import nl.topicus.annotator.annotations.Marker1;
@@ -18,9 +21,13 @@ import nl.topicus.annotator.annotations.Marker3;
 import nl.topicus.annotator.annotations.NestedAnnotation;
 import nl.topicus.annotator.annotations.SourceRetained;
 import nl.topicus.annotator.annotations.Unretained;
+import nl.topicus.annotator.impl.AnnationUpdateAction;
 
 import org.junit.Test;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
 public class AnnotateMethods {
 	public static final Method m(Class<?> declaringClass, String name,
 			Class<?>... types) {
@@ -59,6 +66,10 @@ public class AnnotateMethods {
 		return m(TestClass.class, "annotatedMethod");
 	}
 
+	private static Method mergedMethod() {
+		return m(TestClass.class, "mergedMethod");
+	}
+
 	private static Method abstractMethod() {
 		return m(AbstractTestClass.class, "abstractMethod");
 	}
@@ -89,6 +100,45 @@ public class AnnotateMethods {
 		@XmlElement
 		public void annotatedMethod() {
 		}
+
+		@XmlElement(name = "original", required = true)
+		public void mergedMethod() {
+		}
+	}
+
+	public static class RevertTestClass {
+		public void removedMethod() {
+		}
+
+		@XmlElement(name = "original")
+		public void revertedMethod() {
+		}
+	}
+
+	public static class SkipTestClass {
+		@XmlElement
+		public void annotatedMethod() {
+		}
+	}
+
+	public static class ScopeBaseClass {
+		public void inheritedMethod() {
+		}
+	}
+
+	public static class ScopeTestClass extends ScopeBaseClass {
+		public static void staticMethod() {
+		}
+
+		@SuppressWarnings("unused")
+		private void privateMethod() {
+		}
+
+		public final void finalMethod() {
+		}
+
+		public void publicMethod() {
+		}
 	}
 
 	public static abstract class AbstractTestClass {
@@ -240,6 +290,59 @@ public class AnnotateMethods {
 		assertTrue(staticMethod().isAnnotationPresent(Marker1.class));
 	}
 
+	@Test
+	public void annotateMatchingMethods() {
+		Annotator annotator = new Annotator();
+		annotator.annotate(TestClass.class).onMethods(new Predicate<Method>() {
+			@Override
+			public boolean apply(Method input) {
+				return input.getName().startsWith("overloaded");
+			}
+		}, AnnotationBuilder.of(Marker3.class), AnnationUpdateAction.SET);
+		annotator.process();
+
+		assertTrue(overloadedMethodStr().isAnnotationPresent(Marker3.class));
+		assertTrue(overloadedMethodInt().isAnnotationPresent(Marker3.class));
+		assertFalse(noArgMethod().isAnnotationPresent(Marker3.class));
+	}
+
+	@Test
+	public void matchingMethodsScope() throws Exception {
+		Annotator annotator = new Annotator();
+		annotator.annotate(ScopeTestClass.class).onMethods(
+				Predicates.<Method> alwaysTrue(),
+				AnnotationBuilder.of(Marker3.class), AnnationUpdateAction.SET);
+		annotator.process();
+
+		// unlike the proxy, all declared methods are selected
+		for (String curName : Arrays.asList("staticMethod", "privateMethod",
+				"finalMethod", "publicMethod")) {
+			assertTrue(curName, ScopeTestClass.class
+					.getDeclaredMethod(curName).isAnnotationPresent(
+							Marker3.class));
+		}
+		// but inherited methods are not
+		assertFalse(m(ScopeBaseClass.class, "inheritedMethod")
+				.isAnnotationPresent(Marker3.class));
+		assertFalse(m(Object.class, "toString").isAnnotationPresent(
+				Marker3.class));
+	}
+
+	@Test
+	public void addToMatchingMethodsExisting() {
+		Annotator annotator = new Annotator();
+		try {
+			annotator.annotate(TestClass.class).onMethods(
+					Predicates.<Method> alwaysTrue(),
+					AnnotationBuilder.of(XmlElement.class),
+					AnnationUpdateAction.ADD);
+			fail("annotatedMethod is already annotated with @XmlElement");
+		} catch (IllegalArgumentException e) {
+		}
+		assertFalse(annotator.isAnnotationPresent(noArgMethod(),
+				XmlElement.class));
+	}
+
 	@Test
 	public void preserveExisting() {
 		assertFalse("@Marker1 was already added", annotatedMethod()
@@ -258,6 +361,111 @@ public class AnnotateMethods {
 				.isAnnotationPresent(XmlElement.class));
 	}
 
+	@Test
+	public void mergeIntoExisting() {
+		Annotator annotator = new Annotator();
+		annotator.annotate(TestClass.class)
+				.mergeOnMethod(new AnnotationBuilder<XmlElement>() {
+					@Override
+					public void setup(XmlElement ann) {
+						set(ann.name(), "merged");
+					}
+				}).mergedMethod();
+		annotator.annotate(TestClass.class)
+				.mergeOnMethod(new AnnotationBuilder<XmlElement>() {
+					@Override
+					public void setup(XmlElement ann) {
+						set(ann.namespace(), "urn:merged");
+					}
+				}).mergedMethod();
+		annotator.process();
+
+		XmlElement merged = mergedMethod().getAnnotation(XmlElement.class);
+		assertEquals("merged", merged.name());
+		assertEquals("urn:merged", merged.namespace());
+		assertTrue(merged.required());
+		assertEquals(annotator.getAnnotation(mergedMethod(), XmlElement.class),
+				merged);
+	}
+
+	@Test
+	public void removeAnnotation() {
+		Method removed = m(RevertTestClass.class, "removedMethod");
+		Annotator annotator = new Annotator();
+		ClassAnnotator<RevertTestClass> classAnnotator = annotator
+				.annotate(RevertTestClass.class);
+		classAnnotator.setOnMethod(AnnotationBuilder.of(Marker1.class))
+				.removedMethod();
+		classAnnotator.setOnMethod(AnnotationBuilder.of(Marker2.class))
+				.removedMethod();
+		annotator.process();
+		removed = m(RevertTestClass.class, "removedMethod");
+		assertTrue(removed.isAnnotationPresent(Marker1.class));
+
+		assertTrue(annotator.removeAnnotation(removed, Marker1.class));
+		assertFalse(annotator.removeAnnotation(removed, Marker3.class));
+		annotator.process();
+		removed = m(RevertTestClass.class, "removedMethod");
+		assertFalse(removed.isAnnotationPresent(Marker1.class));
+		assertTrue(removed.isAnnotationPresent(Marker2.class));
+
+		annotator.removeAnnotation(removed, Marker2.class);
+		annotator.process();
+		removed = m(RevertTestClass.class, "removedMethod");
+		assertFalse(removed.isAnnotationPresent(Marker2.class));
+	}
+
+	@Test
+	public void revertClass() {
+		Annotator annotator = new Annotator();
+		annotator.annotate(RevertTestClass.class)
+				.setOnMethod(new AnnotationBuilder<XmlElement>() {
+					@Override
+					public void setup(XmlElement ann) {
+						set(ann.name(), "changed");
+					}
+				}).revertedMethod();
+		annotator.process();
+		assertEquals("changed", m(RevertTestClass.class, "revertedMethod")
+				.getAnnotation(XmlElement.class).name());
+		long stored = AnnotatorAgent.getPristineClassFileSize();
+		assertTrue(stored > 0);
+
+		annotator.revert(RevertTestClass.class);
+		assertTrue(AnnotatorAgent.getPristineClassFileSize() < stored);
+		assertEquals("original", m(RevertTestClass.class, "revertedMethod")
+				.getAnnotation(XmlElement.class).name());
+		assertEquals("original",
+				annotator.getAnnotation(
+						m(RevertTestClass.class, "revertedMethod"),
+						XmlElement.class).name());
+	}
+
+	@Test
+	public void skipUnchangedClass() {
+		Annotator annotator = new Annotator();
+		annotator.annotate(SkipTestClass.class)
+				.setOnMethod(AnnotationBuilder.of(XmlElement.class))
+				.annotatedMethod();
+		annotator.process();
+		assertEquals(1, annotator.getSkippedRetransformations());
+
+		annotator.annotate(SkipTestClass.class)
+				.setOnMethod(AnnotationBuilder.of(Marker3.class))
+				.annotatedMethod();
+		annotator.process();
+		assertEquals(1, annotator.getSkippedRetransformations());
+		assertTrue(m(SkipTestClass.class, "annotatedMethod")
+				.isAnnotationPresent(Marker3.class));
+
+		Annotator other = new Annotator();
+		other.annotate(SkipTestClass.class)
+				.setOnMethod(AnnotationBuilder.of(Marker3.class))
+				.annotatedMethod();
+		other.process();
+		assertEquals(1, other.getSkippedRetransformations());
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void addExisting() {
 		new Annotator().annotate(TestClass.class)
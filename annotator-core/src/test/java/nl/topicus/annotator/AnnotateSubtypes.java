@@ -0,0 +1,91 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.Marker2;
+import nl.topicus.annotator.subtypes.AbstractHandler;
+import nl.topicus.annotator.subtypes.Handler;
+import nl.topicus.annotator.subtypes.LateHandler;
+import nl.topicus.annotator.subtypes.Listener;
+import nl.topicus.annotator.subtypes.LoadedHandler;
+import nl.topicus.annotator.subtypes.Unrelated;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnnotateSubtypes {
+	private static final String MIDDLE = "nl.topicus.annotator.generated.Middle";
+	private static final String LEAF = "nl.topicus.annotator.generated.Leaf";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return A loader that defines Middle and Leaf extending it, with Middle
+	 *         implementing {@link Listener} if requested.
+	 */
+	private ClassLoader createLoader(boolean listener) throws Exception {
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new ClassClassPath(Listener.class));
+		CtClass middle = pool.makeClass(MIDDLE);
+		if (listener) {
+			middle.addInterface(pool.get(Listener.class.getName()));
+		}
+		CtClass leaf = pool.makeClass(LEAF, middle);
+		File directory = folder.newFolder();
+		middle.writeFile(directory.getPath());
+		leaf.writeFile(directory.getPath());
+		return new URLClassLoader(new URL[] { directory.toURI().toURL() },
+				getClass().getClassLoader());
+	}
+
+	@Test
+	public void annotateSubtypes() throws Exception {
+		// loaded before the rule is added, LateHandler and AbstractHandler are
+		// only loaded afterwards
+		new LoadedHandler();
+		new Unrelated();
+
+		Annotator annotator = new Annotator();
+		annotator.annotateSubtypesOf(Handler.class)
+				.setOnClass(AnnotationBuilder.of(Marker1.class))
+				.setOnMethods("handle", null, AnnotationBuilder.of(Marker2.class));
+		annotator.process();
+
+		assertTrue(LoadedHandler.class.isAnnotationPresent(Marker1.class));
+		assertTrue(LoadedHandler.class.getMethod("handle", Object.class)
+				.isAnnotationPresent(Marker2.class));
+		assertTrue(LateHandler.class.isAnnotationPresent(Marker1.class));
+		assertTrue(LateHandler.class.getMethod("handle", Object.class)
+				.isAnnotationPresent(Marker2.class));
+		assertTrue(AbstractHandler.class.isAnnotationPresent(Marker1.class));
+		assertFalse(Handler.class.isAnnotationPresent(Marker1.class));
+		assertFalse(Unrelated.class.isAnnotationPresent(Marker1.class));
+		assertFalse(Unrelated.class.getMethod("handle", Object.class)
+				.isAnnotationPresent(Marker2.class));
+	}
+
+	@Test
+	public void sameNameInOtherLoader() throws Exception {
+		Annotator annotator = new Annotator();
+		annotator.annotateSubtypesOf(Listener.class).setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.process();
+
+		assertTrue(Class.forName(LEAF, true, createLoader(true))
+				.isAnnotationPresent(Marker1.class));
+		// the Middle of this loader does not implement Listener
+		assertFalse(Class.forName(LEAF, true, createLoader(false))
+				.isAnnotationPresent(Marker1.class));
+	}
+}
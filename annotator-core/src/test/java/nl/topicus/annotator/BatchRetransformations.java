@@ -0,0 +1,133 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.topicus.annotator.agent.AnnotatorAgent;
+import nl.topicus.annotator.agent.RetransformScheduler;
+import nl.topicus.annotator.agent.RetransformationException;
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ClassAnnotationCreator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchRetransformations {
+	public static class First {
+	}
+
+	public static class Second {
+	}
+
+	public static class Third {
+	}
+
+	public static class Good {
+	}
+
+	public static class Bad {
+	}
+
+	/**
+	 * Records the classes of every call to the JVM.
+	 */
+	private static class RecordingScheduler extends RetransformScheduler {
+		private final List<List<Class<?>>> calls = new ArrayList<>();
+
+		private RecordingScheduler() {
+			super(64, 1, TimeUnit.SECONDS);
+		}
+
+		@Override
+		protected void retransformClasses(Class<?>... classes)
+				throws UnmodifiableClassException {
+			calls.add(Arrays.<Class<?>> asList(classes));
+			super.retransformClasses(classes);
+		}
+	}
+
+	private RetransformScheduler original;
+	private RecordingScheduler scheduler;
+
+	@Before
+	public void installScheduler() {
+		original = AnnotatorAgent.getScheduler();
+		scheduler = new RecordingScheduler();
+		AnnotatorAgent.setScheduler(scheduler);
+	}
+
+	@After
+	public void restoreScheduler() {
+		AnnotatorAgent.setScheduler(original);
+	}
+
+	@Test
+	public void processInOneCall() {
+		Annotator annotator = new Annotator();
+		for (Class<?> curClass : Arrays.asList(First.class, Second.class,
+				Third.class)) {
+			annotator.annotate(curClass).setOnClass(
+					AnnotationBuilder.of(Marker1.class));
+		}
+		annotator.process();
+
+		assertEquals(1, scheduler.calls.size());
+		assertEquals(
+				new HashSet<>(Arrays.asList(First.class, Second.class,
+						Third.class)), new HashSet<>(scheduler.calls.get(0)));
+		assertTrue(First.class.isAnnotationPresent(Marker1.class));
+		assertTrue(Second.class.isAnnotationPresent(Marker1.class));
+		assertTrue(Third.class.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void reportFailurePerClass() {
+		AnnotatorAgent.loadDynamicAgent();
+		final RuntimeException failure = new RuntimeException("failing");
+		Map<Class<?>, ClassFileTransformer> transformers = new LinkedHashMap<>();
+		transformers.put(Good.class, new AnnotatorClassFileTransformer(
+				Arrays.asList(new ClassAnnotationCreator(Marker1.class,
+						Collections.<String, Object> emptyMap(), false))));
+		transformers.put(Bad.class, new ClassFileTransformer() {
+			@Override
+			public byte[] transform(ClassLoader loader, String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+				throw failure;
+			}
+		});
+		Object owner = new Object();
+		try {
+			AnnotatorAgent.addAnnotations(owner, transformers);
+			fail();
+		} catch (RetransformationException e) {
+			assertEquals(Collections.singletonMap(Bad.class, failure),
+					e.getFailures());
+			// the JVM ignores the failure of a transformer, so the batch is
+			// not retried class by class
+			assertEquals(Arrays.<Class<?>> asList(Good.class, Bad.class),
+					scheduler.calls.get(0));
+			assertEquals(1, scheduler.calls.size());
+			assertTrue(Good.class.isAnnotationPresent(Marker1.class));
+		} finally {
+			AnnotatorAgent.removeOwners(Collections.singleton(owner));
+		}
+		assertFalse(Good.class.isAnnotationPresent(Marker1.class));
+	}
+}
@@ -0,0 +1,131 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.NestedAnnotation;
+import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ClassAnnotationCreator;
+import nl.topicus.annotator.impl.ClassFiles;
+import nl.topicus.annotator.impl.MethodPattern;
+import nl.topicus.annotator.impl.MethodPatternAnnotationCreator;
+import nl.topicus.annotator.impl.TransformationCache;
+import nl.topicus.annotator.spec.OverlaySpecExtension;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheTransformations {
+	public static class CachedClass {
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void disableCache() {
+		TransformationCache.setDirectory(null);
+	}
+
+	private static byte[] transform(String annotationName,
+			Map<String, Object> values, byte[] original) throws Exception {
+		return new AnnotatorClassFileTransformer(
+				Arrays.asList(new ClassAnnotationCreator(annotationName,
+						values))).transform(CachedClass.class.getClassLoader(),
+				CachedClass.class.getName().replace('.', '/'), null, null,
+				original);
+	}
+
+	@Test
+	public void reuseTransformation() throws Exception {
+		TransformationCache.setDirectory(folder.getRoot());
+		byte[] original = ClassFiles.read(CachedClass.class);
+		Map<String, Object> values = Collections.emptyMap();
+
+		long hits = TransformationCache.getHits();
+		long misses = TransformationCache.getMisses();
+		byte[] transformed = transform(Marker1.class.getName(), values,
+				original);
+		assertEquals(misses + 1, TransformationCache.getMisses());
+		assertFalse(Arrays.equals(original, transformed));
+
+		assertArrayEquals(transformed,
+				transform(Marker1.class.getName(), values, original));
+		assertEquals(hits + 1, TransformationCache.getHits());
+
+		// other annotations are a different entry
+		byte[] nested = transform(NestedAnnotation.class.getName(),
+				Collections.<String, Object> singletonMap("value", "cached"),
+				original);
+		assertEquals(misses + 2, TransformationCache.getMisses());
+		assertFalse(Arrays.equals(transformed, nested));
+
+		// a disabled cache is not used
+		TransformationCache.setDirectory(null);
+		transform(Marker1.class.getName(), values, original);
+		assertEquals(hits + 1, TransformationCache.getHits());
+		assertEquals(misses + 2, TransformationCache.getMisses());
+	}
+
+	@Test
+	public void deleteEntries() throws Exception {
+		TransformationCache.setDirectory(folder.getRoot());
+		byte[] original = ClassFiles.read(CachedClass.class);
+		Map<String, Object> values = Collections.emptyMap();
+		byte[] transformed = transform(Marker1.class.getName(), values,
+				original);
+
+		File[] dirs = folder.getRoot().listFiles();
+		assertEquals(1, dirs.length);
+		File[] entries = dirs[0].listFiles();
+		assertEquals(1, entries.length);
+		assertTrue(entries[0].getName().endsWith(
+				"-v" + TransformationCache.FORMAT_VERSION + ".class"));
+
+		// a deleted entry is transformed again
+		assertTrue(entries[0].delete());
+		long misses = TransformationCache.getMisses();
+		assertArrayEquals(transformed,
+				transform(Marker1.class.getName(), values, original));
+		assertEquals(misses + 1, TransformationCache.getMisses());
+		assertTrue(entries[0].isFile());
+	}
+
+	@Test
+	public void enableWithAgentArgument() throws Exception {
+		new OverlaySpecExtension().start(Collections.singletonMap(
+				OverlaySpecExtension.CACHE_ARGUMENT, folder.getRoot()
+						.getPath()), null);
+		assertEquals(folder.getRoot(), TransformationCache.getDirectory());
+	}
+
+	@Test
+	public void returnUnchangedClassFile() throws Exception {
+		TransformationCache.setDirectory(folder.getRoot());
+		byte[] original = ClassFiles.read(CachedClass.class);
+		// the pattern matches no method, so the class is not changed
+		AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+				Arrays.asList(new MethodPatternAnnotationCreator(
+						new MethodPattern("missing*", null), Marker1.class,
+						Collections.<String, Object> emptyMap())));
+		String name = CachedClass.class.getName().replace('.', '/');
+
+		long misses = TransformationCache.getMisses();
+		assertSame(original, transformer.transform(
+				CachedClass.class.getClassLoader(), name, null, null, original));
+		assertSame(original, transformer.transform(
+				CachedClass.class.getClassLoader(), name, null, null, original));
+		assertEquals(misses + 2, TransformationCache.getMisses());
+	}
+}
@@ -0,0 +1,201 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import nl.topicus.annotator.agent.AnnotatorAgent;
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.Marker2;
+import nl.topicus.annotator.annotations.Marker3;
+
+import org.junit.Test;
+
+public class ConcurrentTransformation {
+	private static final String PACKAGE = "nl.topicus.annotator.stress.";
+
+	private static final int LOADERS = 6;
+
+	private static final int CLASSES = 40;
+
+	private static final int THREADS = 8;
+
+	public static class RegisteredClass {
+	}
+
+	/**
+	 * Counts how often it is applied, without changing the class.
+	 */
+	private static class CountingTransformer implements ClassFileTransformer {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public byte[] transform(ClassLoader loader, String className,
+				Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			count.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Defines the generated classes, in parallel.
+	 */
+	private static class GeneratedLoader extends ClassLoader {
+		static {
+			registerAsParallelCapable();
+		}
+
+		private Map<String, byte[]> classes;
+
+		private GeneratedLoader(Map<String, byte[]> classes) {
+			super(ConcurrentTransformation.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null)
+				throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static Map<String, byte[]> generateClasses() throws Exception {
+		ClassPool pool = new ClassPool(true);
+		Map<String, byte[]> ret = new HashMap<>();
+		for (int index = 0; index < CLASSES; index++) {
+			CtClass generated = pool.makeClass(PACKAGE + "Generated" + index);
+			generated.addMethod(CtNewMethod.make("public void run() {}",
+					generated));
+			generated.addMethod(CtNewMethod.make(
+					"public int count(int value) { return value; }", generated));
+			ret.put(generated.getName(), generated.toBytecode());
+			generated.detach();
+		}
+		return ret;
+	}
+
+	@Test
+	public void loadInParallel() throws Exception {
+		Map<String, byte[]> classes = generateClasses();
+		Annotator annotator = new Annotator();
+		annotator.annotateMatching(PACKAGE + "*").setOnClass(
+				AnnotationBuilder.of(Marker1.class));
+		annotator.annotate(PACKAGE + "Generated0").setOnClass(
+				AnnotationBuilder.of(Marker2.class));
+		annotator.annotateMatching(PACKAGE + "*").setOnMethods("run", null,
+				AnnotationBuilder.of(Marker3.class));
+		annotator.process();
+
+		final List<String> names = new ArrayList<>(classes.keySet());
+		List<Callable<List<Class<?>>>> tasks = new ArrayList<>();
+		for (int loaderIndex = 0; loaderIndex < LOADERS; loaderIndex++) {
+			final ClassLoader loader = new GeneratedLoader(classes);
+			for (int thread = 0; thread < THREADS; thread++) {
+				tasks.add(new Callable<List<Class<?>>>() {
+					@Override
+					public List<Class<?>> call() throws Exception {
+						List<String> shuffled = new ArrayList<>(names);
+						Collections.shuffle(shuffled);
+						List<Class<?>> ret = new ArrayList<>();
+						for (String curName : shuffled) {
+							ret.add(loader.loadClass(curName));
+						}
+						return ret;
+					}
+				});
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			int loaded = 0;
+			for (Future<List<Class<?>>> curResult : executor.invokeAll(tasks)) {
+				for (Class<?> curClass : curResult.get()) {
+					assertTrue(curClass.getName(),
+							curClass.isAnnotationPresent(Marker1.class));
+					assertEquals(curClass.getName(), curClass.getName()
+							.endsWith(".Generated0"),
+							curClass.isAnnotationPresent(Marker2.class));
+					assertTrue(curClass.getName(), curClass.getMethod("run")
+							.isAnnotationPresent(Marker3.class));
+					assertFalse(curClass.getName(),
+							curClass.getMethod("count", int.class)
+									.isAnnotationPresent(Marker3.class));
+					loaded++;
+				}
+			}
+			assertEquals(LOADERS * THREADS * CLASSES, loaded);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void registerInParallel() throws Exception {
+		AnnotatorAgent.loadDynamicAgent();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<CountingTransformer> transformers = new ArrayList<>();
+		List<Callable<Object>> tasks = new ArrayList<>();
+		for (int thread = 0; thread < THREADS; thread++) {
+			final CountingTransformer transformer = new CountingTransformer();
+			transformers.add(transformer);
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					start.await();
+					AnnotatorAgent.addAnnotations(transformer, Collections
+							.<Class<?>, ClassFileTransformer> singletonMap(
+									RegisteredClass.class, transformer));
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Object>> results = new ArrayList<>();
+			for (Callable<Object> curTask : tasks) {
+				results.add(executor.submit(curTask));
+			}
+			start.countDown();
+			for (Future<Object> curResult : results) {
+				curResult.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			// no registration is lost, every transformer applies exactly once
+			for (CountingTransformer curTransformer : transformers) {
+				curTransformer.count.set(0);
+			}
+			AnnotatorAgent.retransform(RegisteredClass.class);
+			for (CountingTransformer curTransformer : transformers) {
+				assertEquals(1, curTransformer.count.get());
+			}
+		} finally {
+			AnnotatorAgent.removeOwners(transformers);
+		}
+	}
+}
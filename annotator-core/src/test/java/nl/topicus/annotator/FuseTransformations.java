@@ -0,0 +1,104 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javassist.CtClass;
+import javassist.NotFoundException;
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.impl.AnnotationMutator;
+import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ClassAnnotationCreator;
+import nl.topicus.annotator.impl.ClassFiles;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class FuseTransformations {
+	public static class FusedClass {
+	}
+
+	/**
+	 * Adds the annotation like a {@link ClassAnnotationCreator}, and counts
+	 * how often the class is actually mutated.
+	 */
+	private static class CountingMutator implements AnnotationMutator {
+		private ClassAnnotationCreator creator = new ClassAnnotationCreator(
+				Marker1.class, Collections.<String, Object> emptyMap(), false);
+		private int count;
+
+		@Override
+		public void mutate(CtClass jClass) throws NotFoundException {
+			count++;
+			creator.mutate(jClass);
+		}
+
+		@Override
+		public Object getKey() {
+			return creator.getKey();
+		}
+
+		@Override
+		public String getFingerprint() {
+			return null;
+		}
+	}
+
+	private static final String NAME = FusedClass.class.getName().replace(
+			'.', '/');
+
+	private static byte[] transform(ClassFileTransformer transformer,
+			byte[] original) throws Exception {
+		return transformer.transform(FusedClass.class.getClassLoader(), NAME,
+				null, null, original);
+	}
+
+	@Test
+	public void keepPrecomputed() throws Exception {
+		byte[] original = ClassFiles.read(FusedClass.class);
+		CountingMutator previous = new CountingMutator();
+		CountingMutator mutator = new CountingMutator();
+		AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+				Arrays.asList(mutator));
+		transformer.precompute(FusedClass.class.getClassLoader(), NAME,
+				original);
+		assertEquals(1, mutator.count);
+
+		// the mutator supersedes the previous one, so the precomputed bytes
+		// are still the result of the fused transformer
+		byte[] transformed = transform(new AnnotatorClassFileTransformer(
+				Arrays.asList(previous)).fuse(transformer), original);
+		assertEquals(1, mutator.count);
+		assertEquals(0, previous.count);
+		assertTrue(new String(transformed, Charsets.ISO_8859_1)
+				.contains("Lnl/topicus/annotator/annotations/Marker1;"));
+	}
+
+	@Test
+	public void dropPrecomputedOfPartialResult() throws Exception {
+		byte[] original = ClassFiles.read(FusedClass.class);
+		CountingMutator mutator = new CountingMutator();
+		AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+				Arrays.asList(mutator));
+		transformer.precompute(FusedClass.class.getClassLoader(), NAME,
+				original);
+
+		// a mutator of another method is not superseded, so the class is
+		// transformed again with both
+		CountingMutator other = new CountingMutator() {
+			@Override
+			public Object getKey() {
+				return "other";
+			}
+		};
+		transform(new AnnotatorClassFileTransformer(Arrays.asList(other))
+				.fuse(transformer), original);
+		assertEquals(2, mutator.count);
+		assertEquals(1, other.count);
+	}
+}
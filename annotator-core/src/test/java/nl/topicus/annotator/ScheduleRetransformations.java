@@ -0,0 +1,111 @@
+package nl.topicus.annotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.topicus.annotator.agent.RetransformProgress;
+import nl.topicus.annotator.agent.RetransformScheduler;
+
+import org.junit.Test;
+
+public class ScheduleRetransformations {
+	/**
+	 * A scheduler that does not retransform, but takes the given time per
+	 * class and fails on {@link Unmodifiable}. Once a call failed, every call
+	 * takes the time of a retry.
+	 */
+	private static class SimulatingScheduler extends RetransformScheduler {
+		private final long millisPerClass;
+		private final long retryMillis;
+		private final List<Integer> calls = new ArrayList<>();
+		private boolean retrying;
+
+		private SimulatingScheduler(int chunkSize, long millisPerClass,
+				long retryMillis) {
+			super(chunkSize, 20, TimeUnit.MILLISECONDS);
+			this.millisPerClass = millisPerClass;
+			this.retryMillis = retryMillis;
+		}
+
+		@Override
+		protected void retransformClasses(Class<?>... classes)
+				throws UnmodifiableClassException {
+			calls.add(classes.length);
+			sleep(retrying ? retryMillis : millisPerClass * classes.length);
+			if (Arrays.asList(classes).contains(Unmodifiable.class)) {
+				retrying = true;
+				throw new UnmodifiableClassException();
+			}
+		}
+
+		private static void sleep(long millis) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static class Unmodifiable {
+	}
+
+	private static List<Class<?>> classes(int count) {
+		return new ArrayList<Class<?>>(Collections.nCopies(count,
+				Object.class));
+	}
+
+	@Test
+	public void adaptChunkSize() {
+		SimulatingScheduler scheduler = new SimulatingScheduler(1, 1, 0);
+		RetransformProgress progress = scheduler.retransform(classes(60));
+		assertEquals(60, progress.getApplied());
+		assertEquals(scheduler.calls.size(), progress.getChunks());
+
+		// the chunks double at most, and stay within 80% of the budget
+		assertEquals(1, (int) scheduler.calls.get(0));
+		int previous = 1;
+		for (int curSize : scheduler.calls) {
+			assertTrue(curSize <= 2 * previous);
+			assertTrue(curSize <= 16);
+			previous = curSize;
+		}
+		assertTrue(scheduler.getChunkSize() <= 16);
+	}
+
+	@Test
+	public void respectMaxChunkSize() {
+		SimulatingScheduler scheduler = new SimulatingScheduler(1, 0, 0);
+		scheduler.setMaxChunkSize(3);
+		scheduler.retransform(classes(20));
+		for (int curSize : scheduler.calls) {
+			assertTrue(curSize <= 3);
+		}
+		assertEquals(3, scheduler.getChunkSize());
+	}
+
+	@Test
+	public void retryFailedChunk() {
+		// every retry takes longer than the budget, the chunk itself does not
+		SimulatingScheduler scheduler = new SimulatingScheduler(4, 0, 25);
+		List<Class<?>> classes = classes(3);
+		classes.add(Unmodifiable.class);
+		RetransformProgress progress = scheduler.retransform(classes);
+
+		assertEquals(1, progress.getChunks());
+		assertEquals(Arrays.asList(4, 1, 1, 1, 1), scheduler.calls);
+		assertEquals(3, progress.getApplied());
+		assertEquals(Collections.singleton(Unmodifiable.class), progress
+				.getFailures().keySet());
+		assertTrue(progress.getFailures().get(Unmodifiable.class) instanceof UnmodifiableClassException);
+		// the retries do not count towards the duration of the chunk
+		assertEquals(8, scheduler.getChunkSize());
+	}
+}
@@ -0,0 +1,198 @@
+package nl.topicus.annotator.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.AnnotationMemberValue;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.ClassMemberValue;
+import javassist.bytecode.annotation.EnumMemberValue;
+import javassist.bytecode.annotation.IntegerMemberValue;
+import javassist.bytecode.annotation.LongMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+import nl.topicus.annotator.annotations.AnnotationWithDefault;
+
+import org.junit.Test;
+
+public class AnnotationTemplates {
+	private static AnnotationTemplate template(Class<?> annotationType,
+			Map<String, Object> values, boolean merge) {
+		return AnnotationTemplate.of(AnnotationEncoder.forType(annotationType),
+				values, merge);
+	}
+
+	private static AnnotationsAttribute attribute() {
+		return new AnnotationsAttribute(new ConstPool("Test"),
+				AnnotationsAttribute.visibleTag);
+	}
+
+	@Test
+	public void mergeIntoExisting() {
+		AnnotationsAttribute attr = attribute();
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("noDefault", "existing");
+		values.put("oneMoreValue", "existing");
+		template(AnnotationWithDefault.class, values, false).addTo(attr);
+
+		template(AnnotationWithDefault.class,
+				Collections.<String, Object> singletonMap("oneMoreValue",
+						"merged"), true).addTo(attr);
+		assertEquals(1, attr.numAnnotations());
+		Annotation merged = attr.getAnnotations()[0];
+		assertEquals("existing",
+				((StringMemberValue) merged.getMemberValue("noDefault"))
+						.getValue());
+		assertEquals("merged",
+				((StringMemberValue) merged.getMemberValue("oneMoreValue"))
+						.getValue());
+	}
+
+	@Test
+	public void mergeCompleteWithoutExisting() {
+		AnnotationsAttribute attr = attribute();
+		template(AnnotationWithDefault.class,
+				Collections.<String, Object> singletonMap("noDefault",
+						"merged"), true).addTo(attr);
+		assertEquals(1, attr.numAnnotations());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void mergeIncompleteWithoutExisting() {
+		// the annotation would lack noDefault, which has no default value
+		template(AnnotationWithDefault.class,
+				Collections.<String, Object> singletonMap("oneMoreValue",
+						"merged"), true).addTo(attribute());
+	}
+
+	@Test
+	public void walkAllReferences() {
+		ConstPool cp = new ConstPool("Test");
+		Annotation nested = new Annotation("test.Nested", cp);
+		nested.addMemberValue("value", new IntegerMemberValue(cp, 1));
+		ArrayMemberValue array = new ArrayMemberValue(cp);
+		array.setValue(new MemberValue[] { new StringMemberValue("a", cp),
+				new StringMemberValue("b", cp) });
+		EnumMemberValue enumValue = new EnumMemberValue(cp);
+		enumValue.setType("test.Kind");
+		enumValue.setValue("VALUE");
+
+		Annotation annotation = new Annotation("test.Complex", cp);
+		annotation.addMemberValue("intValue", new IntegerMemberValue(cp, 2));
+		annotation.addMemberValue("longValue", new LongMemberValue(3L, cp));
+		annotation.addMemberValue("stringValue", new StringMemberValue("s",
+				cp));
+		annotation.addMemberValue("enumValue", enumValue);
+		annotation.addMemberValue("classValue", new ClassMemberValue(
+				"java.lang.String", cp));
+		annotation.addMemberValue("arrayValue", array);
+		annotation.addMemberValue("nestedValue", new AnnotationMemberValue(
+				nested, cp));
+		AnnotationsAttribute attr = new AnnotationsAttribute(cp,
+				AnnotationsAttribute.visibleTag);
+		attr.addAnnotation(annotation);
+		byte[] info = attr.get();
+
+		List<int[]> refs = new ArrayList<>();
+		assertEquals(info.length, AnnotationTemplate.walkAnnotation(info, 2,
+				refs));
+		// the type, 7 names, 1 for int, long, string and class, 2 for the
+		// enum and the array, and 3 for the nested annotation
+		assertEquals(19, refs.size());
+		// javassist does not keep the order of the members
+		char[] kinds = new char[refs.size()];
+		for (int index = 0; index < kinds.length; index++) {
+			int[] curRef = refs.get(index);
+			kinds[index] = (char) curRef[1];
+			if (kinds[index] == 'J') {
+				assertEquals(3L,
+						cp.getLongInfo(AnnotationTemplate.u2(info, curRef[0])));
+			}
+		}
+		Arrays.sort(kinds);
+		assertEquals("IIJUUUUUUUUUUUUUUUU", new String(kinds));
+		assertEquals("Ltest/Complex;",
+				cp.getUtf8Info(AnnotationTemplate.u2(info, refs.get(0)[0])));
+	}
+
+	@Test
+	public void relocateToOtherPools() {
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("noDefault", "relocated");
+		AnnotationTemplate template = template(AnnotationWithDefault.class,
+				values, false);
+
+		AnnotationsAttribute empty = attribute();
+		template.addTo(empty);
+		// a pool with other entries gets different indices
+		AnnotationsAttribute filled = attribute();
+		filled.getConstPool().addUtf8Info("unrelated");
+		filled.getConstPool().addIntegerInfo(42);
+		template.addTo(filled);
+		for (AnnotationsAttribute curAttr : Arrays.asList(empty, filled)) {
+			Annotation annotation = curAttr.getAnnotations()[0];
+			assertEquals(AnnotationWithDefault.class.getName(),
+					annotation.getTypeName());
+			assertEquals("relocated",
+					((StringMemberValue) annotation
+							.getMemberValue("noDefault")).getValue());
+		}
+
+		// adding it again replaces the annotation, and adds no constants
+		int size = filled.getConstPool().getSize();
+		template.addTo(filled);
+		assertEquals(1, filled.numAnnotations());
+		assertEquals(size, filled.getConstPool().getSize());
+	}
+
+	@Test
+	public void copyValues() {
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("noDefault", "first");
+		AnnotationTemplate first = template(AnnotationWithDefault.class,
+				values, false);
+		values.put("noDefault", "second");
+		AnnotationTemplate second = template(AnnotationWithDefault.class,
+				values, false);
+		assertNotSame(first, second);
+		assertSame(second, template(AnnotationWithDefault.class,
+				Collections.<String, Object> singletonMap("noDefault",
+						"second"), false));
+
+		AnnotationsAttribute attr = attribute();
+		first.addTo(attr);
+		assertEquals("first",
+				((StringMemberValue) attr.getAnnotations()[0]
+						.getMemberValue("noDefault")).getValue());
+	}
+
+	@Test
+	public void releaseRelocatedPool() throws InterruptedException {
+		AnnotationTemplate template = template(AnnotationWithDefault.class,
+				Collections.<String, Object> singletonMap("noDefault",
+						"released"), false);
+		AnnotationsAttribute attr = attribute();
+		template.addTo(attr);
+		WeakReference<ConstPool> pool = new WeakReference<>(
+				attr.getConstPool());
+		attr = null;
+		for (int count = 0; count < 50 && pool.get() != null; count++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(pool.get());
+	}
+}
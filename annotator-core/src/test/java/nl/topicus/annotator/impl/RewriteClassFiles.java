@@ -0,0 +1,200 @@
+package nl.topicus.annotator.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javassist.NotFoundException;
+
+import javax.xml.bind.annotation.XmlElement;
+
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.Marker2;
+
+import org.junit.Test;
+
+public class RewriteClassFiles {
+	public static class RewrittenClass {
+		public static final String CONSTANT = "constant";
+
+		@Marker1
+		public String annotatedField;
+
+		@Marker2
+		@XmlElement(name = "original", required = true)
+		public void annotatedMethod() {
+		}
+
+		public void plainMethod(String arg) {
+		}
+	}
+
+	public static class PlainClass {
+	}
+
+	/**
+	 * Defines a class from its class file, next to the original class.
+	 */
+	private static class DefiningLoader extends ClassLoader {
+		private DefiningLoader() {
+			super(RewriteClassFiles.class.getClassLoader());
+		}
+
+		private Class<?> define(byte[] classFile) {
+			return defineClass(null, classFile, 0, classFile.length);
+		}
+	}
+
+	private static AnnotationTemplate template(Class<?> annotationType,
+			Map<String, Object> values) {
+		return AnnotationTemplate.of(AnnotationEncoder.forType(annotationType),
+				values, false);
+	}
+
+	private static AnnotationTemplate marker1() {
+		return template(Marker1.class, Collections.<String, Object> emptyMap());
+	}
+
+	private static Class<?> rewrite(ClassFileRewriter rewriter) {
+		return new DefiningLoader().define(rewriter.toBytes());
+	}
+
+	private static ClassFileRewriter rewriter() throws Exception {
+		return new ClassFileRewriter(ClassFiles.read(RewrittenClass.class));
+	}
+
+	/**
+	 * Checks the members the rewriter did not touch.
+	 */
+	private static void assertUntouched(Class<?> rewritten) throws Exception {
+		assertEquals("constant", rewritten.getField("CONSTANT").get(null));
+		Field field = rewritten.getField("annotatedField");
+		assertEquals(1, field.getAnnotations().length);
+		assertTrue(field.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void appendConstants() throws Exception {
+		byte[] original = ClassFiles.read(PlainClass.class);
+		ClassFileRewriter rewriter = new ClassFileRewriter(original);
+		rewriter.addAnnotation(ClassFileRewriter.CLASS, marker1());
+		byte[] rewritten = rewriter.toBytes();
+
+		// the type of the marker and the name of the attribute are new
+		// constants, which follow the existing ones
+		int count = AnnotationTemplate.u2(original, 8);
+		assertEquals(count + 2, AnnotationTemplate.u2(rewritten, 8));
+		assertEquals(count + 2, rewriter.addUtf8("anotherConstant"));
+		assertTrue(new DefiningLoader().define(rewritten).isAnnotationPresent(
+				Marker1.class));
+	}
+
+	@Test
+	public void reuseConstants() throws Exception {
+		byte[] original = ClassFiles.read(RewrittenClass.class);
+		ClassFileRewriter rewriter = new ClassFileRewriter(original);
+		rewriter.addAnnotation(ClassFileRewriter.CLASS, marker1());
+		byte[] rewritten = rewriter.toBytes();
+
+		// the field already refers to the marker and the attribute name
+		assertEquals(AnnotationTemplate.u2(original, 8),
+				AnnotationTemplate.u2(rewritten, 8));
+		Class<?> clazz = new DefiningLoader().define(rewritten);
+		assertTrue(clazz.isAnnotationPresent(Marker1.class));
+		assertUntouched(clazz);
+	}
+
+	@Test
+	public void keepUnchangedClassFile() throws Exception {
+		byte[] original = ClassFiles.read(RewrittenClass.class);
+		assertSame(original, new ClassFileRewriter(original).toBytes());
+	}
+
+	@Test
+	public void replaceExistingAnnotation() throws Exception {
+		ClassFileRewriter rewriter = rewriter();
+		int method = rewriter.findMethod("annotatedMethod", "()V");
+		rewriter.addAnnotation(method, template(XmlElement.class,
+				Collections.<String, Object> singletonMap("name", "replaced")));
+		Class<?> clazz = rewrite(rewriter);
+
+		Method annotated = clazz.getMethod("annotatedMethod");
+		assertEquals(2, annotated.getAnnotations().length);
+		assertTrue(annotated.isAnnotationPresent(Marker2.class));
+		XmlElement element = annotated.getAnnotation(XmlElement.class);
+		assertEquals("replaced", element.name());
+		assertFalse(element.required());
+		assertUntouched(clazz);
+	}
+
+	@Test
+	public void annotateMethods() throws Exception {
+		ClassFileRewriter rewriter = rewriter();
+		int plain = rewriter.findMethod("plainMethod", "(Ljava/lang/String;)V");
+		assertEquals("plainMethod", rewriter.getMethodName(plain));
+		assertEquals(-1, rewriter.findMethod("plainMethod", "()V"));
+		rewriter.addAnnotation(plain, marker1());
+		// adding twice replaces the annotation of the first time
+		rewriter.addAnnotation(plain, marker1());
+		rewriter.addAnnotation(rewriter.findMethod("annotatedMethod", "()V"),
+				marker1());
+		Class<?> clazz = rewrite(rewriter);
+
+		Method plainMethod = clazz.getMethod("plainMethod", String.class);
+		assertEquals(1, plainMethod.getAnnotations().length);
+		assertTrue(plainMethod.isAnnotationPresent(Marker1.class));
+		Method annotated = clazz.getMethod("annotatedMethod");
+		assertEquals(3, annotated.getAnnotations().length);
+		assertEquals("original", annotated.getAnnotation(XmlElement.class)
+				.name());
+		assertFalse(clazz.isAnnotationPresent(Marker1.class));
+		assertUntouched(clazz);
+	}
+
+	@Test
+	public void streamMethodPattern() throws Exception {
+		ClassFileRewriter rewriter = rewriter();
+		new MethodPatternAnnotationCreator(new MethodPattern("*Method", null),
+				Marker1.class, Collections.<String, Object> emptyMap())
+				.mutate(rewriter);
+		Class<?> clazz = rewrite(rewriter);
+
+		assertTrue(clazz.getMethod("annotatedMethod").isAnnotationPresent(
+				Marker1.class));
+		assertTrue(clazz.getMethod("plainMethod", String.class)
+				.isAnnotationPresent(Marker1.class));
+		// the constructor is not a method
+		assertEquals(0, clazz.getConstructor().getAnnotations().length);
+		assertUntouched(clazz);
+	}
+
+	/**
+	 * A method the class does not declare is an error, not a no-op.
+	 */
+	@Test(expected = NotFoundException.class)
+	public void streamMissingMethod() throws Exception {
+		new MethodAnnotationCreator("plainMethod", "()V", Marker1.class,
+				Collections.<String, Object> emptyMap(), false)
+				.mutate(rewriter());
+	}
+
+	@Test
+	public void streamClassAnnotation() throws Exception {
+		byte[] original = ClassFiles.read(RewrittenClass.class);
+		AnnotatorClassFileTransformer streaming = new AnnotatorClassFileTransformer(
+				Arrays.asList(new ClassAnnotationCreator(Marker1.class,
+						Collections.<String, Object> emptyMap(), false)));
+		byte[] streamed = streaming.transformClassFile(getClass()
+				.getClassLoader(), original);
+		Class<?> clazz = new DefiningLoader().define(streamed);
+		assertTrue(clazz.isAnnotationPresent(Marker1.class));
+		assertUntouched(clazz);
+	}
+}
@@ -0,0 +1,4 @@
+package nl.topicus.annotator.loaders;
+
+public class Widget {
+}
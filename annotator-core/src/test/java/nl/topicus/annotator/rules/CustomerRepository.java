@@ -0,0 +1,12 @@
+package nl.topicus.annotator.rules;
+
+public class CustomerRepository {
+	public void findAll() {
+	}
+
+	public void findById(Long id) {
+	}
+
+	public void save(Object entity) {
+	}
+}
@@ -0,0 +1,4 @@
+package nl.topicus.annotator.rules;
+
+public class CustomerService {
+}
@@ -0,0 +1,4 @@
+package nl.topicus.annotator.rules.sub;
+
+public class OrderRepository {
+}
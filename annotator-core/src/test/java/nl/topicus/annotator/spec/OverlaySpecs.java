@@ -0,0 +1,251 @@
+package nl.topicus.annotator.spec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.EnumMemberValue;
+
+import nl.topicus.annotator.AnnotationBuilder;
+import nl.topicus.annotator.Annotator;
+import nl.topicus.annotator.annotations.ComplexAnnotation;
+import nl.topicus.annotator.annotations.Marker1;
+import nl.topicus.annotator.annotations.NestedAnnotation;
+import nl.topicus.annotator.impl.AnnotatorClassFileTransformer;
+import nl.topicus.annotator.impl.ChecksumClassFileTransformer;
+import nl.topicus.annotator.impl.ClassAnnotationCreator;
+import nl.topicus.annotator.impl.ClassFiles;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+public class OverlaySpecs {
+	public static class SpecTarget {
+		public void method(String arg) {
+		}
+	}
+
+	public static class RecordTarget {
+		public void method(String arg) {
+		}
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface TypesAnnotation {
+		Class<?>[] value();
+	}
+
+	private static final String TARGET = SpecTarget.class.getName();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static OverlaySpec parse(String spec) throws IOException {
+		return OverlaySpec.parse(new StringReader(spec), "test",
+				OverlaySpecs.class.getClassLoader());
+	}
+
+	@Test
+	public void parseEntries() throws IOException {
+		OverlaySpec spec = parse(TARGET + "@" + Marker1.class.getName()
+				+ "=\n" + TARGET + "#method(Ljava/lang/String;)V@"
+				+ ComplexAnnotation.class.getName()
+				+ "=longs={5, 6}, enumValue=METHOD, nested=(value=\"a,b\")");
+
+		assertEquals(2, spec.getEntries().size());
+		OverlaySpec.Entry classEntry = spec.getEntries().get(1);
+		assertEquals(TARGET, classEntry.getClassName());
+		assertEquals(null, classEntry.getMethodName());
+		OverlaySpec.Entry methodEntry = spec.getEntries().get(0);
+		assertEquals("method", methodEntry.getMethodName());
+		assertEquals("(Ljava/lang/String;)V", methodEntry.getDescriptor());
+		ComplexAnnotation ann = (ComplexAnnotation) methodEntry.getBuilder()
+				.build();
+		assertArrayEquals(new long[] { 5, 6 }, ann.longs());
+		assertEquals(ElementType.METHOD, ann.enumValue());
+		assertEquals("a,b", ann.nested().value());
+	}
+
+	@Test
+	public void formatAndParseTypes() throws IOException {
+		Class<?>[] types = { int.class, void.class, boolean.class,
+				String.class, long[].class };
+		String formatted = ValueFormatter.format(AnnotationBuilder
+				.of(TypesAnnotation.class).setValue("value", types).build());
+		OverlaySpec spec = parse(TARGET + "@" + TypesAnnotation.class.getName()
+				+ "=" + formatted);
+
+		// primitive types are written by their name, which Class.forName
+		// does not find
+		assertArrayEquals(types, ((TypesAnnotation) spec.getEntries().get(0)
+				.getBuilder().build()).value());
+	}
+
+	@Test
+	public void apply() throws Exception {
+		Annotator annotator = new Annotator();
+		parse(
+				TARGET + "#method(Ljava/lang/String;)V@"
+						+ Marker1.class.getName() + "=").applyTo(annotator);
+		annotator.process();
+
+		assertTrue(SpecTarget.class.getMethod("method", String.class)
+				.isAnnotationPresent(Marker1.class));
+	}
+
+	@Test
+	public void recordAndParse() throws Exception {
+		Annotator annotator = new Annotator();
+		annotator.add(RecordTarget.class,
+				AnnotationBuilder.of(Marker1.class));
+		annotator.add(
+				RecordTarget.class.getMethod("method", String.class),
+				AnnotationBuilder
+						.of(ComplexAnnotation.class)
+						.setValue("longs", new long[] { 5 })
+						.setValue("enumValue", ElementType.TYPE)
+						.setValue(
+								"nested",
+								AnnotationBuilder.of(NestedAnnotation.class)
+										.setValue("value", "a \"b\", c")
+										.build()));
+		annotator.process();
+
+		StringWriter out = new StringWriter();
+		annotator.getOverlays().write(out);
+		OverlaySpec spec = parse(out.toString());
+
+		String target = RecordTarget.class.getName();
+		assertEquals(
+				ChecksumClassFileTransformer.checksum(ClassFiles
+						.read(RecordTarget.class)),
+				(long) spec.getChecksums().get(target));
+		assertEquals(2, spec.getEntries().size());
+		OverlaySpec.Entry methodEntry = spec.getEntries().get(0);
+		assertEquals(target, methodEntry.getClassName());
+		assertEquals("(Ljava/lang/String;)V", methodEntry.getDescriptor());
+		ComplexAnnotation ann = (ComplexAnnotation) methodEntry.getBuilder()
+				.build();
+		assertArrayEquals(new long[] { 5 }, ann.longs());
+		assertEquals(ElementType.TYPE, ann.enumValue());
+		assertEquals("a \"b\", c", ann.nested().value());
+		assertEquals(Marker1.class, spec.getEntries().get(1).getBuilder()
+				.annotationType());
+	}
+
+	@Test
+	public void dropStaleEntries() throws Exception {
+		byte[] original = ClassFiles.read(RecordTarget.class);
+		long checksum = ChecksumClassFileTransformer.checksum(original);
+		AnnotatorClassFileTransformer transformer = new AnnotatorClassFileTransformer(
+				Arrays.asList(new ClassAnnotationCreator(
+						Marker1.class.getName(), Collections
+								.<String, Object> emptyMap())));
+		String name = RecordTarget.class.getName().replace('.', '/');
+
+		assertTrue(new ChecksumClassFileTransformer(checksum, transformer)
+				.accepts(name, original));
+		assertFalse(new ChecksumClassFileTransformer(checksum + 1,
+				transformer).accepts(name, original));
+
+		// entries that no longer parse are dropped
+		OverlaySpec spec = OverlaySpec.parse(new StringReader(TARGET
+				+ "@com.example.Missing=\n" + TARGET + "@"
+				+ Marker1.class.getName() + "=\n" + TARGET
+				+ "!checksum=1a2b\n"), "test", getClass().getClassLoader(),
+				true);
+		assertEquals(1, spec.getEntries().size());
+		assertEquals(0x1a2bL, (long) spec.getChecksums().get(TARGET));
+	}
+
+	/**
+	 * Writes a runtime retained annotation type to a directory that is only
+	 * seen by the returned loader, like an annotation on the class path of a
+	 * project that is woven at build time.
+	 */
+	private ClassLoader createAnnotationLoader(String name) throws Exception {
+		ClassPool pool = new ClassPool(true);
+		CtClass type = pool.makeInterface(name,
+				pool.get(Annotation.class.getName()));
+		ClassFile classFile = type.getClassFile();
+		classFile.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.INTERFACE
+				| AccessFlag.ABSTRACT | AccessFlag.ANNOTATION);
+		ConstPool cp = classFile.getConstPool();
+		AnnotationsAttribute attribute = new AnnotationsAttribute(cp,
+				AnnotationsAttribute.visibleTag);
+		javassist.bytecode.annotation.Annotation retention = new javassist.bytecode.annotation.Annotation(
+				Retention.class.getName(), cp);
+		EnumMemberValue policy = new EnumMemberValue(cp);
+		policy.setType(RetentionPolicy.class.getName());
+		policy.setValue(RetentionPolicy.RUNTIME.name());
+		retention.addMemberValue("value", policy);
+		attribute.addAnnotation(retention);
+		classFile.addAttribute(attribute);
+		File directory = folder.newFolder();
+		type.writeFile(directory.getPath());
+		return new URLClassLoader(new URL[] { directory.toURI().toURL() },
+				getClass().getClassLoader());
+	}
+
+	@Test
+	public void weaveAnnotationOfOtherLoader() throws Exception {
+		String annotationName = "nl.topicus.annotator.woven.Isolated";
+		ClassLoader loader = createAnnotationLoader(annotationName);
+		OverlayWeaver weaver = new OverlayWeaver(OverlaySpec.parse(
+				new StringReader(TARGET + "@" + annotationName + "=\n"
+						+ TARGET + "#method(Ljava/lang/String;)V@"
+						+ annotationName + "="), "test", loader), loader);
+
+		byte[] original = ClassFiles.read(SpecTarget.class);
+		byte[] woven = weaver.weave(TARGET.replace('.', '/'), original);
+		assertNotSame(original, woven);
+		assertTrue(new String(woven, Charsets.ISO_8859_1)
+				.contains("Lnl/topicus/annotator/woven/Isolated;"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownAttribute() throws IOException {
+		parse(TARGET + "@" + Marker1.class.getName() + "=value=x");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingAttribute() throws IOException {
+		parse(TARGET + "@" + ComplexAnnotation.class.getName()
+				+ "=longs={5}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidEnum() throws IOException {
+		parse(TARGET + "@" + ComplexAnnotation.class.getName()
+				+ "=longs={5}, enumValue=NONE, nested=(value=x)");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingDescriptor() throws IOException {
+		parse(TARGET + "#method@" + Marker1.class.getName() + "=");
+	}
+}
@@ -0,0 +1,4 @@
+package nl.topicus.annotator.subtypes;
+
+public abstract class AbstractHandler implements Handler {
+}
@@ -0,0 +1,5 @@
+package nl.topicus.annotator.subtypes;
+
+public interface Handler {
+	void handle(Object message);
+}
@@ -0,0 +1,7 @@
+package nl.topicus.annotator.subtypes;
+
+public class LateHandler extends AbstractHandler {
+	@Override
+	public void handle(Object message) {
+	}
+}
@@ -0,0 +1,7 @@
+package nl.topicus.annotator.subtypes;
+
+public class LoadedHandler implements Handler {
+	@Override
+	public void handle(Object message) {
+	}
+}
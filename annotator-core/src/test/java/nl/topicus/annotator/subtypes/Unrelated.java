@@ -0,0 +1,6 @@
+package nl.topicus.annotator.subtypes;
+
+public class Unrelated {
+	public void handle(Object message) {
+	}
+}
@@ -0,0 +1,223 @@
+package nl.topicus.annotator.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.topicus.annotator.spec.OverlayWeaver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Weaves the annotations of an {@link OverlayWeaver} into a directory of class
+ * files, such as <code>target/classes</code>. The weaver remembers the hash of
+ * every class file it wrote and the annotations it wrote into it, and keeps a
+ * copy of the class file as it was compiled. On the next run a class file that
+ * was not compiled again and whose annotations did not change is skipped. A
+ * class whose annotations changed is woven again from its copy, and a class
+ * that is no longer annotated is restored. The class files are processed in
+ * parallel.
+ */
+public class IncrementalWeaver {
+	private static final String STATE_FILE = "state.properties";
+
+	private static final String ORIGINALS_DIRECTORY = "originals";
+
+	private OverlayWeaver weaver;
+	private File classesDirectory;
+	private File workDirectory;
+	private int threads;
+
+	private AtomicInteger woven = new AtomicInteger();
+	private AtomicInteger restored = new AtomicInteger();
+	private AtomicInteger upToDate = new AtomicInteger();
+
+	/**
+	 * @param workDirectory
+	 *            The directory the state and the copies of the class files are
+	 *            kept in between runs.
+	 * @param threads
+	 *            The number of class files processed in parallel.
+	 */
+	public IncrementalWeaver(OverlayWeaver weaver, File classesDirectory,
+			File workDirectory, int threads) {
+		this.weaver = weaver;
+		this.classesDirectory = classesDirectory;
+		this.workDirectory = workDirectory;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return The number of class files woven by the last run.
+	 */
+	public int getWovenCount() {
+		return woven.get();
+	}
+
+	/**
+	 * @return The number of class files restored to their compiled version by
+	 *         the last run, because they are no longer annotated.
+	 */
+	public int getRestoredCount() {
+		return restored.get();
+	}
+
+	/**
+	 * @return The number of class files the last run skipped, because they
+	 *         were woven with the same annotations before.
+	 */
+	public int getUpToDateCount() {
+		return upToDate.get();
+	}
+
+	/**
+	 * Weaves all classes that are annotated or were annotated by the previous
+	 * run. Only the annotated classes are read, the other class files in the
+	 * directory are not touched.
+	 *
+	 * @throws IOException
+	 *             if one or more classes could not be woven. The classes that
+	 *             were woven are remembered.
+	 */
+	public void run() throws IOException {
+		woven.set(0);
+		restored.set(0);
+		upToDate.set(0);
+		final Properties previousState = loadState();
+		Set<String> classNames = new TreeSet<>(weaver.getClassNames());
+		classNames.addAll(previousState.stringPropertyNames());
+
+		Map<String, Future<String>> results = new TreeMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (final String curClassName : classNames) {
+				results.put(curClassName,
+						executor.submit(new Callable<String>() {
+							@Override
+							public String call() throws IOException {
+								return process(curClassName, previousState
+										.getProperty(curClassName));
+							}
+						}));
+			}
+
+			Properties state = new Properties();
+			List<String> failures = new ArrayList<>();
+			Throwable firstFailure = null;
+			for (Map.Entry<String, Future<String>> curResult : results
+					.entrySet()) {
+				try {
+					String curState = curResult.getValue().get();
+					if (curState != null) {
+						state.setProperty(curResult.getKey(), curState);
+					}
+				} catch (ExecutionException e) {
+					failures.add(curResult.getKey().replace('/', '.'));
+					if (firstFailure == null) {
+						firstFailure = e.getCause();
+					}
+				}
+			}
+			saveState(state);
+			if (!failures.isEmpty())
+				throw new IOException("Cannot weave " + failures, firstFailure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Brings the class file up to date.
+	 *
+	 * @param previous
+	 *            The state of the class after the previous run, or null.
+	 * @return The state of the class after this run, or null if it is not
+	 *         woven.
+	 */
+	private String process(String className, String previous)
+			throws IOException {
+		File file = new File(classesDirectory, className + ".class");
+		File original = new File(new File(workDirectory, ORIGINALS_DIRECTORY),
+				className + ".class");
+		if (!file.isFile()) {
+			original.delete();
+			return null;
+		}
+		String fingerprint = weaver.getFingerprint(className);
+		byte[] current = Files.toByteArray(file);
+		byte[] source = current;
+		if (previous != null && previous.startsWith(hash(current) + " ")) {
+			// the class was not compiled since it was woven
+			if (fingerprint != null
+					&& previous.equals(hash(current) + " "
+							+ hash(fingerprint.getBytes(Charsets.UTF_8)))) {
+				upToDate.incrementAndGet();
+				return previous;
+			}
+			if (original.isFile()) {
+				source = Files.toByteArray(original);
+			}
+		}
+
+		if (fingerprint == null) {
+			if (source != current) {
+				Files.write(source, file);
+				restored.incrementAndGet();
+			}
+			original.delete();
+			return null;
+		}
+		if (source == current) {
+			Files.createParentDirs(original);
+			Files.write(source, original);
+		}
+		byte[] result = weaver.weave(className, source);
+		Files.write(result, file);
+		woven.incrementAndGet();
+		return hash(result) + " " + hash(fingerprint.getBytes(Charsets.UTF_8));
+	}
+
+	private Properties loadState() throws IOException {
+		Properties ret = new Properties();
+		File file = new File(workDirectory, STATE_FILE);
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				ret.load(in);
+			}
+		}
+		return ret;
+	}
+
+	private void saveState(Properties state) throws IOException {
+		File file = new File(workDirectory, STATE_FILE);
+		Files.createParentDirs(file);
+		try (OutputStream out = new FileOutputStream(file)) {
+			state.store(out, "Class files woven by the annotator");
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		return Hashing.sha1().hashBytes(bytes).toString();
+	}
+}
@@ -0,0 +1,110 @@
+package nl.topicus.annotator.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.topicus.annotator.spec.OverlaySpec;
+import nl.topicus.annotator.spec.OverlayWeaver;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Weaves {@link OverlaySpec}s into the compiled classes, so the annotations
+ * are in the class files and no agent is needed at runtime. Only the classes
+ * that were compiled again or whose annotations changed since the previous
+ * build are woven.
+ *
+ * @goal weave
+ * @phase process-classes
+ * @requiresDependencyResolution compile
+ * @threadSafe
+ */
+public class WeaveMojo extends AbstractMojo {
+	/**
+	 * The overlay specs to weave into the classes.
+	 *
+	 * @parameter
+	 * @required
+	 */
+	private File[] specs;
+
+	/**
+	 * @parameter default-value="${project.build.outputDirectory}"
+	 * @required
+	 */
+	private File classesDirectory;
+
+	/**
+	 * The directory the state of the previous build is kept in.
+	 *
+	 * @parameter default-value="${project.build.directory}/annotator"
+	 * @required
+	 */
+	private File workDirectory;
+
+	/**
+	 * @parameter default-value="${project.compileClasspathElements}"
+	 * @required
+	 * @readonly
+	 */
+	private List<String> classpathElements;
+
+	/**
+	 * The number of classes woven in parallel, 0 for one per processor.
+	 *
+	 * @parameter property="annotator.threads" default-value="0"
+	 */
+	private int threads;
+
+	/**
+	 * @parameter property="annotator.skip" default-value="false"
+	 */
+	private boolean skip;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		if (skip) {
+			getLog().info("Skipping the weaving of annotations");
+			return;
+		}
+		if (!classesDirectory.isDirectory()) {
+			getLog().info("No classes to weave");
+			return;
+		}
+
+		try (URLClassLoader loader = createClassLoader()) {
+			OverlayWeaver weaver = new OverlayWeaver(OverlaySpec.load(loader,
+					specs), loader);
+			IncrementalWeaver incremental = new IncrementalWeaver(weaver,
+					classesDirectory, workDirectory, threads > 0 ? threads
+							: Runtime.getRuntime().availableProcessors());
+			incremental.run();
+			getLog().info(
+					"Woven " + incremental.getWovenCount() + " classes, "
+							+ incremental.getUpToDateCount()
+							+ " up to date, restored "
+							+ incremental.getRestoredCount());
+		} catch (IOException | IllegalArgumentException e) {
+			throw new MojoExecutionException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return A loader for the annotation types and the class values of the
+	 *         specs, which are usually found on the compile class path.
+	 */
+	private URLClassLoader createClassLoader() throws MalformedURLException {
+		List<URL> urls = new ArrayList<>();
+		for (String curElement : classpathElements) {
+			urls.add(new File(curElement).toURI().toURL());
+		}
+		return new URLClassLoader(urls.toArray(new URL[urls.size()]),
+				getClass().getClassLoader());
+	}
+}
@@ -0,0 +1,122 @@
+package nl.topicus.annotator.maven;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+
+import nl.topicus.annotator.impl.ClassFiles;
+import nl.topicus.annotator.spec.OverlaySpec;
+import nl.topicus.annotator.spec.OverlayWeaver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class IncrementalWeaving {
+	public static class WovenClass {
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Woven {
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] original;
+
+	private File classFile;
+
+	@Before
+	public void copyClass() throws IOException {
+		original = ClassFiles.read(WovenClass.class);
+		classFile = new File(folder.getRoot(), "classes/"
+				+ ClassFiles.resourceName(WovenClass.class));
+		Files.createParentDirs(classFile);
+		Files.write(original, classFile);
+	}
+
+	private IncrementalWeaver run(String spec) throws IOException {
+		ClassLoader loader = getClass().getClassLoader();
+		IncrementalWeaver ret = new IncrementalWeaver(new OverlayWeaver(
+				OverlaySpec.parse(new StringReader(spec), "test", loader),
+				loader), new File(folder.getRoot(), "classes"), new File(
+				folder.getRoot(), "annotator"), 2);
+		ret.run();
+		return ret;
+	}
+
+	private boolean isAnnotated(Class<?> annotationType) throws IOException {
+		return new String(Files.toByteArray(classFile), Charsets.ISO_8859_1)
+				.contains("L" + annotationType.getName().replace('.', '/')
+						+ ";");
+	}
+
+	private boolean isDeprecated() throws IOException {
+		return isAnnotated(Deprecated.class);
+	}
+
+	/**
+	 * @return The class file as if the class was changed and compiled again.
+	 */
+	private byte[] recompile() throws Exception {
+		CtClass jClass = new ClassPool(true)
+				.makeClass(new ByteArrayInputStream(original));
+		jClass.addField(CtField.make("public int added;", jClass));
+		return jClass.toBytecode();
+	}
+
+	@Test
+	public void weaveChangedClasses() throws Exception {
+		String spec = WovenClass.class.getName() + "@"
+				+ Deprecated.class.getName() + "=";
+		assertEquals(1, run(spec).getWovenCount());
+		assertTrue(isDeprecated());
+
+		IncrementalWeaver again = run(spec);
+		assertEquals(0, again.getWovenCount());
+		assertEquals(1, again.getUpToDateCount());
+
+		// a class that is no longer annotated gets its compiled version back
+		assertEquals(1, run("").getRestoredCount());
+		assertFalse(isDeprecated());
+		assertArrayEquals(original, Files.toByteArray(classFile));
+		assertEquals(0, run("").getRestoredCount());
+
+		// changed annotations are woven into the compiled version, so the
+		// annotations that were removed are gone
+		String changedSpec = WovenClass.class.getName() + "@"
+				+ Woven.class.getName() + "=";
+		run(spec);
+		assertEquals(1, run(changedSpec).getWovenCount());
+		assertTrue(isAnnotated(Woven.class));
+		assertFalse(isDeprecated());
+
+		// a class that was compiled again is woven again, and its new
+		// version is restored
+		byte[] recompiled = recompile();
+		Files.write(recompiled, classFile);
+		IncrementalWeaver recompiledRun = run(changedSpec);
+		assertEquals(1, recompiledRun.getWovenCount());
+		assertEquals(0, recompiledRun.getUpToDateCount());
+		assertTrue(isAnnotated(Woven.class));
+		assertEquals(1, run("").getRestoredCount());
+		assertArrayEquals(recompiled, Files.toByteArray(classFile));
+	}
+}
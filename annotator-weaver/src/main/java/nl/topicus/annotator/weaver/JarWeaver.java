@@ -0,0 +1,392 @@
+package nl.topicus.annotator.weaver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nl.topicus.annotator.spec.OverlaySpec;
+import nl.topicus.annotator.spec.OverlayWeaver;
+
+/**
+ * Weaves an {@link OverlaySpec} into the classes of a jar, for example a
+ * third-party library, and writes the result to a new jar. Entries that are
+ * not annotated are copied as they are, without inflating them. The annotated
+ * classes are woven on a pool of threads, while the output is written in the
+ * order of the input. The signature files of a signed jar are left out, as
+ * the signature no longer matches once classes are woven. Zip64 files are not
+ * supported.
+ */
+public class JarWeaver {
+	/**
+	 * The result of weaving a class.
+	 */
+	private static class WovenEntry {
+		private byte[] data;
+		private int size;
+		private long crc;
+
+		private WovenEntry(byte[] data, int size, long crc) {
+			this.data = data;
+			this.size = size;
+			this.crc = crc;
+		}
+	}
+
+	private OverlayWeaver weaver;
+	private int threads;
+
+	/**
+	 * @param threads
+	 *            The number of classes woven in parallel.
+	 */
+	public JarWeaver(OverlayWeaver weaver, int threads) {
+		this.weaver = weaver;
+		this.threads = threads;
+	}
+
+	/**
+	 * Weaves the input into a temporary file next to the output, which
+	 * replaces the output only when all classes were woven.
+	 *
+	 * @return The number of classes that were woven.
+	 */
+	public int weave(File input, File output) throws IOException {
+		File temp = File.createTempFile(output.getName(), ".tmp", output
+				.getAbsoluteFile().getParentFile());
+		try {
+			int ret = weaveTo(input, temp);
+			Files.move(temp.toPath(), output.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return ret;
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private int weaveTo(File input, File output) throws IOException {
+		try (FileInputStream in = new FileInputStream(input);
+				FileChannel inChannel = in.getChannel()) {
+			MappedByteBuffer mapped = inChannel.map(
+					FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+			final ZipDirectory directory = new ZipDirectory(mapped);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<WovenEntry>> results = new ArrayList<>();
+				for (final ZipDirectory.Entry curEntry : directory
+						.getEntries()) {
+					final String className = getClassName(curEntry.getName());
+					if (className == null
+							|| !weaver.getClassNames().contains(className)) {
+						results.add(null);
+						continue;
+					}
+					results.add(executor.submit(new Callable<WovenEntry>() {
+						@Override
+						public WovenEntry call() throws IOException {
+							return weave(directory, curEntry, className);
+						}
+					}));
+				}
+				try (FileOutputStream out = new FileOutputStream(output);
+						FileChannel outChannel = out.getChannel()) {
+					return write(directory, results, outChannel);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * @return True if the entry is part of the signature of a signed jar.
+	 */
+	static boolean isSignatureFile(String entryName) {
+		if (!entryName.startsWith("META-INF/")
+				|| entryName.indexOf('/', "META-INF/".length()) >= 0)
+			return false;
+		String name = entryName.toUpperCase(Locale.ENGLISH);
+		return name.endsWith(".SF") || name.endsWith(".RSA")
+				|| name.endsWith(".DSA") || name.endsWith(".EC")
+				|| name.startsWith("META-INF/SIG-");
+	}
+
+	/**
+	 * @return The internal name of the class stored in the entry, or null if
+	 *         it is not a class file.
+	 */
+	private static String getClassName(String entryName) {
+		if (!entryName.endsWith(".class"))
+			return null;
+		return entryName.substring(0, entryName.length() - ".class".length());
+	}
+
+	/**
+	 * @return The woven class file, compressed, or null if the weaver did not
+	 *         change the class.
+	 */
+	private WovenEntry weave(ZipDirectory directory, ZipDirectory.Entry entry,
+			String className) throws IOException {
+		byte[] classFile = read(directory, entry);
+		if (classFile == null)
+			return null;
+		byte[] woven = weaver.weave(className, classFile);
+		if (woven == classFile)
+			return null;
+
+		CRC32 crc = new CRC32();
+		crc.update(woven, 0, woven.length);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(woven);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					woven.length / 2 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return new WovenEntry(out.toByteArray(), woven.length,
+					crc.getValue());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return The uncompressed contents of the entry, or null if it uses an
+	 *         unsupported compression method.
+	 */
+	private static byte[] read(ZipDirectory directory, ZipDirectory.Entry entry)
+			throws IOException {
+		ByteBuffer data = directory.getData(entry);
+		byte[] compressed = new byte[data.remaining()];
+		data.get(compressed);
+		if (entry.getMethod() == ZipDirectory.STORED)
+			return compressed;
+		if (entry.getMethod() != ZipDirectory.DEFLATED)
+			return null;
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] ret = new byte[entry.getSize()];
+			int length = 0;
+			while (length < ret.length && !inflater.finished()) {
+				int read = inflater.inflate(ret, length, ret.length - length);
+				if (read == 0 && inflater.needsInput())
+					throw new IOException("Truncated entry " + entry.getName());
+				length += read;
+			}
+			return length == ret.length ? ret : Arrays.copyOf(ret, length);
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid entry " + entry.getName(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Writes the entries in order, the raw records of the entries that were
+	 * not woven and new records for the ones that were, followed by the
+	 * central directory.
+	 */
+	private int write(ZipDirectory directory,
+			List<Future<WovenEntry>> results, FileChannel out)
+			throws IOException {
+		List<ByteBuffer> centralHeaders = new ArrayList<>();
+		List<ZipDirectory.Entry> entries = directory.getEntries();
+		long pos = 0;
+		int woven = 0;
+		for (int index = 0; index < entries.size(); index++) {
+			ZipDirectory.Entry curEntry = entries.get(index);
+			if (isSignatureFile(curEntry.getName()))
+				continue;
+			WovenEntry curWoven = getResult(curEntry, results.get(index));
+			ByteBuffer central = curEntry.copyCentralHeader();
+			central.putInt(42, checkOffset(pos));
+			if (curWoven == null) {
+				pos += writeFully(out, directory.getRecord(curEntry));
+			} else {
+				int flags = curEntry.getFlags()
+						& ~ZipDirectory.FLAG_DATA_DESCRIPTOR;
+				central.putShort(6, (short) 20);
+				central.putShort(8, (short) flags);
+				central.putShort(10, (short) ZipDirectory.DEFLATED);
+				central.putInt(16, (int) curWoven.crc);
+				central.putInt(20, curWoven.data.length);
+				central.putInt(24, curWoven.size);
+				pos += writeFully(out, localHeader(central));
+				pos += writeFully(out, ByteBuffer.wrap(curWoven.data));
+				woven++;
+			}
+			centralHeaders.add(central);
+		}
+
+		// the central directory and its end are written at once
+		int directorySize = 0;
+		for (ByteBuffer curHeader : centralHeaders) {
+			directorySize += curHeader.capacity();
+		}
+		ByteBuffer comment = directory.getComment();
+		ByteBuffer trailer = ByteBuffer.allocate(
+				directorySize + 22 + comment.remaining()).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (ByteBuffer curHeader : centralHeaders) {
+			curHeader.rewind();
+			trailer.put(curHeader);
+		}
+		trailer.putInt(ZipDirectory.END_OF_DIRECTORY);
+		trailer.putShort((short) 0);
+		trailer.putShort((short) 0);
+		trailer.putShort((short) centralHeaders.size());
+		trailer.putShort((short) centralHeaders.size());
+		trailer.putInt(directorySize);
+		trailer.putInt(checkOffset(pos));
+		trailer.putShort((short) comment.remaining());
+		trailer.put(comment);
+		trailer.flip();
+		writeFully(out, trailer);
+		return woven;
+	}
+
+	private static WovenEntry getResult(ZipDirectory.Entry entry,
+			Future<WovenEntry> result) throws IOException {
+		if (result == null)
+			return null;
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot weave " + entry.getName(),
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	/**
+	 * @return A local header with the fields and the name of the central
+	 *         header, without extra field.
+	 */
+	private static ByteBuffer localHeader(ByteBuffer central) {
+		int nameLength = central.getShort(28) & 0xFFFF;
+		ByteBuffer ret = ByteBuffer.allocate(30 + nameLength).order(
+				ByteOrder.LITTLE_ENDIAN);
+		ret.putInt(ZipDirectory.LOCAL_HEADER);
+		// version needed to extract, flags, method, time, date, crc and sizes
+		ret.putShort((short) 20);
+		for (int offset = 8; offset < 28; offset += 2) {
+			ret.putShort(central.getShort(offset));
+		}
+		ret.putShort((short) nameLength);
+		ret.putShort((short) 0);
+		for (int index = 0; index < nameLength; index++) {
+			ret.put(central.get(46 + index));
+		}
+		ret.flip();
+		return ret;
+	}
+
+	private static int checkOffset(long offset) throws IOException {
+		if (offset > 0xFFFFFFFFL)
+			throw new IOException("The output needs Zip64, which is not "
+					+ "supported");
+		return (int) offset;
+	}
+
+	private static int writeFully(FileChannel out, ByteBuffer buffer)
+			throws IOException {
+		int ret = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		return ret;
+	}
+
+	public static void main(String[] args) {
+		List<String> classpath = new ArrayList<>();
+		int threads = Runtime.getRuntime().availableProcessors();
+		int index = 0;
+		try {
+			for (; index < args.length && args[index].startsWith("-"); index += 2) {
+				if (args[index].equals("-cp")) {
+					classpath.addAll(Arrays.asList(args[index + 1]
+							.split(File.pathSeparator)));
+				} else if (args[index].equals("-threads")) {
+					threads = Integer.parseInt(args[index + 1]);
+				} else {
+					throw new IllegalArgumentException(args[index]);
+				}
+			}
+		} catch (RuntimeException e) {
+			usage();
+			return;
+		}
+		if (args.length - index < 3) {
+			usage();
+			return;
+		}
+
+		File input = new File(args[index]);
+		File output = new File(args[index + 1]);
+		File[] specs = new File[args.length - index - 2];
+		for (int spec = 0; spec < specs.length; spec++) {
+			specs[spec] = new File(args[index + 2 + spec]);
+		}
+		try (URLClassLoader loader = createClassLoader(input, classpath)) {
+			long start = System.currentTimeMillis();
+			int woven = new JarWeaver(new OverlayWeaver(OverlaySpec.load(
+					loader, specs), loader), threads).weave(input, output);
+			System.out.println("Woven " + woven + " classes into "
+					+ output + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return A loader for the annotation types and the class values of the
+	 *         specs, which can be in the jar itself or on the class path.
+	 */
+	static URLClassLoader createClassLoader(File input, List<String> classpath)
+			throws IOException {
+		List<URL> urls = new ArrayList<>();
+		urls.add(input.toURI().toURL());
+		for (String curElement : classpath) {
+			urls.add(new File(curElement).toURI().toURL());
+		}
+		return new URLClassLoader(urls.toArray(new URL[urls.size()]),
+				JarWeaver.class.getClassLoader());
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java -jar annotator-weaver.jar "
+				+ "[-cp <classpath>] [-threads <n>] "
+				+ "<input.jar> <output.jar> <spec>...");
+		System.exit(2);
+	}
+}
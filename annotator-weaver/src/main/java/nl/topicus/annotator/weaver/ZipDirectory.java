@@ -0,0 +1,158 @@
+package nl.topicus.annotator.weaver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The central directory of a zip file, read from a buffer that holds the whole
+ * file. Every entry gives access to its raw record, so entries can be copied
+ * to another zip file without inflating them. Zip64 files are not supported.
+ */
+class ZipDirectory {
+	static final int LOCAL_HEADER = 0x04034b50;
+	static final int DATA_DESCRIPTOR = 0x08074b50;
+	static final int CENTRAL_HEADER = 0x02014b50;
+	static final int END_OF_DIRECTORY = 0x06054b50;
+
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+	private static final int END_SIZE = 22;
+
+	static class Entry {
+		private String name;
+		/**
+		 * The central directory header, including name, extra field and
+		 * comment.
+		 */
+		private ByteBuffer centralHeader;
+		private int localOffset;
+
+		private Entry(String name, ByteBuffer centralHeader) {
+			this.name = name;
+			this.centralHeader = centralHeader;
+			this.localOffset = centralHeader.getInt(42);
+		}
+
+		String getName() {
+			return name;
+		}
+
+		int getFlags() {
+			return centralHeader.getShort(8) & 0xFFFF;
+		}
+
+		int getMethod() {
+			return centralHeader.getShort(10) & 0xFFFF;
+		}
+
+		int getCompressedSize() {
+			return centralHeader.getInt(20);
+		}
+
+		int getSize() {
+			return centralHeader.getInt(24);
+		}
+
+		/**
+		 * @return A copy of the central directory header, which can be
+		 *         changed.
+		 */
+		ByteBuffer copyCentralHeader() {
+			ByteBuffer ret = ByteBuffer.allocate(centralHeader.capacity())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			ret.put(centralHeader.duplicate()).flip();
+			return ret;
+		}
+	}
+
+	private ByteBuffer file;
+	private List<Entry> entries = new ArrayList<>();
+	private ByteBuffer comment;
+
+	ZipDirectory(ByteBuffer file) throws IOException {
+		this.file = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int end = findEnd();
+		int count = this.file.getShort(end + 10) & 0xFFFF;
+		int pos = this.file.getInt(end + 16);
+		comment = slice(end + END_SIZE, this.file.getShort(end + 20) & 0xFFFF);
+		for (int index = 0; index < count; index++) {
+			if (this.file.getInt(pos) != CENTRAL_HEADER)
+				throw new IOException("Invalid central directory header at "
+						+ pos);
+			int nameLength = this.file.getShort(pos + 28) & 0xFFFF;
+			int length = 46 + nameLength
+					+ (this.file.getShort(pos + 30) & 0xFFFF)
+					+ (this.file.getShort(pos + 32) & 0xFFFF);
+			// names are decoded as UTF-8, like java.util.zip does
+			entries.add(new Entry(Charsets.UTF_8.decode(
+					slice(pos + 46, nameLength)).toString(), slice(pos,
+					length)));
+			pos += length;
+		}
+	}
+
+	private int findEnd() throws IOException {
+		int min = Math.max(0, file.limit() - END_SIZE - 0xFFFF);
+		for (int pos = file.limit() - END_SIZE; pos >= min; pos--) {
+			if (file.getInt(pos) == END_OF_DIRECTORY) {
+				if ((file.getShort(pos + 10) & 0xFFFF) == 0xFFFF
+						|| file.getInt(pos + 16) == -1)
+					throw new IOException("Zip64 files are not supported");
+				return pos;
+			}
+		}
+		throw new IOException("Not a zip file");
+	}
+
+	private ByteBuffer slice(int pos, int length) {
+		ByteBuffer ret = file.duplicate();
+		ret.position(pos).limit(pos + length);
+		return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	ByteBuffer getComment() {
+		return comment.duplicate();
+	}
+
+	/**
+	 * @return The local header, the data and the data descriptor of the entry,
+	 *         as they are in the file.
+	 */
+	ByteBuffer getRecord(Entry entry) throws IOException {
+		int pos = entry.localOffset;
+		if (file.getInt(pos) != LOCAL_HEADER)
+			throw new IOException("Invalid local header for "
+					+ entry.getName());
+		int length = 30 + (file.getShort(pos + 26) & 0xFFFF)
+				+ (file.getShort(pos + 28) & 0xFFFF)
+				+ entry.getCompressedSize();
+		if ((entry.getFlags() & FLAG_DATA_DESCRIPTOR) != 0) {
+			// the signature of the descriptor is optional
+			length += file.getInt(pos + length) == DATA_DESCRIPTOR ? 16 : 12;
+		}
+		return slice(pos, length);
+	}
+
+	/**
+	 * @return The compressed data of the entry.
+	 */
+	ByteBuffer getData(Entry entry) {
+		int pos = entry.localOffset;
+		int start = pos + 30 + (file.getShort(pos + 26) & 0xFFFF)
+				+ (file.getShort(pos + 28) & 0xFFFF);
+		return slice(start, entry.getCompressedSize());
+	}
+}
@@ -0,0 +1,238 @@
+package nl.topicus.annotator.weaver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.InnerClassesAttribute;
+import nl.topicus.annotator.impl.ClassFiles;
+import nl.topicus.annotator.spec.OverlaySpec;
+import nl.topicus.annotator.spec.OverlayWeaver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+public class WeaveJars {
+	public static class WovenClass {
+	}
+
+	public static class OtherClass {
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File createJar(Map<String, byte[]> entries) throws IOException {
+		File ret = folder.newFile("input.jar");
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(
+				ret))) {
+			for (Map.Entry<String, byte[]> curEntry : entries.entrySet()) {
+				ZipEntry entry = new ZipEntry(curEntry.getKey());
+				if (curEntry.getKey().endsWith(".txt")) {
+					// a stored entry, with its sizes known up front
+					CRC32 crc = new CRC32();
+					crc.update(curEntry.getValue());
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(curEntry.getValue().length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(curEntry.getValue());
+				out.closeEntry();
+			}
+		}
+		return ret;
+	}
+
+	private static boolean isDeprecated(byte[] classFile) {
+		return new String(classFile, Charsets.ISO_8859_1)
+				.contains("Ljava/lang/Deprecated;");
+	}
+
+	private OverlayWeaver createWeaver(ClassLoader loader,
+			String annotationName) throws IOException {
+		return new OverlayWeaver(OverlaySpec.parse(new StringReader(
+				WovenClass.class.getName() + "@" + annotationName + "="),
+				"test", loader), loader);
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Bundled {
+	}
+
+	/**
+	 * @return The class file of {@link Bundled} under another name, which is
+	 *         not on the class path of the test.
+	 */
+	private static byte[] createAnnotation(String name) throws Exception {
+		ClassPool pool = new ClassPool(true);
+		pool.appendClassPath(new ClassClassPath(Bundled.class));
+		CtClass type = pool.get(Bundled.class.getName());
+		type.setName(name);
+		// it is no longer nested in the test
+		type.getClassFile().getAttributes()
+				.remove(type.getClassFile().getAttribute(
+						InnerClassesAttribute.tag));
+		return type.toBytecode();
+	}
+
+	/**
+	 * @return The raw records of the entries, with their compressed data, by
+	 *         name.
+	 */
+	private static Map<String, ByteBuffer> readRecords(File jar)
+			throws IOException {
+		ZipDirectory directory = new ZipDirectory(ByteBuffer.wrap(Files
+				.toByteArray(jar)));
+		Map<String, ByteBuffer> ret = new HashMap<>();
+		for (ZipDirectory.Entry curEntry : directory.getEntries()) {
+			ret.put(curEntry.getName(), directory.getRecord(curEntry));
+		}
+		return ret;
+	}
+
+	@Test
+	public void weaveJar() throws IOException {
+		String woven = ClassFiles.resourceName(WovenClass.class);
+		String other = ClassFiles.resourceName(OtherClass.class);
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("META-INF/readme.txt", "stored".getBytes(Charsets.UTF_8));
+		entries.put(woven, ClassFiles.read(WovenClass.class));
+		entries.put(other, ClassFiles.read(OtherClass.class));
+		File input = createJar(entries);
+
+		OverlayWeaver weaver = createWeaver(getClass().getClassLoader(),
+				Deprecated.class.getName());
+		File output = folder.newFile("output.jar");
+		assertEquals(1, new JarWeaver(weaver, 2).weave(input, output));
+
+		// the central directory keeps the order of the input
+		try (ZipFile zip = new ZipFile(output)) {
+			assertEquals(3, zip.size());
+			assertEquals("META-INF/readme.txt", zip.entries().nextElement()
+					.getName());
+			assertTrue(isDeprecated(ByteStreams.toByteArray(zip
+					.getInputStream(zip.getEntry(woven)))));
+		}
+		// the local headers are valid as well
+		try (ZipInputStream in = new ZipInputStream(new FileInputStream(
+				output))) {
+			for (Map.Entry<String, byte[]> curEntry : entries.entrySet()) {
+				ZipEntry entry = in.getNextEntry();
+				assertEquals(curEntry.getKey(), entry.getName());
+				byte[] contents = ByteStreams.toByteArray(in);
+				if (curEntry.getKey().equals(woven)) {
+					assertTrue(isDeprecated(contents));
+				} else {
+					assertArrayEquals(curEntry.getValue(), contents);
+					assertFalse(isDeprecated(contents));
+				}
+			}
+			assertNull(in.getNextEntry());
+		}
+		// unchanged entries are copied without inflating them again
+		Map<String, ByteBuffer> inputRecords = readRecords(input);
+		Map<String, ByteBuffer> outputRecords = readRecords(output);
+		assertEquals(inputRecords.get("META-INF/readme.txt"),
+				outputRecords.get("META-INF/readme.txt"));
+		assertEquals(inputRecords.get(other), outputRecords.get(other));
+		assertNotEquals(inputRecords.get(woven), outputRecords.get(woven));
+	}
+
+	@Test
+	public void annotationInJar() throws Exception {
+		String annotationName = "nl.topicus.annotator.woven.Bundled";
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put(annotationName.replace('.', '/') + ".class",
+				createAnnotation(annotationName));
+		entries.put(ClassFiles.resourceName(WovenClass.class),
+				ClassFiles.read(WovenClass.class));
+		File input = createJar(entries);
+
+		File output = folder.newFile("output.jar");
+		try (URLClassLoader loader = JarWeaver.createClassLoader(input,
+				Collections.<String> emptyList())) {
+			assertEquals(1, new JarWeaver(createWeaver(loader, annotationName),
+					2).weave(input, output));
+		}
+		try (ZipFile zip = new ZipFile(output)) {
+			assertTrue(new String(ByteStreams.toByteArray(zip
+					.getInputStream(zip.getEntry(ClassFiles
+							.resourceName(WovenClass.class)))),
+					Charsets.ISO_8859_1)
+					.contains("Lnl/topicus/annotator/woven/Bundled;"));
+		}
+	}
+
+	@Test
+	public void stripSignature() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("META-INF/MANIFEST.MF",
+				"Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+		entries.put("META-INF/SIGNER.SF", new byte[] { 1 });
+		entries.put("META-INF/SIGNER.RSA", new byte[] { 2 });
+		entries.put("META-INF/maven/pom.properties", new byte[] { 3 });
+		entries.put(ClassFiles.resourceName(WovenClass.class),
+				ClassFiles.read(WovenClass.class));
+		File input = createJar(entries);
+
+		File output = folder.newFile("output.jar");
+		new JarWeaver(createWeaver(getClass().getClassLoader(),
+				Deprecated.class.getName()), 2).weave(input, output);
+		try (ZipFile zip = new ZipFile(output)) {
+			assertEquals(3, zip.size());
+			assertNull(zip.getEntry("META-INF/SIGNER.SF"));
+			assertNull(zip.getEntry("META-INF/SIGNER.RSA"));
+			assertTrue(zip.getEntry("META-INF/MANIFEST.MF") != null);
+			assertTrue(zip.getEntry("META-INF/maven/pom.properties") != null);
+		}
+	}
+
+	@Test
+	public void keepOutputOnFailure() throws IOException {
+		File input = folder.newFile("input.jar");
+		Files.write("not a jar", input, Charsets.UTF_8);
+		File output = folder.newFile("output.jar");
+		Files.write("previous", output, Charsets.UTF_8);
+		try {
+			new JarWeaver(createWeaver(getClass().getClassLoader(),
+					Deprecated.class.getName()), 2).weave(input, output);
+			fail();
+		} catch (IOException e) {
+			// the input is not a zip file
+		}
+		assertEquals("previous", Files.toString(output, Charsets.UTF_8));
+		assertEquals(2, folder.getRoot().list().length);
+	}
+}